@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The cells of a coarse grid that an {@link AlignmentGraph} searched, and put
+ * nodes or edges in, while its polylines were added.
+ *
+ * A graph only ever changes its result for a new point or edge based on the
+ * nodes and edges it finds around it.  Suppose several graphs were built from
+ * separate groups of polylines, and none of them searched a cell that another
+ * occupied.  Had all the polylines been added to one graph in their original
+ * order, none of its searches could have found a node or edge from another
+ * group, so it would have made the same choices as the separate graphs and
+ * ended up with exactly their combined nodes and edges.  {@link #conflicts}
+ * finds the groups for which that doesn't hold.
+ *
+ * Edges are only ever split, which keeps them on the same line, so recording
+ * each node and edge as it is added covers everything the graph occupies at
+ * any point while it is built.
+ */
+final class AlignmentFootprint {
+
+  /**
+   * Coarser than the snap threshold to keep footprints small, which only
+   * makes the check more conservative.
+   */
+  static final double CELL_METERS = 4 * AlignmentGraph.SNAP_THRESHOLD_METERS;
+
+  private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+  private static final int NONE = -1;
+
+  private static final int SHARED = -2;
+
+  private final CellSet _searched;
+
+  private final CellSet _occupied;
+
+  AlignmentFootprint() {
+    _searched = new CellSet(new long[64], 0);
+    _occupied = new CellSet(new long[64], 0);
+  }
+
+  /**
+   * Creates a footprint from the arrays returned by {@link #searched()} and
+   * {@link #occupied()}.
+   */
+  AlignmentFootprint(long[] searched, long[] occupied) {
+    _searched = new CellSet(searched, searched.length);
+    _occupied = new CellSet(occupied, occupied.length);
+  }
+
+  void searched(Coordinate a, Coordinate b, double radius) {
+    _searched.addAll(SpatialGrid.cells(CELL_METERS, a, b, radius));
+  }
+
+  void occupied(Coordinate a, Coordinate b) {
+    _occupied.addAll(SpatialGrid.cells(CELL_METERS, a, b, 0.0));
+  }
+
+  /**
+   * @return the searched cells, sorted and without duplicates
+   */
+  long[] searched() {
+    return _searched.toArray();
+  }
+
+  /**
+   * @return the occupied cells, sorted and without duplicates
+   */
+  long[] occupied() {
+    return _occupied.toArray();
+  }
+
+  /**
+   * Returns each pair of footprints, as indices {@code {i, j}} with
+   * {@code i < j} in ascending order, where one searched a cell that the other
+   * occupied.
+   */
+  static List<int[]> conflicts(List<AlignmentFootprint> footprints) {
+    int total = 0;
+    for (AlignmentFootprint footprint : footprints) {
+      total += footprint.occupied().length;
+    }
+    int capacity = Integer.highestOneBit(Math.max(total, 4)) * 4;
+    long[] keys = new long[capacity];
+    Arrays.fill(keys, EMPTY_KEY);
+    int[] owners = new int[capacity];
+    // The few cells occupied by more than one footprint, which are only
+    // possible where those footprints conflict anyway.
+    Map<Long, List<Integer>> shared = new HashMap<>();
+    for (int i = 0; i < footprints.size(); ++i) {
+      for (long cell : footprints.get(i).occupied()) {
+        int slot = slot(keys, cell);
+        if (keys[slot] == EMPTY_KEY) {
+          keys[slot] = cell;
+          owners[slot] = i;
+          continue;
+        }
+        if (owners[slot] != SHARED) {
+          List<Integer> cellOwners = new ArrayList<>();
+          cellOwners.add(owners[slot]);
+          shared.put(cell, cellOwners);
+          owners[slot] = SHARED;
+        }
+        shared.get(cell).add(i);
+      }
+    }
+
+    TreeSet<Long> pairs = new TreeSet<>();
+    for (int i = 0; i < footprints.size(); ++i) {
+      for (long cell : footprints.get(i).searched()) {
+        int slot = slot(keys, cell);
+        int owner = keys[slot] == EMPTY_KEY ? NONE : owners[slot];
+        if (owner == SHARED) {
+          for (int other : shared.get(cell)) {
+            addPair(pairs, i, other);
+          }
+        } else if (owner != NONE) {
+          addPair(pairs, i, owner);
+        }
+      }
+    }
+    List<int[]> result = new ArrayList<>(pairs.size());
+    for (long pair : pairs) {
+      result.add(new int[] {(int) (pair >>> 32), (int) pair});
+    }
+    return result;
+  }
+
+  private static void addPair(TreeSet<Long> pairs, int a, int b) {
+    if (a != b) {
+      pairs.add(((long) Math.min(a, b) << 32) | Math.max(a, b));
+    }
+  }
+
+  /**
+   * Returns the slot of an open-addressing table that holds the key, or the
+   * empty slot where it belongs.
+   */
+  private static int slot(long[] keys, long key) {
+    int mask = keys.length - 1;
+    int i = SpatialGrid.hash(key) & mask;
+    while (keys[i] != EMPTY_KEY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * A growable set of cell keys, sorted and deduplicated whenever it fills
+   * up, since consecutive searches mostly cover the same cells.
+   */
+  private static class CellSet {
+    private long[] _cells;
+    private int _count;
+
+    CellSet(long[] cells, int count) {
+      _cells = cells;
+      _count = count;
+    }
+
+    void addAll(long[] cells) {
+      if (_count + cells.length > _cells.length) {
+        compact();
+        if (_count + cells.length > _cells.length / 2) {
+          _cells = Arrays.copyOf(_cells, Math.max(_cells.length, cells.length) * 2);
+        }
+      }
+      System.arraycopy(cells, 0, _cells, _count, cells.length);
+      _count += cells.length;
+    }
+
+    long[] toArray() {
+      compact();
+      if (_count != _cells.length) {
+        _cells = Arrays.copyOf(_cells, _count);
+      }
+      return _cells;
+    }
+
+    private void compact() {
+      Arrays.sort(_cells, 0, _count);
+      int count = 0;
+      for (int i = 0; i < _count; ++i) {
+        if (count == 0 || _cells[i] != _cells[count - 1]) {
+          _cells[count++] = _cells[i];
+        }
+      }
+      _count = count;
+    }
+  }
+}
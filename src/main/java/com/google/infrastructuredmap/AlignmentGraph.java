@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.Collection;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Common API for graphs that "align" similar polylines into combined segments.
+ */
+public abstract class AlignmentGraph {
+
+  static final double SNAP_THRESHOLD_METERS = 15.0;
+
+  /**
+   * The available graph storage implementations.
+   */
+  public enum Backend {
+    /**
+     * Nodes and edges as objects in hash maps. See {@link PolylineAlignmentGraph}.
+     */
+    HASHED,
+
+    /**
+     * Nodes and edges in primitive arrays. See {@link CompactPolylineAlignmentGraph}.
+     */
+    COMPACT;
+
+    public AlignmentGraph create() {
+      switch (this) {
+        case COMPACT:
+          return new CompactPolylineAlignmentGraph();
+        default:
+          return new PolylineAlignmentGraph();
+      }
+    }
+  }
+
+  @Nullable
+  private AlignmentFootprint _footprint;
+
+  public static class Polyline {
+    public Polyline(List<Coordinate> line, Collection<Placemark> placemarks) {
+      this.line = line;
+      this.placemarks = placemarks;
+    }
+    List<Coordinate> line;
+    Collection<Placemark> placemarks;
+  }
+
+  /**
+   * Snaps the point to an existing node or edge of the graph, if one is within
+   * the snap threshold, or otherwise adds it as a new node.
+   *
+   * @return the node for the point
+   */
+  public abstract Coordinate snapToGraph(Coordinate point, @Nullable Coordinate previous);
+
+  /**
+   * Adds an edge for the placemark between two nodes returned by
+   * {@link #snapToGraph}.
+   */
+  public abstract void addEdge(Coordinate from, Coordinate to, Placemark placemark);
+
+  /**
+   * Returns the aligned polylines, each spanning a run of edges shared by the
+   * same placemarks.
+   */
+  public abstract List<Polyline> go();
+
+  /**
+   * Snaps each vertex of the specified polyline to the graph and adds the
+   * resulting edges for the placemark.
+   */
+  public void addPolyline(List<Coordinate> coordinates, Placemark placemark) {
+    Coordinate prev = null;
+    for (Coordinate c : coordinates) {
+      c = snapToGraph(c, prev);
+      addVertex(c, placemark);
+      if (prev != null) {
+        addEdge(prev, c, placemark);
+      }
+      prev = c;
+    }
+  }
+
+  /**
+   * Called by {@link #addPolyline} with the node that each vertex of the
+   * placemark's polyline snapped to.
+   */
+  protected void addVertex(Coordinate node, Placemark placemark) {}
+
+  /**
+   * Records the cells that the graph searches and puts nodes and edges in
+   * from now on.
+   */
+  void setFootprint(@Nullable AlignmentFootprint footprint) {
+    _footprint = footprint;
+  }
+
+  /**
+   * Called before the graph looks for nodes or edges within {@code radius} of
+   * the segment from {@code a} to {@code b}, which may be a single point.
+   */
+  protected final void searched(Coordinate a, Coordinate b, double radius) {
+    if (_footprint != null) {
+      _footprint.searched(a, b, radius);
+    }
+  }
+
+  /**
+   * Called when the graph adds a node at {@code a}, with {@code b} the same
+   * point, or an edge from {@code a} to {@code b}.
+   */
+  protected final void occupied(Coordinate a, Coordinate b) {
+    if (_footprint != null) {
+      _footprint.occupied(a, b);
+    }
+  }
+}
@@ -0,0 +1,428 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.AlignmentGraph.Polyline;
+import com.vividsolutions.jts.geom.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * The aligned polylines from a previous run, persisted so that an unchanged
+ * part of the map does not have to be aligned again.
+ *
+ * Snapping and splitting depend on the order in which polylines are added,
+ * so retracting and re-adding individual placemarks in a single graph could
+ * not reproduce the result of a full rebuild.  Instead, the snapshot stores
+ * the result for each partition aligned by
+ * {@link PartitionedPolylineAlignment}, keyed by a content hash of each of the
+ * partition's placemarks in order, along with its {@link AlignmentFootprint}.
+ * A partition whose placemarks are all unchanged is reused as is, and its
+ * footprint is checked against the partitions around it like that of a newly
+ * aligned one, so the output always matches a full rebuild.
+ *
+ * Each partition also records the keys of the tiles it was merged from, so
+ * that a later alignment can start those tiles off in a single partition
+ * again rather than realigning them one by one before merging them.
+ */
+public class AlignmentSnapshot {
+
+  private static final byte[] MAGIC = {'I', 'S', 'M', 'S'};
+
+  private static final int VERSION = 3;
+
+  private static final int HASH_LENGTH = 32;
+
+  private final Map<Key, CachedPartition> _partitions = new HashMap<>();
+
+  /**
+   * The key of the partition that each tile was merged into.
+   */
+  private final Map<Key, Key> _tilePartitions = new HashMap<>();
+
+  private int _reusedPartitions = 0;
+
+  private int _alignedPartitions = 0;
+
+  /**
+   * Reads a snapshot written by {@link #write}.
+   */
+  public static AlignmentSnapshot read(Path path) throws IOException {
+    AlignmentSnapshot snapshot = new AlignmentSnapshot();
+    try (InputStream stream = Files.newInputStream(path)) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not an alignment snapshot: " + path);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported alignment snapshot version: " + version);
+      }
+      int partitionCount = in.readInt();
+      for (int i = 0; i < partitionCount; ++i) {
+        Key key = readKey(in);
+        CachedPartition partition = new CachedPartition();
+        partition.tiles = new ArrayList<>();
+        for (int j = in.readInt(); j > 0; --j) {
+          partition.tiles.add(readKey(in));
+        }
+        partition.searched = readCells(in);
+        partition.occupied = readCells(in);
+        int polylineCount = in.readInt();
+        partition.polylines = new ArrayList<>(polylineCount);
+        for (int j = 0; j < polylineCount; ++j) {
+          CachedPolyline polyline = new CachedPolyline();
+          polyline.line = new Coordinate[in.readInt()];
+          for (int k = 0; k < polyline.line.length; ++k) {
+            double x = in.readDouble();
+            double y = in.readDouble();
+            if (in.readBoolean()) {
+              double latitude = in.readDouble();
+              double longitude = in.readDouble();
+              polyline.line[k] = new GeographicCoordinate(x, y, latitude, longitude);
+            } else {
+              polyline.line[k] = new Coordinate(x, y);
+            }
+          }
+          polyline.placemarks = new int[in.readInt()];
+          for (int k = 0; k < polyline.placemarks.length; ++k) {
+            polyline.placemarks[k] = in.readInt();
+          }
+          partition.polylines.add(polyline);
+        }
+        snapshot._partitions.put(key, partition);
+      }
+    }
+    snapshot.indexTiles();
+    return snapshot;
+  }
+
+  /**
+   * Writes the snapshot, replacing any existing file atomically.
+   */
+  public void write(Path path) throws IOException {
+    Path absolute = path.toAbsolutePath();
+    Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(_partitions.size());
+        for (Map.Entry<Key, CachedPartition> entry : _partitions.entrySet()) {
+          writeKey(out, entry.getKey());
+          CachedPartition partition = entry.getValue();
+          out.writeInt(partition.tiles.size());
+          for (Key tile : partition.tiles) {
+            writeKey(out, tile);
+          }
+          writeCells(out, partition.searched);
+          writeCells(out, partition.occupied);
+          out.writeInt(partition.polylines.size());
+          for (CachedPolyline polyline : partition.polylines) {
+            out.writeInt(polyline.line.length);
+            for (Coordinate c : polyline.line) {
+              out.writeDouble(c.x);
+              out.writeDouble(c.y);
+              out.writeBoolean(c instanceof GeographicCoordinate);
+              if (c instanceof GeographicCoordinate) {
+                out.writeDouble(((GeographicCoordinate) c).latitude);
+                out.writeDouble(((GeographicCoordinate) c).longitude);
+              }
+            }
+            out.writeInt(polyline.placemarks.length);
+            for (int placemark : polyline.placemarks) {
+              out.writeInt(placemark);
+            }
+          }
+        }
+        out.flush();
+      }
+      Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * @return the number of partitions reused from the snapshot by the last
+   *     alignment
+   */
+  public int getReusedPartitionCount() {
+    return _reusedPartitions;
+  }
+
+  /**
+   * @return the number of partitions aligned from scratch by the last
+   *     alignment, including those that were then merged with others
+   */
+  public int getAlignedPartitionCount() {
+    return _alignedPartitions;
+  }
+
+  /**
+   * Returns the key for a partition with the specified polylines, in the
+   * order they were added.
+   */
+  static Key key(List<Placemark> placemarks, List<List<Coordinate>> lines) {
+    byte[] hashes = new byte[placemarks.size() * HASH_LENGTH];
+    for (int i = 0; i < placemarks.size(); ++i) {
+      byte[] hash = hash(placemarks.get(i), lines.get(i));
+      System.arraycopy(hash, 0, hashes, i * HASH_LENGTH, HASH_LENGTH);
+    }
+    return new Key(hashes);
+  }
+
+  /**
+   * Returns the cached polylines for a partition, with placemarks from the
+   * current run, or null if the partition has changed.
+   */
+  @Nullable
+  List<Polyline> get(Key key, List<Placemark> placemarks) {
+    CachedPartition partition = _partitions.get(key);
+    if (partition == null) {
+      return null;
+    }
+    List<Polyline> polylines = new ArrayList<>(partition.polylines.size());
+    for (CachedPolyline polyline : partition.polylines) {
+      List<Placemark> polylinePlacemarks = new ArrayList<>(polyline.placemarks.length);
+      for (int index : polyline.placemarks) {
+        polylinePlacemarks.add(placemarks.get(index));
+      }
+      polylines.add(new Polyline(new ArrayList<>(Arrays.asList(polyline.line)),
+          polylinePlacemarks));
+    }
+    return polylines;
+  }
+
+  /**
+   * Returns the footprint of the graph that aligned a partition, or null if
+   * the partition has changed.
+   */
+  @Nullable
+  AlignmentFootprint getFootprint(Key key) {
+    CachedPartition partition = _partitions.get(key);
+    if (partition == null) {
+      return null;
+    }
+    return new AlignmentFootprint(partition.searched, partition.occupied);
+  }
+
+  /**
+   * Returns the key of the partition that a tile was merged into, or null if
+   * the tile has changed.
+   */
+  @Nullable
+  Key getPartition(Key tile) {
+    return _tilePartitions.get(tile);
+  }
+
+  /**
+   * Stores the polylines of a partition, along with the keys of the tiles it
+   * was merged from.
+   */
+  void put(Key key, List<Polyline> polylines, List<Placemark> placemarks,
+      AlignmentFootprint footprint, List<Key> tiles) {
+    Map<Placemark, Integer> indices = new IdentityHashMap<>();
+    for (Placemark placemark : placemarks) {
+      indices.put(placemark, indices.size());
+    }
+    CachedPartition partition = new CachedPartition();
+    partition.tiles = new ArrayList<>(tiles);
+    partition.searched = footprint.searched();
+    partition.occupied = footprint.occupied();
+    partition.polylines = new ArrayList<>(polylines.size());
+    for (Polyline polyline : polylines) {
+      CachedPolyline entry = new CachedPolyline();
+      entry.line = polyline.line.toArray(new Coordinate[polyline.line.size()]);
+      entry.placemarks = new int[polyline.placemarks.size()];
+      int i = 0;
+      for (Placemark placemark : polyline.placemarks) {
+        entry.placemarks[i++] = indices.get(placemark);
+      }
+      partition.polylines.add(entry);
+    }
+    _partitions.put(key, partition);
+  }
+
+  /**
+   * Drops every partition that isn't in {@code keys} and records the
+   * statistics of the alignment that produced them.
+   */
+  void retain(Collection<Key> keys, int reusedPartitions, int alignedPartitions) {
+    Iterator<Key> it = _partitions.keySet().iterator();
+    while (it.hasNext()) {
+      if (!keys.contains(it.next())) {
+        it.remove();
+      }
+    }
+    indexTiles();
+    _reusedPartitions = reusedPartitions;
+    _alignedPartitions = alignedPartitions;
+  }
+
+  private void indexTiles() {
+    _tilePartitions.clear();
+    for (Map.Entry<Key, CachedPartition> entry : _partitions.entrySet()) {
+      for (Key tile : entry.getValue().tiles) {
+        _tilePartitions.put(tile, entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Hashes everything about a polyline that affects its alignment: the
+   * placemark name, and each projected and source coordinate.
+   */
+  private static byte[] hash(Placemark placemark, List<Coordinate> line) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    String name = placemark.getName();
+    byte[] buffer = new byte[33];
+    if (name != null) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      putInt(buffer, 0, bytes.length);
+      digest.update(buffer, 0, 4);
+      digest.update(bytes);
+    } else {
+      putInt(buffer, 0, -1);
+      digest.update(buffer, 0, 4);
+    }
+    for (Coordinate c : line) {
+      putLong(buffer, 0, Double.doubleToLongBits(c.x));
+      putLong(buffer, 8, Double.doubleToLongBits(c.y));
+      if (c instanceof GeographicCoordinate) {
+        buffer[16] = 1;
+        putLong(buffer, 17, Double.doubleToLongBits(((GeographicCoordinate) c).latitude));
+        putLong(buffer, 25, Double.doubleToLongBits(((GeographicCoordinate) c).longitude));
+        digest.update(buffer, 0, 33);
+      } else {
+        buffer[16] = 0;
+        digest.update(buffer, 0, 17);
+      }
+    }
+    return digest.digest();
+  }
+
+  private static Key readKey(DataInputStream in) throws IOException {
+    byte[] hashes = new byte[in.readInt() * HASH_LENGTH];
+    in.readFully(hashes);
+    return new Key(hashes);
+  }
+
+  private static void writeKey(DataOutputStream out, Key key) throws IOException {
+    out.writeInt(key.hashes.length / HASH_LENGTH);
+    out.write(key.hashes);
+  }
+
+  private static long[] readCells(DataInputStream in) throws IOException {
+    long[] cells = new long[in.readInt()];
+    for (int i = 0; i < cells.length; ++i) {
+      cells[i] = in.readLong();
+    }
+    return cells;
+  }
+
+  private static void writeCells(DataOutputStream out, long[] cells) throws IOException {
+    out.writeInt(cells.length);
+    for (long cell : cells) {
+      out.writeLong(cell);
+    }
+  }
+
+  private static void putInt(byte[] buffer, int offset, int value) {
+    for (int i = 0; i < 4; ++i) {
+      buffer[offset + i] = (byte) (value >>> (24 - 8 * i));
+    }
+  }
+
+  private static void putLong(byte[] buffer, int offset, long value) {
+    for (int i = 0; i < 8; ++i) {
+      buffer[offset + i] = (byte) (value >>> (56 - 8 * i));
+    }
+  }
+
+  private static class CachedPartition {
+    List<CachedPolyline> polylines;
+
+    // The keys of the tiles the partition was merged from.
+    List<Key> tiles;
+
+    // The sorted cells of the partition's footprint.
+    long[] searched;
+    long[] occupied;
+  }
+
+  private static class CachedPolyline {
+    Coordinate[] line;
+
+    /**
+     * Indices of the placemarks within the partition.
+     */
+    int[] placemarks;
+  }
+
+  /**
+   * The concatenated content hashes of a partition's placemarks.
+   */
+  static final class Key {
+    private final byte[] hashes;
+    private final int hash;
+
+    Key(byte[] hashes) {
+      this.hashes = hashes;
+      this.hash = Arrays.hashCode(hashes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && Arrays.equals(hashes, ((Key) obj).hashes);
+    }
+  }
+}
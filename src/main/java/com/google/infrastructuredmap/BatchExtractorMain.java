@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.gson.Gson;
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Application to run {@link MapAndMarkdownExtractorMain} for many maps in a
+ * single process, so that JVM startup, class loading and the decoding of the
+ * coordinate transforms are paid once rather than once per map.
+ *
+ * The maps are listed in a JSON manifest, an array of objects with the same
+ * fields as the command line of {@link MapAndMarkdownExtractorMain}:
+ *
+ * <pre>
+ * [
+ *   {"kml": "seattle.kml", "markdown": "seattle.md", "output": "seattle.js",
+ *    "jsonp": "var DATA = %s;"},
+ *   {"kml": "tacoma.kml", "markdown": "tacoma.md", "output": "tacoma.bin",
+ *    "binary": true},
+ *   {"kml": "boston.kml", "markdown": "boston.md", "output": "boston.js",
+ *    "crs": "auto", "snapshot": "boston.snapshot"}
+ * ]
+ * </pre>
+ *
+ * Relative paths are resolved against the directory of the manifest.  Jobs
+ * run concurrently on a fixed number of threads, and a job that fails doesn't
+ * stop the others.  The options that control extraction, including
+ * {@code -cache}, are the same as for {@link MapAndMarkdownExtractorMain} and
+ * apply to every job.
+ */
+public class BatchExtractorMain {
+  private static final String ARG_MANIFEST = "manifest";
+  private static final String ARG_THREADS = "threads";
+
+  /**
+   * A single map in the manifest.
+   */
+  static class Job {
+    public String kml;
+    public String markdown;
+    public String output;
+    public String jsonp;
+    public boolean binary;
+
+    /**
+     * If true, output is a directory of tiles, as for
+     * {@link MapDataWriter#writeTiles}.
+     */
+    public boolean tiled;
+
+    /**
+     * If true, JSON output is written as
+     * {@link com.google.infrastructuredmap.model.InternedMapData}.
+     */
+    public boolean interned;
+
+    /**
+     * The projected CRS to align the map in, as for
+     * {@link MapDataExtractor.Options#crs}, instead of the one given on the
+     * command line.
+     */
+    public String crs;
+
+    /**
+     * The path of the map's alignment snapshot, as for the {@code -snapshot}
+     * option of {@link MapAndMarkdownExtractorMain}.
+     */
+    public String snapshot;
+  }
+
+  /**
+   * How long each stage of a job took, in milliseconds.
+   */
+  private static class JobTimings {
+    long kml;
+    long markdown;
+    long write;
+
+    /**
+     * True if the output was kept, since the job's inputs haven't changed.
+     */
+    boolean upToDate;
+  }
+
+  public static void main(String[] args) throws IOException, ParseException, InterruptedException {
+    Options options = ExtractorOptions.create();
+    options.addOption(ARG_MANIFEST, true, "path to a JSON manifest of maps to generate");
+    options.addOption(ARG_THREADS, true, "number of maps to generate at once, by default one per core");
+
+    CommandLineParser parser = new DefaultParser();
+    CommandLine cli = parser.parse(options, args);
+    if (!cli.hasOption(ARG_MANIFEST)) {
+      throw new ParseException("Missing -" + ARG_MANIFEST);
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (cli.hasOption(ARG_THREADS)) {
+      try {
+        threads = Integer.parseInt(cli.getOptionValue(ARG_THREADS));
+      } catch (NumberFormatException ex) {
+        throw new ParseException("Invalid -" + ARG_THREADS + ": " + cli.getOptionValue(ARG_THREADS));
+      }
+      if (threads < 1) {
+        throw new ParseException("Invalid -" + ARG_THREADS + ": " + threads);
+      }
+    }
+
+    Path manifestPath = Paths.get(cli.getOptionValue(ARG_MANIFEST)).toAbsolutePath();
+    Job[] jobs;
+    try (Reader in = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+      jobs = new Gson().fromJson(in, Job[].class);
+    }
+    if (jobs == null) {
+      jobs = new Job[0];
+    }
+    for (Job job : jobs) {
+      if (job.kml == null || job.markdown == null || job.output == null) {
+        throw new IllegalArgumentException("Manifest jobs need kml, markdown and output paths");
+      }
+      try {
+        ExtractorOptions.checkOutputFormat(job.binary, job.jsonp, job.tiled, job.interned);
+      } catch (IllegalArgumentException ex) {
+        throw new IllegalArgumentException(ex.getMessage() + ": " + job.output, ex);
+      }
+    }
+
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, jobs.length)));
+    List<Future<JobTimings>> results = new ArrayList<>();
+    try {
+      for (Job job : jobs) {
+        results.add(executor.submit(createTask(job, manifestPath.getParent(), cli, args)));
+      }
+      int failures = 0;
+      for (int i = 0; i < jobs.length; ++i) {
+        try {
+          JobTimings timings = results.get(i).get();
+          if (timings.upToDate) {
+            System.err.println(jobs[i].output + ": inputs unchanged, kept");
+            continue;
+          }
+          System.err.println(jobs[i].output + ": " + (timings.kml + timings.markdown + timings.write)
+              + " ms (kml " + timings.kml + " ms, markdown " + timings.markdown + " ms, write "
+              + timings.write + " ms)");
+        } catch (ExecutionException ex) {
+          failures++;
+          System.err.println(jobs[i].output + ": failed: " + ex.getCause());
+        }
+      }
+      System.err.println(jobs.length + " maps in " + elapsedMillis(start) + " ms");
+      if (failures > 0) {
+        throw new IllegalStateException(failures + " of " + jobs.length + " maps failed");
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @param args the command line, which with the job itself determines the
+   *     job's output
+   */
+  private static Callable<JobTimings> createTask(final Job job, final Path baseDir,
+      CommandLine cli, String[] args) {
+    final MapDataExtractor.Options extractorOptions = ExtractorOptions.extractorOptions(cli);
+    if (job.crs != null) {
+      extractorOptions.crs = job.crs;
+    }
+    final MarkdownReferenceExtractor.Parser markdownParser = ExtractorOptions.markdownParser(cli);
+    final SourceCache cache = ExtractorOptions.cache(cli);
+    final List<String> settings = new ArrayList<>(Arrays.asList(args));
+    settings.add(new Gson().toJson(job));
+    return new Callable<JobTimings>() {
+      @Override
+      public JobTimings call() throws Exception {
+        JobTimings timings = new JobTimings();
+        long start = System.nanoTime();
+        String kml = MapAndMarkdownExtractorMain.isUrl(job.kml)
+            ? job.kml : baseDir.resolve(job.kml).toString();
+        String markdown = baseDir.resolve(job.markdown).toString();
+        Path output = baseDir.resolve(job.output);
+        String fingerprint = null;
+        if (cache != null) {
+          MapAndMarkdownExtractorMain.CachedInputs inputs =
+              MapAndMarkdownExtractorMain.readThroughCache(cache, kml, markdown, settings);
+          if (cache.isUpToDate(output, inputs.fingerprint)) {
+            timings.upToDate = true;
+            return timings;
+          }
+          kml = inputs.kml;
+          fingerprint = inputs.fingerprint;
+        }
+        Path snapshotPath = job.snapshot != null ? baseDir.resolve(job.snapshot) : null;
+        if (snapshotPath != null) {
+          extractorOptions.snapshot = MapAndMarkdownExtractorMain.readSnapshot(snapshotPath);
+        }
+        MapData data = MapAndMarkdownExtractorMain.extractMapData(kml, extractorOptions,
+            snapshotPath);
+        timings.kml = elapsedMillis(start);
+
+        start = System.nanoTime();
+        Map<String, List<ProjectReference>> references =
+            MapAndMarkdownExtractorMain.extractReferences(markdown, markdownParser, null);
+        MapAndMarkdownExtractorMain.linkReferences(data, references);
+        timings.markdown = elapsedMillis(start);
+
+        start = System.nanoTime();
+        MapAndMarkdownExtractorMain.writeOutput(data, output, job.binary, job.jsonp, job.tiled,
+            job.interned);
+        if (fingerprint != null) {
+          cache.setUpToDate(output, fingerprint);
+        }
+        timings.write = elapsedMillis(start);
+        return timings;
+      }
+    };
+  }
+
+  private static long elapsedMillis(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+}
@@ -0,0 +1,692 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineSegment;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A memory-compact implementation of the same alignment algorithm as
+ * {@link PolylineAlignmentGraph}, producing the same polylines.
+ *
+ * Node coordinates live in parallel {@code double[]} arrays indexed by int
+ * node id. The directed edges leaving each node form a linked list of "slots"
+ * in growable int arrays. Each slot refers to an interned placemark sequence
+ * id, so the many edges that share the same ordered placemarks share a single
+ * array. The spatial indexes are {@link IntSpatialGrid}s of the same ids, so
+ * no objects are allocated per node or per edge, nor for the ids an index
+ * query returns.
+ *
+ * Nodes added for a {@link GeographicCoordinate} also keep its WGS84 values,
+ * and are returned as one, as {@link PolylineAlignmentGraph} returns the
+ * coordinate it was given.
+ */
+public class CompactPolylineAlignmentGraph extends AlignmentGraph {
+
+  private static final int NONE = -1;
+
+  // Nodes.
+  private int nodeCount = 0;
+  private double[] nodeX = new double[16];
+  private double[] nodeY = new double[16];
+  // The source WGS84 values of each node, or NaN for nodes that weren't added
+  // for a GeographicCoordinate.
+  private double[] nodeLatitude = new double[16];
+  private double[] nodeLongitude = new double[16];
+  private int[] nodeFirstSlot = new int[16];
+  private int[] nodeLastSlot = new int[16];
+
+  /**
+   * Open-addressing hash table from node coordinate to node id.
+   */
+  private int[] nodeTable = newTable(64);
+
+  // Directed edge slots, chained per node in insertion order.
+  private int slotCount = 0;
+  private int freeSlot = NONE;
+  private int[] slotNext = new int[16];
+  private int[] slotTarget = new int[16];
+  private int[] slotSequence = new int[16];
+  private int[] slotEdge = new int[16];
+
+  // Undirected edges, stored in the canonical orientation where a < b.
+  private int edgeCount = 0;
+  private int[] edgeA = new int[16];
+  private int[] edgeB = new int[16];
+
+  private final IntSpatialGrid nodeIndex = new IntSpatialGrid(SNAP_THRESHOLD_METERS);
+  private final IntSpatialGrid edgeIndex = new IntSpatialGrid(SNAP_THRESHOLD_METERS);
+
+  private final PlacemarkSequences sequences = new PlacemarkSequences();
+
+  // Scratch geometry, reused to avoid allocating per comparison.
+  private final LineSegment scratchSegment = new LineSegment();
+  private final Coordinate scratchPoint = new Coordinate();
+
+  public CompactPolylineAlignmentGraph() {}
+
+  @Override
+  public Coordinate snapToGraph(Coordinate point, @Nullable Coordinate previous) {
+    int previousNode = previous != null ? findNode(previous.x, previous.y) : NONE;
+    int node = snapToNode(point, previousNode);
+    if (node != NONE) {
+      return vertex(node);
+    }
+
+    Coordinate snapped = snapToEdge(point, previous);
+    if (snapped != null) {
+      return snapped;
+    }
+
+    return vertex(addNode(point));
+  }
+
+  @Override
+  public void addEdge(Coordinate from, Coordinate to, Placemark placemark) {
+    if (from.equals(to)) {
+      throw new IllegalStateException("bad edge: from=" + from + " to=" + to);
+    }
+    addEdge(requireNode(from), requireNode(to), sequences.placemarkId(placemark));
+  }
+
+  private void addEdge(int from, int to, int placemark) {
+    // If there isn't already an existing edge...
+    if (findSlot(from, to) == NONE) {
+      if (splitEdgeAtIntermediatePoint(from, to, placemark)) {
+        return;
+      }
+      if (splitEdgeAtIntersectingEdge(from, to, placemark)) {
+        return;
+      }
+    }
+    addEdgeInternal(from, to, placemark);
+  }
+
+  private boolean splitEdgeAtIntermediatePoint(int from, int to, int placemark) {
+    LineSegment segment = new LineSegment(coordinate(from), coordinate(to));
+    double minValue = SNAP_THRESHOLD_METERS;
+    int minNode = NONE;
+    searched(segment.p0, segment.p1, SNAP_THRESHOLD_METERS);
+    int found = nodeIndex.query(segment.p0.x, segment.p0.y, segment.p1.x, segment.p1.y,
+        SNAP_THRESHOLD_METERS);
+    for (int i = 0; i < found; ++i) {
+      int node = nodeIndex.result(i);
+      Coordinate nodePoint = set(scratchPoint, node);
+      Coordinate edgePoint = segment.closestPoint(nodePoint);
+      if (edgePoint.equals2D(segment.p0) || edgePoint.equals2D(segment.p1)) {
+        continue;
+      }
+      double d = edgePoint.distance(nodePoint);
+      if (d < minValue) {
+        minValue = d;
+        minNode = node;
+      }
+    }
+    if (minNode != NONE) {
+      addEdge(from, minNode, placemark);
+      addEdge(minNode, to, placemark);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean splitEdgeAtIntersectingEdge(int from, int to, int placemark) {
+    LineSegment segment = new LineSegment(coordinate(from), coordinate(to));
+    // Split at the crossing closest to the start of the new edge, matching
+    // PolylineAlignmentGraph.
+    double minDistance = Double.POSITIVE_INFINITY;
+    int minEdge = NONE;
+    Coordinate minPoint = null;
+    searched(segment.p0, segment.p1, 0.0);
+    int found = edgeIndex.query(segment.p0.x, segment.p0.y, segment.p1.x, segment.p1.y, 0.0);
+    for (int i = 0; i < found; ++i) {
+      int edge = edgeIndex.result(i);
+      LineSegment edgeSegment = edgeSegment(edge);
+      Coordinate point = segment.intersection(edgeSegment);
+      if (point != null && isOk(edgeSegment, point) && isOk(segment, point)) {
+        double d = segment.p0.distance(point);
+        if (d < minDistance) {
+          minDistance = d;
+          minEdge = edge;
+          minPoint = point;
+        }
+      }
+    }
+    if (minPoint != null) {
+      int mid = splitEdge(minEdge, minPoint);
+      addEdge(from, mid, placemark);
+      addEdge(mid, to, placemark);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean isOk(LineSegment edge, Coordinate point) {
+    return edge.p0.distance(point) > SNAP_THRESHOLD_METERS && edge.p1.distance(point) > SNAP_THRESHOLD_METERS;
+  }
+
+  private void addEdgeInternal(int from, int to, int placemark) {
+    int slot = findSlot(from, to);
+    if (slot == NONE) {
+      int edge = addUndirectedEdge(from, to);
+      appendSlot(from, to, PlacemarkSequences.EMPTY, edge);
+      appendSlot(to, from, PlacemarkSequences.EMPTY, edge);
+      slot = findSlot(from, to);
+    }
+    setSequence(slot, sequences.append(slotSequence[slot], placemark));
+    int reverseSlot = findSlot(to, from);
+    setSequence(reverseSlot, sequences.prepend(placemark, slotSequence[reverseSlot]));
+  }
+
+  private int snapToNode(Coordinate point, int previousNode) {
+    double minDistance = SNAP_THRESHOLD_METERS;
+    int minNode = NONE;
+    searched(point, point, SNAP_THRESHOLD_METERS);
+    int found = nodeIndex.query(point.x, point.y, SNAP_THRESHOLD_METERS);
+    for (int i = 0; i < found; ++i) {
+      int node = nodeIndex.result(i);
+      if (node == previousNode) {
+        continue;
+      }
+      double d = point.distance(set(scratchPoint, node));
+      if (d < minDistance) {
+        minDistance = d;
+        minNode = node;
+      }
+    }
+    return minNode;
+  }
+
+  private Coordinate snapToEdge(Coordinate point, @Nullable Coordinate previous) {
+    double minDistance = SNAP_THRESHOLD_METERS;
+    int minEdge = NONE;
+    Coordinate minSnappedPoint = null;
+
+    searched(point, point, SNAP_THRESHOLD_METERS);
+    int found = edgeIndex.query(point.x, point.y, SNAP_THRESHOLD_METERS);
+    for (int i = 0; i < found; ++i) {
+      int edge = edgeIndex.result(i);
+      Coordinate snapped = edgeSegment(edge).closestPoint(point);
+      if (snapped.equals(previous)) {
+        continue;
+      }
+      double d = point.distance(snapped);
+      if (d < minDistance) {
+        minDistance = d;
+        minEdge = edge;
+        // The closest point may be one of the scratch segment's endpoints.
+        minSnappedPoint = new Coordinate(snapped);
+      }
+    }
+
+    if (minSnappedPoint == null) {
+      return null;
+    }
+
+    splitEdge(minEdge, minSnappedPoint);
+
+    return minSnappedPoint;
+  }
+
+  /**
+   * Splits the specified edge in two at the specified point, adding a node
+   * that inherits the placemarks of the original edge in both directions.
+   *
+   * @return the id of the new node
+   */
+  private int splitEdge(int edge, Coordinate midPoint) {
+    int from = edgeA[edge];
+    int to = edgeB[edge];
+    int mid = addNode(midPoint);
+
+    int forward = removeSlot(from, to);
+    int reverse = removeSlot(to, from);
+
+    edgeIndex.remove(nodeX[from], nodeY[from], nodeX[to], nodeY[to], edge);
+    setEdge(edge, from, mid);
+    int otherEdge = addUndirectedEdge(mid, to);
+
+    appendSlot(from, mid, forward, edge);
+    appendSlot(to, mid, reverse, otherEdge);
+    appendSlot(mid, from, reverse, edge);
+    appendSlot(mid, to, forward, otherEdge);
+    sequences.release(forward);
+    sequences.release(reverse);
+    return mid;
+  }
+
+  @Override
+  public List<Polyline> go() {
+    List<Polyline> polylines = new ArrayList<>();
+    BitSet visitedEdges = new BitSet(edgeCount);
+
+    // Visit nodes in coordinate order, matching PolylineAlignmentGraph.
+    Integer[] order = new Integer[nodeCount];
+    for (int i = 0; i < nodeCount; ++i) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        return CompactPolylineAlignmentGraph.this.compare(lhs, rhs);
+      }
+    });
+
+    for (int node : order) {
+      for (int slot = nodeFirstSlot[node]; slot != NONE; slot = slotNext[slot]) {
+        if (visitedEdges.get(slotEdge[slot])) {
+          continue;
+        }
+        if (!hasMatchingOutgoing(node, slot)) {
+          List<Coordinate> line = new ArrayList<>();
+          exploreEdgesWithSamePlacemarks(node, slotSequence[slot], line, visitedEdges);
+          polylines.add(new Polyline(line, sequences.placemarks(slotSequence[slot])));
+        }
+      }
+    }
+    return polylines;
+  }
+
+  private boolean hasMatchingOutgoing(int node, int sourceSlot) {
+    int reversed = sequences.reverse(slotSequence[sourceSlot]);
+    for (int slot = nodeFirstSlot[node]; slot != NONE; slot = slotNext[slot]) {
+      if (slot != sourceSlot && slotSequence[slot] == reversed) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void exploreEdgesWithSamePlacemarks(int node, int sequence, List<Coordinate> outputPoints,
+      BitSet visitedEdges) {
+    int prev = NONE;
+    while (node != NONE) {
+      outputPoints.add(vertex(node));
+      int next = NONE;
+      for (int slot = nodeFirstSlot[node]; slot != NONE; slot = slotNext[slot]) {
+        if (slotSequence[slot] == sequence && slotTarget[slot] != prev) {
+          if (visitedEdges.get(slotEdge[slot])) {
+            continue;
+          }
+          visitedEdges.set(slotEdge[slot]);
+          prev = node;
+          next = slotTarget[slot];
+          break;
+        }
+      }
+      node = next;
+    }
+  }
+
+  /****************************************************************************
+   * Nodes
+   ****************************************************************************/
+
+  private int addNode(Coordinate point) {
+    int existing = findNode(point.x, point.y);
+    if (existing != NONE) {
+      return existing;
+    }
+    if (nodeCount == nodeX.length) {
+      int capacity = nodeCount * 2;
+      nodeX = Arrays.copyOf(nodeX, capacity);
+      nodeY = Arrays.copyOf(nodeY, capacity);
+      nodeLatitude = Arrays.copyOf(nodeLatitude, capacity);
+      nodeLongitude = Arrays.copyOf(nodeLongitude, capacity);
+      nodeFirstSlot = Arrays.copyOf(nodeFirstSlot, capacity);
+      nodeLastSlot = Arrays.copyOf(nodeLastSlot, capacity);
+    }
+    int node = nodeCount++;
+    nodeX[node] = point.x;
+    nodeY[node] = point.y;
+    if (point instanceof GeographicCoordinate) {
+      nodeLatitude[node] = ((GeographicCoordinate) point).latitude;
+      nodeLongitude[node] = ((GeographicCoordinate) point).longitude;
+    } else {
+      nodeLatitude[node] = Double.NaN;
+      nodeLongitude[node] = Double.NaN;
+    }
+    nodeFirstSlot[node] = NONE;
+    nodeLastSlot[node] = NONE;
+
+    if (nodeCount * 2 > nodeTable.length) {
+      nodeTable = newTable(nodeTable.length * 2);
+      for (int i = 0; i < nodeCount; ++i) {
+        insertIntoTable(i);
+      }
+    } else {
+      insertIntoTable(node);
+    }
+    nodeIndex.insert(nodeX[node], nodeY[node], node);
+    occupied(coordinate(node), coordinate(node));
+    return node;
+  }
+
+  private int requireNode(Coordinate c) {
+    int node = findNode(c.x, c.y);
+    if (node == NONE) {
+      throw new IllegalStateException("unknown node: " + c);
+    }
+    return node;
+  }
+
+  private int findNode(double x, double y) {
+    int mask = nodeTable.length - 1;
+    for (int i = hash(x, y) & mask; nodeTable[i] != NONE; i = (i + 1) & mask) {
+      int node = nodeTable[i];
+      if (nodeX[node] == x && nodeY[node] == y) {
+        return node;
+      }
+    }
+    return NONE;
+  }
+
+  private void insertIntoTable(int node) {
+    int mask = nodeTable.length - 1;
+    int i = hash(nodeX[node], nodeY[node]) & mask;
+    while (nodeTable[i] != NONE) {
+      i = (i + 1) & mask;
+    }
+    nodeTable[i] = node;
+  }
+
+  private static int[] newTable(int capacity) {
+    int[] table = new int[capacity];
+    Arrays.fill(table, NONE);
+    return table;
+  }
+
+  private static int hash(double x, double y) {
+    // Adding 0.0 folds -0.0 into 0.0, matching Coordinate.equals().
+    long bits = Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0);
+    int h = (int) (bits ^ (bits >>> 32));
+    return h ^ (h >>> 16);
+  }
+
+  private Coordinate coordinate(int node) {
+    return new Coordinate(nodeX[node], nodeY[node]);
+  }
+
+  /**
+   * Returns the node's coordinate for callers and output, with its source
+   * WGS84 values if it has them.
+   */
+  private Coordinate vertex(int node) {
+    if (Double.isNaN(nodeLatitude[node])) {
+      return coordinate(node);
+    }
+    return new GeographicCoordinate(nodeX[node], nodeY[node], nodeLatitude[node],
+        nodeLongitude[node]);
+  }
+
+  private Coordinate set(Coordinate c, int node) {
+    c.x = nodeX[node];
+    c.y = nodeY[node];
+    return c;
+  }
+
+  /****************************************************************************
+   * Edges
+   ****************************************************************************/
+
+  private int addUndirectedEdge(int a, int b) {
+    if (edgeCount == edgeA.length) {
+      edgeA = Arrays.copyOf(edgeA, edgeCount * 2);
+      edgeB = Arrays.copyOf(edgeB, edgeCount * 2);
+    }
+    int edge = edgeCount++;
+    setEdge(edge, a, b);
+    return edge;
+  }
+
+  private void setEdge(int edge, int a, int b) {
+    if (compare(a, b) > 0) {
+      int tmp = a;
+      a = b;
+      b = tmp;
+    }
+    edgeA[edge] = a;
+    edgeB[edge] = b;
+    edgeIndex.insert(nodeX[a], nodeY[a], nodeX[b], nodeY[b], edge);
+    occupied(coordinate(a), coordinate(b));
+  }
+
+  /**
+   * Compares two nodes by coordinate, matching {@link Coordinate#compareTo}.
+   */
+  private int compare(int a, int b) {
+    if (nodeX[a] < nodeX[b]) {
+      return -1;
+    }
+    if (nodeX[a] > nodeX[b]) {
+      return 1;
+    }
+    if (nodeY[a] < nodeY[b]) {
+      return -1;
+    }
+    if (nodeY[a] > nodeY[b]) {
+      return 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the edge as a segment in its canonical orientation. The segment is
+   * shared scratch space, only valid until the next call.
+   */
+  private LineSegment edgeSegment(int edge) {
+    set(scratchSegment.p0, edgeA[edge]);
+    set(scratchSegment.p1, edgeB[edge]);
+    return scratchSegment;
+  }
+
+  private int findSlot(int from, int to) {
+    for (int slot = nodeFirstSlot[from]; slot != NONE; slot = slotNext[slot]) {
+      if (slotTarget[slot] == to) {
+        return slot;
+      }
+    }
+    return NONE;
+  }
+
+  private void appendSlot(int from, int to, int sequence, int edge) {
+    int slot = freeSlot;
+    if (slot != NONE) {
+      freeSlot = slotNext[slot];
+    } else {
+      if (slotCount == slotNext.length) {
+        int capacity = slotCount * 2;
+        slotNext = Arrays.copyOf(slotNext, capacity);
+        slotTarget = Arrays.copyOf(slotTarget, capacity);
+        slotSequence = Arrays.copyOf(slotSequence, capacity);
+        slotEdge = Arrays.copyOf(slotEdge, capacity);
+      }
+      slot = slotCount++;
+    }
+    slotNext[slot] = NONE;
+    slotTarget[slot] = to;
+    slotSequence[slot] = sequence;
+    sequences.retain(sequence);
+    slotEdge[slot] = edge;
+    if (nodeLastSlot[from] == NONE) {
+      nodeFirstSlot[from] = slot;
+    } else {
+      slotNext[nodeLastSlot[from]] = slot;
+    }
+    nodeLastSlot[from] = slot;
+  }
+
+  private void setSequence(int slot, int sequence) {
+    sequences.retain(sequence);
+    sequences.release(slotSequence[slot]);
+    slotSequence[slot] = sequence;
+  }
+
+  /**
+   * Removes the slot for the directed edge and returns its placemark sequence,
+   * which the caller must release.
+   */
+  private int removeSlot(int from, int to) {
+    int prev = NONE;
+    for (int slot = nodeFirstSlot[from]; slot != NONE; prev = slot, slot = slotNext[slot]) {
+      if (slotTarget[slot] != to) {
+        continue;
+      }
+      if (prev == NONE) {
+        nodeFirstSlot[from] = slotNext[slot];
+      } else {
+        slotNext[prev] = slotNext[slot];
+      }
+      if (nodeLastSlot[from] == slot) {
+        nodeLastSlot[from] = prev;
+      }
+      slotNext[slot] = freeSlot;
+      freeSlot = slot;
+      return slotSequence[slot];
+    }
+    throw new IllegalStateException("unknown edge: from=" + coordinate(from) + " to=" + coordinate(to));
+  }
+
+  /**
+   * Interns ordered placemark sequences as int ids, so that edges with the
+   * same placemarks share storage and compare by id. Sequences are reference
+   * counted by the slots that use them, and released once no slot does, so
+   * the intermediate sequences an edge passes through as it grows don't
+   * accumulate.
+   */
+  private static class PlacemarkSequences {
+
+    static final int EMPTY = 0;
+
+    private final Map<Placemark, Integer> placemarkIds = new IdentityHashMap<>();
+    private final List<Placemark> placemarks = new ArrayList<>();
+
+    private final Map<PlacemarkSignatures.Key, Integer> sequenceIds = new HashMap<>();
+    private int[][] sequences = new int[16][];
+    private int[] referenceCounts = new int[16];
+    private int[] reversed = new int[16];
+    private int sequenceCount = 0;
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    PlacemarkSequences() {
+      retain(intern(new int[0]));
+    }
+
+    int placemarkId(Placemark placemark) {
+      Integer id = placemarkIds.get(placemark);
+      if (id == null) {
+        id = placemarks.size();
+        placemarks.add(placemark);
+        placemarkIds.put(placemark, id);
+      }
+      return id;
+    }
+
+    int append(int sequence, int placemark) {
+      int[] values = sequences[sequence];
+      int[] result = Arrays.copyOf(values, values.length + 1);
+      result[values.length] = placemark;
+      return intern(result);
+    }
+
+    int prepend(int placemark, int sequence) {
+      int[] values = sequences[sequence];
+      int[] result = new int[values.length + 1];
+      result[0] = placemark;
+      System.arraycopy(values, 0, result, 1, values.length);
+      return intern(result);
+    }
+
+    int reverse(int sequence) {
+      if (reversed[sequence] == NONE) {
+        int[] values = sequences[sequence];
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; ++i) {
+          result[i] = values[values.length - 1 - i];
+        }
+        int id = intern(result);
+        reversed[sequence] = id;
+        reversed[id] = sequence;
+      }
+      return reversed[sequence];
+    }
+
+    List<Placemark> placemarks(int sequence) {
+      List<Placemark> result = new ArrayList<>();
+      for (int placemark : sequences[sequence]) {
+        result.add(placemarks.get(placemark));
+      }
+      return result;
+    }
+
+    void retain(int sequence) {
+      referenceCounts[sequence]++;
+    }
+
+    void release(int sequence) {
+      if (--referenceCounts[sequence] > 0) {
+        return;
+      }
+      sequenceIds.remove(new PlacemarkSignatures.Key(sequences[sequence]));
+      sequences[sequence] = null;
+      int reverse = reversed[sequence];
+      if (reverse != NONE && reverse != sequence) {
+        reversed[reverse] = NONE;
+      }
+      if (freeCount == freeIds.length) {
+        freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+      }
+      freeIds[freeCount++] = sequence;
+    }
+
+    /**
+     * Returns the id for the sequence, which is unreferenced if it is new.
+     */
+    private int intern(int[] values) {
+      PlacemarkSignatures.Key key = new PlacemarkSignatures.Key(values);
+      Integer id = sequenceIds.get(key);
+      if (id == null) {
+        if (freeCount > 0) {
+          id = freeIds[--freeCount];
+        } else {
+          if (sequenceCount == sequences.length) {
+            int capacity = sequenceCount * 2;
+            sequences = Arrays.copyOf(sequences, capacity);
+            referenceCounts = Arrays.copyOf(referenceCounts, capacity);
+            reversed = Arrays.copyOf(reversed, capacity);
+          }
+          id = sequenceCount++;
+        }
+        sequences[id] = values;
+        referenceCounts[id] = 0;
+        reversed[id] = NONE;
+        sequenceIds.put(key, id);
+      }
+      return id;
+    }
+  }
+}
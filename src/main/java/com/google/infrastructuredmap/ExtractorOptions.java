@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.nio.file.Paths;
+import javax.annotation.Nullable;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+/**
+ * The command line options that {@link MapAndMarkdownExtractorMain} and
+ * {@link BatchExtractorMain} share, which control how each map is extracted.
+ */
+final class ExtractorOptions {
+  private static final String ARG_MARKDOWN_SCANNER = "markdownScanner";
+  private static final String ARG_COMPACT = "compact";
+  private static final String ARG_NEAREST_PLACEMARKS = "nearestPlacemarks";
+  private static final String ARG_LEVELS = "levels";
+  private static final String ARG_CHANNEL_CLASSES = "channelClasses";
+  private static final String ARG_CRS = "crs";
+  private static final String ARG_CACHE = "cache";
+
+  private ExtractorOptions() {}
+
+  /**
+   * Returns the shared options, to which each tool adds its own.
+   */
+  static Options create() {
+    Options options = new Options();
+    options.addOption(ARG_MARKDOWN_SCANNER, false, "read Markdown with a faster line scanner that"
+        + " only looks at headings and comments, rather than parsing it with Pegdown");
+    options.addOption(ARG_COMPACT, false, "use compact primitive-array graph storage to reduce memory");
+    options.addOption(ARG_NEAREST_PLACEMARKS, false,
+        "cluster each point placemark with the nearest cluster, rather than the first one found");
+    options.addOption(ARG_LEVELS, false,
+        "add simplified copies of each segment for drawing at lower zoom levels");
+    options.addOption(ARG_CHANNEL_CLASSES, false, "list the distinct id lists of the segments "
+        + "and placemarks, so that a client evaluates filters once per list");
+    options.addOption(ARG_CRS, true, "projected CRS to align the map in, such as EPSG:32610 (the"
+        + " default), or \"" + MapDataExtractor.AUTO_CRS + "\" for the map's UTM zone");
+    options.addOption(ARG_CACHE, true, "directory to cache remote KML in, and to record the"
+        + " inputs of the output so that it isn't regenerated if they haven't changed");
+    return options;
+  }
+
+  /**
+   * Returns new extractor options for a map, which has its own so that its
+   * snapshot isn't shared.
+   */
+  static MapDataExtractor.Options extractorOptions(CommandLine cli) {
+    MapDataExtractor.Options options = new MapDataExtractor.Options();
+    if (cli.hasOption(ARG_COMPACT)) {
+      options.backend = AlignmentGraph.Backend.COMPACT;
+    }
+    options.snapPlacemarksToNearest = cli.hasOption(ARG_NEAREST_PLACEMARKS);
+    options.levelsOfDetail = cli.hasOption(ARG_LEVELS);
+    options.channelClasses = cli.hasOption(ARG_CHANNEL_CLASSES);
+    if (cli.hasOption(ARG_CRS)) {
+      options.crs = cli.getOptionValue(ARG_CRS);
+    }
+    return options;
+  }
+
+  static MarkdownReferenceExtractor.Parser markdownParser(CommandLine cli) {
+    return cli.hasOption(ARG_MARKDOWN_SCANNER)
+        ? MarkdownReferenceExtractor.Parser.SCANNER : MarkdownReferenceExtractor.Parser.PEGDOWN;
+  }
+
+  @Nullable
+  static SourceCache cache(CommandLine cli) {
+    return cli.hasOption(ARG_CACHE) ? new SourceCache(Paths.get(cli.getOptionValue(ARG_CACHE)))
+        : null;
+  }
+
+  /**
+   * Checks that the output options of a map can be combined.
+   *
+   * @throws IllegalArgumentException naming the options that can't
+   */
+  static void checkOutputFormat(boolean binary, @Nullable String jsonp, boolean tiled,
+      boolean interned) {
+    if (binary && jsonp != null) {
+      throw new IllegalArgumentException("binary can't be combined with jsonp");
+    }
+    if (tiled && jsonp != null) {
+      throw new IllegalArgumentException("tiled can't be combined with jsonp");
+    }
+    if (interned && binary) {
+      throw new IllegalArgumentException("interned can't be combined with binary");
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A projected coordinate that remembers the WGS84 location it was projected
+ * from, so that it can be written back out without an inverse transform.
+ *
+ * Equality and hashing still only consider the projected x and y, so these
+ * behave exactly like plain coordinates in the alignment graphs.  Points the
+ * graphs create themselves, when snapping to or splitting an edge, are plain
+ * {@link Coordinate} instances.
+ */
+class GeographicCoordinate extends Coordinate {
+
+  private static final long serialVersionUID = 1L;
+
+  public final double latitude;
+
+  public final double longitude;
+
+  public GeographicCoordinate(double x, double y, double latitude, double longitude) {
+    super(x, y);
+    this.latitude = latitude;
+    this.longitude = longitude;
+  }
+}
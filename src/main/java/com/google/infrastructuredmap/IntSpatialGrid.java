@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.util.Arrays;
+
+/**
+ * A {@link SpatialGrid} of int items, such as the node and edge ids of
+ * {@link CompactPolylineAlignmentGraph}, that stores them unboxed and doesn't
+ * allocate per query.
+ *
+ * Items are returned in the order they were inserted, as
+ * {@link SpatialGrid} returns them, through a buffer that the next query
+ * reuses, so callers must be done with the results of one query before
+ * starting another.
+ */
+class IntSpatialGrid {
+
+  private static final int NONE = -1;
+
+  /**
+   * Marks an unused slot in the cell table, as in {@link SpatialGrid}.
+   */
+  private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+  private final double _cellSize;
+
+  // Open-addressing hash table from cell key to the first entry in the cell.
+  private long[] _cellKeys;
+  private int[] _cellHeads;
+  private int _cellCount = 0;
+
+  // Entries, chained per cell, with removed entries kept on a free list.  The
+  // sequence of an entry is the number of the insert() call that added it.
+  private int[] _entryItems = new int[16];
+  private int[] _entryNext = new int[16];
+  private int[] _entrySequence = new int[16];
+  private int _entryCount = 0;
+  private int _freeEntry = NONE;
+  private int _nextSequence = 0;
+
+  // Buffers reused by every call.
+  private final SpatialGrid.Cells _cells = new SpatialGrid.Cells();
+  private long[] _found = new long[16];
+  private int[] _results = new int[16];
+
+  public IntSpatialGrid(double cellSize) {
+    _cellSize = cellSize;
+    allocateCells(64);
+  }
+
+  public void insert(double x, double y, int item) {
+    insert(x, y, x, y, item);
+  }
+
+  /**
+   * Inserts an item into each cell crossed by the line segment from (ax, ay)
+   * to (bx, by).
+   */
+  public void insert(double ax, double ay, double bx, double by, int item) {
+    int sequence = _nextSequence++;
+    _cells.walk(_cellSize, ax, ay, bx, by, 0.0);
+    for (int i = 0; i < _cells.count; ++i) {
+      int cell = findOrAddCell(_cells.keys[i]);
+      int entry = allocateEntry();
+      _entryItems[entry] = item;
+      _entrySequence[entry] = sequence;
+      _entryNext[entry] = _cellHeads[cell];
+      _cellHeads[cell] = entry;
+    }
+  }
+
+  /**
+   * Removes an item. The segment must match the one used to insert it.
+   */
+  public void remove(double ax, double ay, double bx, double by, int item) {
+    _cells.walk(_cellSize, ax, ay, bx, by, 0.0);
+    for (int i = 0; i < _cells.count; ++i) {
+      int cell = findCell(_cells.keys[i]);
+      if (cell == NONE) {
+        continue;
+      }
+      int prev = NONE;
+      for (int entry = _cellHeads[cell]; entry != NONE; prev = entry, entry = _entryNext[entry]) {
+        if (_entryItems[entry] != item) {
+          continue;
+        }
+        if (prev == NONE) {
+          _cellHeads[cell] = _entryNext[entry];
+        } else {
+          _entryNext[prev] = _entryNext[entry];
+        }
+        _entryNext[entry] = _freeEntry;
+        _freeEntry = entry;
+        break;
+      }
+    }
+  }
+
+  /**
+   * Finds all items in cells within {@code radius} of the specified point.
+   *
+   * @return the number of items found, which {@link #result} then returns
+   */
+  public int query(double x, double y, double radius) {
+    return query(x, y, x, y, radius);
+  }
+
+  /**
+   * Finds all items in cells within {@code radius} of the line segment from
+   * (ax, ay) to (bx, by), each inserted item once and in insertion order.
+   * The result is a superset of the items actually within that distance.
+   *
+   * @return the number of items found, which {@link #result} then returns
+   */
+  public int query(double ax, double ay, double bx, double by, double radius) {
+    // Each entry is packed with its sequence in the high bits, so sorting the
+    // packed values orders the entries by insertion, with the entries of an
+    // item that spans several cells next to each other.
+    int count = 0;
+    _cells.walk(_cellSize, ax, ay, bx, by, radius);
+    for (int i = 0; i < _cells.count; ++i) {
+      int cell = findCell(_cells.keys[i]);
+      if (cell == NONE) {
+        continue;
+      }
+      for (int entry = _cellHeads[cell]; entry != NONE; entry = _entryNext[entry]) {
+        if (count == _found.length) {
+          _found = Arrays.copyOf(_found, count * 2);
+        }
+        _found[count++] = ((long) _entrySequence[entry] << 32) | entry;
+      }
+    }
+    Arrays.sort(_found, 0, count);
+    if (_results.length < count) {
+      _results = new int[_found.length];
+    }
+    int results = 0;
+    for (int i = 0; i < count; ++i) {
+      if (i > 0 && (_found[i] >>> 32) == (_found[i - 1] >>> 32)) {
+        continue;
+      }
+      _results[results++] = _entryItems[(int) _found[i]];
+    }
+    return results;
+  }
+
+  /**
+   * Returns an item found by the last query.
+   */
+  public int result(int index) {
+    return _results[index];
+  }
+
+  private int allocateEntry() {
+    if (_freeEntry != NONE) {
+      int entry = _freeEntry;
+      _freeEntry = _entryNext[entry];
+      return entry;
+    }
+    if (_entryCount == _entryNext.length) {
+      _entryItems = Arrays.copyOf(_entryItems, _entryCount * 2);
+      _entryNext = Arrays.copyOf(_entryNext, _entryCount * 2);
+      _entrySequence = Arrays.copyOf(_entrySequence, _entryCount * 2);
+    }
+    return _entryCount++;
+  }
+
+  private int findCell(long key) {
+    int mask = _cellKeys.length - 1;
+    for (int i = SpatialGrid.hash(key) & mask; _cellKeys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+      if (_cellKeys[i] == key) {
+        return i;
+      }
+    }
+    return NONE;
+  }
+
+  private int findOrAddCell(long key) {
+    int cell = findCell(key);
+    if (cell != NONE) {
+      return cell;
+    }
+    if ((_cellCount + 1) * 2 > _cellKeys.length) {
+      long[] keys = _cellKeys;
+      int[] heads = _cellHeads;
+      allocateCells(keys.length * 2);
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] != EMPTY_KEY) {
+          _cellHeads[addCell(keys[i])] = heads[i];
+        }
+      }
+    }
+    _cellCount++;
+    return addCell(key);
+  }
+
+  private int addCell(long key) {
+    int mask = _cellKeys.length - 1;
+    int i = SpatialGrid.hash(key) & mask;
+    while (_cellKeys[i] != EMPTY_KEY) {
+      i = (i + 1) & mask;
+    }
+    _cellKeys[i] = key;
+    _cellHeads[i] = NONE;
+    return i;
+  }
+
+  private void allocateCells(int capacity) {
+    _cellKeys = new long[capacity];
+    Arrays.fill(_cellKeys, EMPTY_KEY);
+    _cellHeads = new int[capacity];
+  }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads placemarks from a KML document with a streaming StAX parser, handing
+ * each one to a {@link Handler} as soon as its closing tag is parsed.
+ *
+ * Unlike {@link de.micromata.opengis.kml.v_2_2_0.Kml#unmarshal}, no object
+ * tree is built for the document, so memory use does not grow with its size.
+ * Only the placemark name and the coordinates of a {@code Point} or
+ * {@code LineString} geometry are read; everything else is skipped.  A
+ * placemark with malformed coordinates, including ones with nested elements,
+ * is reported on standard error and skipped, and the rest of the document is
+ * still read.
+ */
+public class KmlStreamReader {
+
+  /**
+   * The geometry of a placemark.
+   */
+  public enum GeometryType {
+    POINT,
+    LINE_STRING,
+
+    /**
+     * No geometry, or one that isn't read, such as a polygon.
+     */
+    OTHER,
+  }
+
+  public interface Handler {
+    /**
+     * @param lngLats interleaved longitude and latitude values, only valid
+     *     for the duration of the call
+     * @param count the number of coordinates in {@code lngLats}
+     */
+    void placemark(@Nullable String name, GeometryType type, double[] lngLats, int count);
+  }
+
+  private static final String PLACEMARK = "Placemark";
+  private static final String NAME = "name";
+  private static final String POINT = "Point";
+  private static final String LINE_STRING = "LineString";
+  private static final String COORDINATES = "coordinates";
+
+  // Powers of ten that are exactly representable as doubles.
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < POWERS_OF_TEN.length; ++i) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final Handler _handler;
+
+  // Coordinates of the current geometry, reused across placemarks.
+  private double[] _lngLats = new double[64];
+  private int _count;
+
+  // State for the coordinate tuple being parsed, which can be split across
+  // several text events.
+  private char[] _token = new char[32];
+  private int _tokenLength;
+  // The component the next value is for: longitude, latitude, altitude, and
+  // then ignored ones.
+  private int _component;
+  // Whether the current component has its value.
+  private boolean _hasValue;
+  private boolean _hasLongitude;
+  private boolean _inTuple;
+  // Whether there was whitespace since the last value or comma.
+  private boolean _afterSpace;
+  // The altitude, and whether whitespace came before it, in which case it may
+  // be the longitude of the next tuple after a trailing comma.
+  private double _altitude;
+  private boolean _altitudeAfterSpace;
+  // Why the current placemark's coordinates can't be read, if they can't.
+  @Nullable
+  private String _error;
+
+  public KmlStreamReader(Handler handler) {
+    _handler = handler;
+  }
+
+  public void read(InputStream in) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    XMLStreamReader reader = factory.createXMLStreamReader(in);
+    try {
+      read(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void read(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 0;
+    int placemarkDepth = -1;
+    int geometryDepth = -1;
+    int placemarkLine = -1;
+    String name = null;
+    GeometryType type = GeometryType.OTHER;
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          String element = reader.getLocalName();
+          if (placemarkDepth < 0) {
+            if (PLACEMARK.equals(element)) {
+              placemarkDepth = depth;
+              placemarkLine = reader.getLocation().getLineNumber();
+              name = null;
+              type = GeometryType.OTHER;
+              _count = 0;
+              _error = null;
+            }
+          } else if (depth == placemarkDepth + 1) {
+            if (NAME.equals(element)) {
+              // Consumes the matching end element.
+              name = reader.getElementText();
+              depth--;
+            } else if (POINT.equals(element)) {
+              type = GeometryType.POINT;
+              geometryDepth = depth;
+            } else if (LINE_STRING.equals(element)) {
+              type = GeometryType.LINE_STRING;
+              geometryDepth = depth;
+            }
+          } else if (depth == geometryDepth + 1 && COORDINATES.equals(element)) {
+            readCoordinates(reader);
+            depth--;
+          }
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (depth == geometryDepth) {
+            geometryDepth = -1;
+          } else if (depth == placemarkDepth) {
+            placemarkDepth = -1;
+            if (_error != null) {
+              System.err.println("Skipping placemark " + name + " at line " + placemarkLine
+                  + ": " + _error);
+            } else {
+              _handler.placemark(name, type, _lngLats, _count);
+            }
+          }
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Parses the content of a {@code coordinates} element, up to and including
+   * its end element, directly from the parser's character buffer.  An element
+   * nested in it makes the coordinates malformed.
+   */
+  private void readCoordinates(XMLStreamReader reader) throws XMLStreamException {
+    _count = 0;
+    _tokenLength = 0;
+    _component = 0;
+    _hasValue = false;
+    _hasLongitude = false;
+    _inTuple = false;
+    _afterSpace = false;
+    // Depth of elements nested in the coordinates, which are skipped.
+    int nested = 0;
+    while (true) {
+      switch (reader.next()) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          char[] text = reader.getTextCharacters();
+          int end = reader.getTextStart() + reader.getTextLength();
+          for (int i = reader.getTextStart(); i < end; ++i) {
+            parseChar(text[i]);
+          }
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (nested > 0) {
+            nested--;
+            break;
+          }
+          if (_error == null) {
+            endToken();
+          }
+          if (_error == null) {
+            endTuple();
+          }
+          return;
+        case XMLStreamConstants.START_ELEMENT:
+          if (_error == null) {
+            _error = "Unexpected element in coordinates: " + reader.getLocalName();
+          }
+          nested++;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Tuples are "lng,lat[,alt]", separated by whitespace, which is also
+   * allowed on either side of a comma.  As with the JAK coordinate parser,
+   * "1, 2" is one tuple.  A value after "lng,lat," and whitespace is the
+   * altitude, unless a comma follows it, in which case the comma before it
+   * was a trailing one and it starts the next tuple.
+   */
+  private void parseChar(char c) {
+    if (_error != null) {
+      return;
+    }
+    if (c == ',') {
+      endToken();
+      endComponent();
+    } else if (c == ' ' || c == '\n' || c == '\t' || c == '\r') {
+      endToken();
+      _afterSpace = true;
+    } else {
+      if (_tokenLength == _token.length) {
+        _token = Arrays.copyOf(_token, _tokenLength * 2);
+      }
+      _token[_tokenLength++] = c;
+    }
+  }
+
+  private void endToken() {
+    if (_tokenLength == 0) {
+      return;
+    }
+    double value;
+    try {
+      value = parseDouble(_token, _tokenLength);
+    } catch (NumberFormatException ex) {
+      _error = "Invalid coordinate: " + new String(_token, 0, _tokenLength);
+      return;
+    } finally {
+      _tokenLength = 0;
+    }
+    if (_hasValue) {
+      // Only whitespace since the last value, so this one starts a new tuple.
+      endTuple();
+      if (_error != null) {
+        return;
+      }
+    }
+    if (_component == 0) {
+      _hasLongitude = true;
+    } else if (_component == 2) {
+      _altitude = value;
+      _altitudeAfterSpace = _afterSpace;
+    }
+    setComponent(value);
+    _hasValue = true;
+    _inTuple = true;
+    _afterSpace = false;
+  }
+
+  private void endComponent() {
+    if (_component == 2 && _hasValue && _altitudeAfterSpace) {
+      endTuple();
+      _hasLongitude = true;
+      _inTuple = true;
+      setComponent(_altitude);
+    }
+    _component++;
+    _hasValue = false;
+    _inTuple = true;
+    _afterSpace = false;
+  }
+
+  private void setComponent(double value) {
+    if (_component > 1) {
+      // Altitude is ignored.
+      return;
+    }
+    if (_count * 2 == _lngLats.length) {
+      _lngLats = Arrays.copyOf(_lngLats, _lngLats.length * 2);
+    }
+    _lngLats[_count * 2 + _component] = value;
+  }
+
+  private void endTuple() {
+    if (!_inTuple) {
+      return;
+    }
+    if (!_hasLongitude) {
+      _error = "Coordinate without longitude";
+      return;
+    }
+    if (_component < 1 || (_component == 1 && !_hasValue)) {
+      _error = "Coordinate without latitude";
+      return;
+    }
+    _count++;
+    _component = 0;
+    _hasValue = false;
+    _hasLongitude = false;
+    _inTuple = false;
+  }
+
+  /**
+   * Parses a decimal number.  Values with at most 15 significant digits and
+   * a small exponent, which covers any coordinate in practice, are computed
+   * with a single correctly rounded multiplication or division, so the result
+   * always matches {@link Double#parseDouble}.  Anything else falls back to it.
+   */
+  static double parseDouble(char[] chars, int length) {
+    int i = 0;
+    boolean negative = false;
+    if (i < length && (chars[i] == '-' || chars[i] == '+')) {
+      negative = chars[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean anyDigits = false;
+    boolean afterDot = false;
+    for (; i < length; ++i) {
+      char c = chars[i];
+      if (c >= '0' && c <= '9') {
+        anyDigits = true;
+        if (mantissa != 0 || c != '0') {
+          if (++significantDigits > 15) {
+            return Double.parseDouble(new String(chars, 0, length));
+          }
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        if (afterDot) {
+          exponent--;
+        }
+      } else if (c == '.' && !afterDot) {
+        afterDot = true;
+      } else {
+        break;
+      }
+    }
+    if (i < length && anyDigits && (chars[i] == 'e' || chars[i] == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < length && (chars[i] == '-' || chars[i] == '+')) {
+        negativeExponent = chars[i] == '-';
+        i++;
+      }
+      int value = 0;
+      int start = i;
+      for (; i < length && chars[i] >= '0' && chars[i] <= '9' && value < 1000; ++i) {
+        value = value * 10 + (chars[i] - '0');
+      }
+      if (i == start) {
+        return Double.parseDouble(new String(chars, 0, length));
+      }
+      exponent += negativeExponent ? -value : value;
+    }
+    if (i < length || !anyDigits || exponent < -22 || exponent > 22) {
+      return Double.parseDouble(new String(chars, 0, length));
+    }
+    double result = exponent < 0
+        ? mantissa / POWERS_OF_TEN[-exponent]
+        : mantissa * POWERS_OF_TEN[exponent];
+    return negative ? -result : result;
+  }
+}
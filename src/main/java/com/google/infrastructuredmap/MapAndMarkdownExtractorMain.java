@@ -15,20 +15,47 @@
  */
 package com.google.infrastructuredmap;
 
-import com.google.gson.Gson;
 import com.google.infrastructuredmap.model.MapData;
 import com.google.infrastructuredmap.model.MapFeature;
 import com.google.infrastructuredmap.model.ProjectReference;
-import de.micromata.opengis.kml.v_2_2_0.Kml;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamException;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -44,49 +71,588 @@ public class MapAndMarkdownExtractorMain {
   private static final String ARG_MARKDOWN = "markdown";
   private static final String ARG_JSON_OUTPUT = "output";
   private static final String ARG_JSONP = "jsonp";
+  private static final String ARG_BINARY = "binary";
+  private static final String ARG_TILED = "tiled";
+  private static final String ARG_INTERNED = "interned";
+  private static final String ARG_SNAPSHOT = "snapshot";
+  private static final String ARG_WATCH = "watch";
 
-  public static void main(String[] args) throws IOException, ParseException {
+  /**
+   * How long the inputs must be left alone after a change before the output
+   * is regenerated, so that a burst of saves is only processed once.
+   */
+  private static final long WATCH_DEBOUNCE_MILLIS = 300;
 
-    Options options = new Options();
+  public static void main(String[] args)
+      throws IOException, ParseException, XMLStreamException, InterruptedException {
+
+    Options options = ExtractorOptions.create();
     options.addOption(ARG_KML, true, "path to KML input");
-    options.addOption(ARG_MARKDOWN, true, "path to Markdown input");
-    options.addOption(ARG_JSON_OUTPUT, true, "path to write json output");
+    options.addOption(ARG_MARKDOWN, true,
+        "path to Markdown input: a file, a directory of .md files, or a glob like docs/*.md;"
+        + " several files are parsed in parallel");
+    options.addOption(ARG_JSON_OUTPUT, true, "path to write output");
     options.addOption(ARG_JSONP, true, "JSONP template to wrap output JSON data");
+    options.addOption(ARG_BINARY, false, "write the compact binary encoding instead of JSON");
+    options.addOption(ARG_TILED, false, "write the output as a directory of tiles and an "
+        + MapDataWriter.TILE_INDEX + ", so that a client only loads the tiles in view");
+    options.addOption(ARG_INTERNED, false,
+        "write JSON with each string, project and feature once, referred to by index");
+    options.addOption(ARG_SNAPSHOT, true,
+        "path to an alignment snapshot, used to skip unchanged parts of the map and then updated;"
+        + " the run that fills it is somewhat slower than one without it");
+    options.addOption(ARG_WATCH, false,
+        "keep running and regenerate the output whenever the KML or Markdown input changes");
 
     CommandLineParser parser = new DefaultParser();
     CommandLine cli = parser.parse(options, args);
+    try {
+      ExtractorOptions.checkOutputFormat(cli.hasOption(ARG_BINARY), cli.getOptionValue(ARG_JSONP),
+          cli.hasOption(ARG_TILED), cli.hasOption(ARG_INTERNED));
+    } catch (IllegalArgumentException ex) {
+      throw new ParseException(ex.getMessage());
+    }
+
+    // With a cache, remote KML is revalidated rather than downloaded again, and
+    // a run with the same inputs and arguments as the last one does nothing.
+    String kml = cli.getOptionValue(ARG_KML);
+    SourceCache cache = ExtractorOptions.cache(cli);
+    String fingerprint = null;
+    if (cache != null) {
+      CachedInputs inputs = readThroughCache(cache, kml, cli.getOptionValue(ARG_MARKDOWN),
+          Arrays.asList(args));
+      kml = inputs.kml;
+      if (cli.hasOption(ARG_WATCH)) {
+        cache.clearUpToDate(outputPath(cli));
+      } else {
+        fingerprint = inputs.fingerprint;
+        if (cache.isUpToDate(outputPath(cli), fingerprint)) {
+          System.err.println("Inputs unchanged, keeping " + outputPath(cli));
+          return;
+        }
+      }
+    }
+
+    MapDataExtractor.Options extractorOptions = ExtractorOptions.extractorOptions(cli);
+    Path snapshotPath = cli.hasOption(ARG_SNAPSHOT) ? Paths.get(cli.getOptionValue(ARG_SNAPSHOT)) : null;
+    if (snapshotPath != null) {
+      extractorOptions.snapshot = readSnapshot(snapshotPath);
+    }
+    final MarkdownReferenceExtractor.Parser markdownParser = ExtractorOptions.markdownParser(cli);
+    // Markdown files are independent, so they're parsed in parallel.
+    final ExecutorService markdownPool = new ForkJoinPool();
+    // The KML and Markdown inputs are independent until they're linked, so
+    // the Markdown is parsed on another thread while the KML is processed.
+    ExecutorService markdownStage = Executors.newSingleThreadExecutor();
+    try {
+      final String markdown = cli.getOptionValue(ARG_MARKDOWN);
+      Future<Map<String, List<ProjectReference>>> pendingReferences = markdownStage.submit(
+          new Callable<Map<String, List<ProjectReference>>>() {
+            @Override
+            public Map<String, List<ProjectReference>> call() throws IOException {
+              return extractReferences(markdown, markdownParser, markdownPool);
+            }
+          });
+      MapData data = extractMapData(kml, extractorOptions, snapshotPath);
+      Map<String, List<ProjectReference>> references = getReferences(pendingReferences);
+      linkReferences(data, references);
+      writeOutput(data, outputPath(cli), cli.hasOption(ARG_BINARY), cli.getOptionValue(ARG_JSONP),
+          cli.hasOption(ARG_TILED), cli.hasOption(ARG_INTERNED));
+      if (fingerprint != null) {
+        cache.setUpToDate(outputPath(cli), fingerprint);
+      }
+      if (cli.hasOption(ARG_WATCH)) {
+        watch(cli, extractorOptions, markdownPool, snapshotPath, data, references);
+      }
+    } finally {
+      markdownStage.shutdownNow();
+      markdownPool.shutdown();
+    }
+  }
+
+  /**
+   * The inputs of a map, as seen through a {@link SourceCache}.
+   */
+  static class CachedInputs {
+    /**
+     * The path to read the KML from, which for remote KML is its cached copy.
+     */
+    final String kml;
+
+    /**
+     * A hash of everything that determines the output.
+     */
+    final String fingerprint;
+
+    CachedInputs(String kml, String fingerprint) {
+      this.kml = kml;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  /**
+   * Fetches remote KML through the cache, and fingerprints the inputs of a
+   * map so that {@link SourceCache#isUpToDate} can tell whether its output
+   * needs regenerating.
+   *
+   * @param settings the arguments that determine the output, besides the
+   *     content of the inputs
+   */
+  static CachedInputs readThroughCache(SourceCache cache, String kml, String markdown,
+      List<String> settings) throws IOException {
+    String kmlHash;
+    if (isUrl(kml)) {
+      SourceCache.Document document = cache.fetch(kml);
+      kml = document.path.toString();
+      kmlHash = document.hash;
+    } else {
+      kmlHash = SourceCache.hash(Paths.get(kml));
+    }
+    return new CachedInputs(kml, fingerprint(settings, kmlHash, findMarkdownFiles(markdown)));
+  }
+
+  /**
+   * Returns a hash of everything that determines the output: the tool
+   * itself, the arguments and the content of each input.
+   */
+  private static String fingerprint(List<String> settings, String kmlHash,
+      List<Path> markdownFiles) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append(toolVersion()).append('\0');
+    for (String setting : settings) {
+      b.append(setting).append('\0');
+    }
+    b.append(kmlHash).append('\0');
+    for (Path file : markdownFiles) {
+      b.append(file).append('\0').append(SourceCache.hash(file)).append('\0');
+    }
+    return SourceCache.hash(b.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns a hash of the code the tool was loaded from: its jar, or the
+   * class files in its classes directory.  Any change to the tool, including
+   * to the output format, changes the hash.
+   */
+  static String toolVersion() throws IOException {
+    Path code;
+    try {
+      code = Paths.get(MapAndMarkdownExtractorMain.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI());
+    } catch (URISyntaxException | RuntimeException ex) {
+      throw new IOException("Can't locate the tool's code", ex);
+    }
+    if (!Files.isDirectory(code)) {
+      return SourceCache.hash(code);
+    }
+    final List<Path> files = new ArrayList<>();
+    Files.walkFileTree(code, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        files.add(file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(files);
+    StringBuilder b = new StringBuilder();
+    for (Path file : files) {
+      b.append(code.relativize(file)).append('\0').append(SourceCache.hash(file)).append('\0');
+    }
+    return SourceCache.hash(b.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Map<String, List<ProjectReference>> getReferences(
+      Future<Map<String, List<ProjectReference>>> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Extracts map features from the input KML.
+   */
+  static MapData extractMapData(String kml, MapDataExtractor.Options extractorOptions,
+      @Nullable Path snapshotPath) throws IOException, XMLStreamException {
+    MapData data;
+    try (InputStream in = openStream(kml)) {
+      data = MapDataExtractor.extractMapData(in, extractorOptions);
+    }
+    if (snapshotPath != null) {
+      extractorOptions.snapshot.write(snapshotPath);
+    }
+    return data;
+  }
+
+  /**
+   * Extracts project features from the input Markdown documents.
+   *
+   * @param executor if set, the documents are parsed in parallel on this
+   *     executor
+   */
+  static Map<String, List<ProjectReference>> extractReferences(String markdown,
+      MarkdownReferenceExtractor.Parser parser, @Nullable ExecutorService executor)
+      throws IOException {
+    return MarkdownReferenceExtractor.extractReferences(findMarkdownFiles(markdown), parser,
+        executor);
+  }
+
+  /**
+   * Returns the absolute paths of the Markdown documents named by
+   * {@code markdown}: a single file, every .md or .markdown file in a
+   * directory and its subdirectories, or the files matching a glob such as
+   * "docs/*.md" or "docs/**.md".  The paths are sorted, so that references
+   * from several documents are always merged in the same order.
+   */
+  static List<Path> findMarkdownFiles(String markdown) throws IOException {
+    PathMatcher matcher;
+    Path base;
+    int glob = indexOfGlob(markdown);
+    if (glob >= 0) {
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + markdown);
+      base = globBase(markdown, glob);
+    } else {
+      base = Paths.get(markdown);
+      if (!Files.isDirectory(base)) {
+        return Collections.singletonList(base.toAbsolutePath());
+      }
+      matcher = FileSystems.getDefault().getPathMatcher("glob:**.{md,markdown}");
+    }
 
-    // Extract map features from the input KML.
-    MapData data = null;
-    try (InputStream in = openStream(cli.getOptionValue(ARG_KML))) {
-      Kml kml = Kml.unmarshal(in);
-      data = MapDataExtractor.extractMapData(kml);
+    final PathMatcher fileMatcher = matcher;
+    final List<Path> files = new ArrayList<>();
+    Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() && fileMatcher.matches(file)) {
+          files.add(file.toAbsolutePath());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    if (files.isEmpty()) {
+      throw new IllegalArgumentException("No Markdown files found: " + markdown);
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Returns the directory part of a glob before its first wildcard, which is
+   * the current directory for a glob like "*.md".
+   */
+  private static Path globBase(String glob, int wildcard) {
+    int separator = Math.max(glob.lastIndexOf('/', wildcard),
+        glob.lastIndexOf(File.separatorChar, wildcard));
+    return Paths.get(glob.substring(0, separator + 1));
+  }
+
+  private static int indexOfGlob(String path) {
+    for (int i = 0; i < path.length(); ++i) {
+      if ("*?[{".indexOf(path.charAt(i)) >= 0) {
+        return i;
+      }
     }
+    return -1;
+  }
 
-    // Extract project features from the input Markdown.
-    Map<String, List<ProjectReference>> references = MarkdownReferenceExtractor
-        .extractReferences(Paths.get(cli.getOptionValue(ARG_MARKDOWN)));
+  /**
+   * Sets the projects of each map feature from the references with its id.
+   *
+   * @throws IllegalStateException listing every feature id that has no
+   *     references
+   */
+  static void linkReferences(MapData data, Map<String, List<ProjectReference>> references) {
+    Set<String> unknownIds = new LinkedHashSet<>();
     for (MapFeature feature : data.features) {
       List<ProjectReference> referencesForId = references.get(feature.id);
       if (referencesForId == null) {
-        throw new IllegalStateException("Unknown project reference: " + feature.id);
+        unknownIds.add(feature.id);
       }
       feature.projects = referencesForId;
     }
+    if (!unknownIds.isEmpty()) {
+      throw new IllegalStateException("Unknown project references: " + unknownIds);
+    }
+  }
 
-    // Write the resulting data to the output path.
-    Gson gson = new Gson();
-    try (FileWriter out = new FileWriter(cli.getOptionValue(ARG_JSON_OUTPUT))) {
-      String json = gson.toJson(data);
-      if (cli.hasOption(ARG_JSONP)) {
-        json = String.format(cli.getOptionValue(ARG_JSONP), json);
+  /**
+   * Writes the resulting data to the output path.  The data is written to a
+   * sibling file first and then moved over the output, so a map that reloads
+   * the output while it's being rewritten never sees a partial file.
+   *
+   * @param tiled if true, the output path is a directory for
+   *     {@link MapDataWriter#writeTiles}
+   * @param interned if true, JSON is written as
+   *     {@link com.google.infrastructuredmap.model.InternedMapData}
+   */
+  static void writeOutput(MapData data, Path output, boolean binary, @Nullable String jsonp,
+      boolean tiled, boolean interned) throws IOException {
+    if (tiled) {
+      MapDataWriter.writeTiles(data, output, binary, interned);
+      return;
+    }
+    Path outputPath = output.toAbsolutePath();
+    // Not Files.createTempFile, which would leave the output readable only by its owner.
+    Path temp = outputPath.resolveSibling(outputPath.getFileName() + ".tmp");
+    try {
+      if (binary) {
+        MapDataWriter.writeBinary(data, temp);
+      } else {
+        MapDataWriter.writeJson(data, temp, jsonp, interned);
       }
-      out.write(json);
+      Files.move(temp, outputPath, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
     }
   }
 
+  /**
+   * Watches the input files and regenerates the output whenever they change,
+   * until the process is killed.  See {@link WatchState} for which stages a
+   * change reruns.
+   */
+  private static void watch(final CommandLine cli,
+      final MapDataExtractor.Options extractorOptions, final ExecutorService markdownExecutor,
+      @Nullable final Path snapshotPath, @Nullable MapData data,
+      @Nullable Map<String, List<ProjectReference>> references)
+      throws IOException, InterruptedException {
+    final String kml = cli.getOptionValue(ARG_KML);
+    Path kmlPath = isUrl(kml) ? null : Paths.get(kml).toAbsolutePath();
+    final String markdown = cli.getOptionValue(ARG_MARKDOWN);
+    Stages stages = new Stages() {
+      @Override
+      public MapData extractMapData() throws IOException, XMLStreamException {
+        return MapAndMarkdownExtractorMain.extractMapData(kml, extractorOptions, snapshotPath);
+      }
+
+      @Override
+      public List<Path> findMarkdownFiles() throws IOException {
+        return MapAndMarkdownExtractorMain.findMarkdownFiles(markdown);
+      }
+
+      @Override
+      public Map<String, List<ProjectReference>> extractReferences(List<Path> markdownFiles)
+          throws IOException {
+        return MarkdownReferenceExtractor.extractReferences(markdownFiles,
+            ExtractorOptions.markdownParser(cli), markdownExecutor);
+      }
+
+      @Override
+      public void writeOutput(MapData data) throws IOException {
+        MapAndMarkdownExtractorMain.writeOutput(data, outputPath(cli), cli.hasOption(ARG_BINARY),
+            cli.getOptionValue(ARG_JSONP), cli.hasOption(ARG_TILED), cli.hasOption(ARG_INTERNED));
+      }
+    };
+    WatchState state = new WatchState(stages, kmlPath, findMarkdownFiles(markdown), data,
+        references);
+
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      if (kmlPath != null) {
+        register(watcher, kmlPath.getParent());
+      } else {
+        System.err.println("Not watching remote KML: " + kml);
+      }
+      // Documents added to a directory or matching a glob are picked up too,
+      // as long as they're in a directory that's already watched.
+      int glob = indexOfGlob(markdown);
+      Path markdownBase = glob >= 0 ? globBase(markdown, glob) : Paths.get(markdown);
+      if (Files.isDirectory(markdownBase)) {
+        register(watcher, markdownBase.toAbsolutePath());
+      }
+      for (Path file : state.getMarkdownFiles()) {
+        register(watcher, file.getParent());
+      }
+      System.err.println("Watching " + (kmlPath != null ? kmlPath + " and " : "") + markdown);
+
+      while (true) {
+        Set<Path> changed = awaitChanges(watcher, WATCH_DEBOUNCE_MILLIS);
+        long start = System.nanoTime();
+        try {
+          if (state.update(changed)) {
+            System.err.println("Updated output in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+          }
+        } catch (IOException | XMLStreamException | RuntimeException ex) {
+          System.err.println("Update failed, keeping previous output: " + ex);
+        }
+        for (Path file : state.getMarkdownFiles()) {
+          register(watcher, file.getParent());
+        }
+      }
+    }
+  }
+
+  /**
+   * The stages of a run that {@link WatchState} reruns.
+   */
+  interface Stages {
+    MapData extractMapData() throws IOException, XMLStreamException;
+
+    List<Path> findMarkdownFiles() throws IOException;
+
+    Map<String, List<ProjectReference>> extractReferences(List<Path> markdownFiles)
+        throws IOException;
+
+    void writeOutput(MapData data) throws IOException;
+  }
+
+  /**
+   * The results of the stages of the last run in watch mode, which are
+   * reused until their inputs change: a Markdown edit reuses the extracted
+   * map data, and a KML edit reuses the parsed project references.  A failed
+   * update doesn't write the output, so the previous output stays in place,
+   * and the stage that failed is run again on the next update.
+   */
+  static class WatchState {
+    private final Stages _stages;
+    @Nullable private final Path _kmlPath;
+    private List<Path> _markdownFiles;
+    @Nullable private MapData _data;
+    @Nullable private Map<String, List<ProjectReference>> _references;
+
+    /**
+     * @param kmlPath the absolute path of the KML, or null if it's remote
+     *     and not watched
+     * @param data the map data of the first run, or null if it failed
+     * @param references the references of the first run, or null if it
+     *     failed
+     */
+    WatchState(Stages stages, @Nullable Path kmlPath, List<Path> markdownFiles,
+        @Nullable MapData data, @Nullable Map<String, List<ProjectReference>> references) {
+      _stages = stages;
+      _kmlPath = kmlPath;
+      _markdownFiles = markdownFiles;
+      _data = data;
+      _references = references;
+    }
+
+    List<Path> getMarkdownFiles() {
+      return _markdownFiles;
+    }
+
+    /**
+     * Reruns the stages affected by the changed paths, and writes the output.
+     * A changed directory, which means events were lost, affects every input
+     * in it.
+     *
+     * @return true if the output was written, or false if none of the inputs
+     *     changed and no stage is left to retry
+     */
+    boolean update(Set<Path> changed) throws IOException, XMLStreamException {
+      if (_kmlPath != null && isChanged(_kmlPath, changed)) {
+        _data = null;
+      }
+      List<Path> files = _stages.findMarkdownFiles();
+      if (!files.equals(_markdownFiles) || isAnyChanged(files, changed)) {
+        _references = null;
+        _markdownFiles = files;
+      }
+      if (_data != null && _references != null) {
+        return false;
+      }
+
+      if (_data == null) {
+        _data = _stages.extractMapData();
+      }
+      if (_references == null) {
+        _references = _stages.extractReferences(_markdownFiles);
+      }
+      linkReferences(_data, _references);
+      _stages.writeOutput(_data);
+      return true;
+    }
+  }
+
+  /**
+   * Waits for a change in a watched directory, and then for the burst of
+   * events from a single save to settle: until no event has arrived for
+   * {@code debounceMillis}.
+   *
+   * @return the changed paths
+   */
+  static Set<Path> awaitChanges(WatchService watcher, long debounceMillis)
+      throws InterruptedException {
+    Set<Path> changed = new HashSet<>();
+    pollEvents(watcher.take(), changed);
+    WatchKey key;
+    while ((key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+      pollEvents(key, changed);
+    }
+    return changed;
+  }
+
+  private static void register(WatchService watcher, Path dir) throws IOException {
+    // Editors often save by writing a new file and renaming it over the old
+    // one, so creation counts as a change too.  Registering a directory again
+    // has no effect.
+    dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  /**
+   * Adds the paths affected by the events of {@code key} to {@code changed},
+   * and resets the key for further events.  If events were lost, the
+   * directory itself is added, to mean that anything in it may have changed.
+   */
+  private static void pollEvents(WatchKey key, Set<Path> changed) {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        changed.add(dir);
+      } else {
+        changed.add(dir.resolve((Path) event.context()));
+      }
+    }
+    key.reset();
+  }
+
+  private static boolean isChanged(Path path, Set<Path> changed) {
+    return changed.contains(path) || changed.contains(path.getParent());
+  }
+
+  private static boolean isAnyChanged(List<Path> paths, Set<Path> changed) {
+    for (Path path : paths) {
+      if (isChanged(path, changed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Path outputPath(CommandLine cli) {
+    return Paths.get(cli.getOptionValue(ARG_JSON_OUTPUT));
+  }
+
+  static AlignmentSnapshot readSnapshot(Path path) {
+    if (!Files.exists(path)) {
+      return new AlignmentSnapshot();
+    }
+    try {
+      return AlignmentSnapshot.read(path);
+    } catch (IOException ex) {
+      // A stale or damaged snapshot only costs a full rebuild.
+      System.err.println("Ignoring alignment snapshot: " + ex);
+      return new AlignmentSnapshot();
+    }
+  }
+
+  static boolean isUrl(String path) {
+    return path.startsWith("http:") || path.startsWith("https:");
+  }
+
   private static InputStream openStream(String path) throws IOException {
-    if (path.startsWith("http:") || path.startsWith("https:")) {
+    if (isUrl(path)) {
       URL url = new URL(path);
       return new BufferedInputStream(url.openStream());
     }
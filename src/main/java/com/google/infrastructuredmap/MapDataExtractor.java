@@ -15,13 +15,12 @@
  */
 package com.google.infrastructuredmap;
 
-import com.google.infrastructuredmap.PolylineAlignmentGraph.Polyline;
+import com.google.infrastructuredmap.AlignmentGraph.Polyline;
+import com.google.infrastructuredmap.KmlStreamReader.GeometryType;
 import com.google.infrastructuredmap.model.MapData;
 import com.google.infrastructuredmap.model.MapFeature;
 import com.google.infrastructuredmap.model.MapPlacemark;
 import com.google.infrastructuredmap.model.MapSegment;
-import com.google.maps.model.EncodedPolyline;
-import com.google.maps.model.LatLng;
 import com.vividsolutions.jts.geom.Coordinate;
 import de.micromata.opengis.kml.v_2_2_0.Document;
 import de.micromata.opengis.kml.v_2_2_0.Feature;
@@ -31,16 +30,17 @@ import de.micromata.opengis.kml.v_2_2_0.Kml;
 import de.micromata.opengis.kml.v_2_2_0.LineString;
 import de.micromata.opengis.kml.v_2_2_0.Placemark;
 import de.micromata.opengis.kml.v_2_2_0.Point;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamException;
 import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
-import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.NoninvertibleTransformException;
 import org.opengis.referencing.operation.TransformException;
 
 /**
@@ -49,23 +49,133 @@ import org.opengis.referencing.operation.TransformException;
  * combined features.
  */
 public class MapDataExtractor {
-  // Transform from WGS84 (aka lat-lng) into UTM zone 10N (aka Washington State).
-  private static final MathTransform _transform = createTransform();
-  private static final MathTransform _reverseTransform = reverseTransform(_transform);
-  
+  /**
+   * UTM zone 10N (aka Washington State), the default projected CRS.
+   */
+  public static final String DEFAULT_CRS = "EPSG:32610";
+
+  /**
+   * Selects the UTM zone containing the center of the map's bounding box.
+   */
+  public static final String AUTO_CRS = "auto";
+
+  /**
+   * The highest zoom level of each level of detail, coarsest first.
+   */
+  static final int[] LEVEL_ZOOMS = {10, 12, 14};
+
+  /**
+   * The ground resolution of a 256 pixel Web Mercator tile at zoom level 0 on
+   * the equator.  It halves with each zoom level, and shrinks further away
+   * from the equator.
+   */
+  private static final double METERS_PER_PIXEL_AT_ZOOM_0 = 156543.03;
+
+  /**
+   * Options controlling how map data is extracted.
+   */
+  public static class Options {
+    /**
+     * The storage implementation for the polyline alignment graph.
+     */
+    public AlignmentGraph.Backend backend = AlignmentGraph.Backend.HASHED;
+
+    /**
+     * If true, point placemarks join the nearest cluster within the snap
+     * threshold, rather than the first one created.
+     */
+    public boolean snapPlacemarksToNearest = false;
+
+    /**
+     * If set, polylines in parts of the map that are unchanged since the
+     * snapshot was taken are not aligned again, and the snapshot is updated
+     * for the next run.  The result is the same as without a snapshot.
+     */
+    public AlignmentSnapshot snapshot;
+
+    /**
+     * The code of the projected coordinate reference system that polylines
+     * and placemarks are aligned in, such as "EPSG:32610", or
+     * {@link #AUTO_CRS}.  Snapping distances are only accurate in a
+     * projection suited to the map's location.
+     *
+     * With {@link #AUTO_CRS} the zone isn't known until the whole map has been
+     * read, so the placemarks' coordinates are buffered until the end.
+     */
+    public String crs = DEFAULT_CRS;
+
+    /**
+     * If true, each segment also gets simplified encodings for lower zoom
+     * levels, as {@link MapSegment#levels}.  Shared end points are kept
+     * exactly, so aligned segments still meet at every level.
+     */
+    public boolean levelsOfDetail = false;
+
+    /**
+     * If true, the output lists the distinct id lists of the segments and
+     * placemarks, as {@link MapData#channelClasses}, and each segment and
+     * placemark refers to its list by index.
+     */
+    public boolean channelClasses = false;
+  }
+
   public static MapData extractMapData(Kml kml) {
-    MapDataExtractor extractor = new MapDataExtractor();
+    return extractMapData(kml, new Options());
+  }
+
+  public static MapData extractMapData(Kml kml, Options options) {
+    MapDataExtractor extractor = new MapDataExtractor(options);
     return extractor.run(kml);
   }
+
+  /**
+   * Extracts map data from a KML stream with {@link KmlStreamReader}, without
+   * building an object tree for the whole document.  The result matches
+   * {@link #extractMapData(Kml, Options)} for the unmarshalled document.
+   */
+  public static MapData extractMapData(InputStream in, Options options) throws XMLStreamException {
+    MapDataExtractor extractor = new MapDataExtractor(options);
+    return extractor.run(in);
+  }
   
-  private final PolylineAlignmentGraph _graph;
+  private final AlignmentGraph _graph;
+  private final PartitionedPolylineAlignment _partitionedGraph;
+  private final AlignmentSnapshot _snapshot;
   private final PlacemarkAlignment _placemarks;
   private final MapData _data;
-  
-  private MapDataExtractor() {
-    _graph = new PolylineAlignmentGraph();
-    _placemarks = new PlacemarkAlignment();
+  private final boolean _levelsOfDetail;
+
+  // Null until the CRS is selected, with AUTO_CRS.
+  private TransformRegistry.Transforms _transforms;
+
+  // When partitioned, the number of features read before each polyline, and
+  // the point placemarks, which are only clustered once the polylines are
+  // aligned.
+  private final List<Integer> _polylineFeatures = new ArrayList<>();
+  private final List<PendingPoint> _points = new ArrayList<>();
+
+  // Placemarks read before the CRS is selected, and their bounding box.
+  private List<PendingPlacemark> _pending;
+  private double _minLat = Double.POSITIVE_INFINITY;
+  private double _maxLat = Double.NEGATIVE_INFINITY;
+  private double _minLng = Double.POSITIVE_INFINITY;
+  private double _maxLng = Double.NEGATIVE_INFINITY;
+
+  private MapDataExtractor(Options options) {
+    _graph = options.backend.create();
+    _partitionedGraph = new PartitionedPolylineAlignment(options.backend);
+    _snapshot = options.snapshot;
+    _placemarks = new PlacemarkAlignment(options.snapPlacemarksToNearest);
     _data = new MapData();
+    _levelsOfDetail = options.levelsOfDetail;
+    if (options.channelClasses) {
+      _data.channelClasses = new ArrayList<>();
+    }
+    if (AUTO_CRS.equals(options.crs)) {
+      _pending = new ArrayList<>();
+    } else {
+      _transforms = TransformRegistry.get(options.crs);
+    }
   }
 
   private MapData run(Kml kml) {    
@@ -74,35 +184,191 @@ public class MapDataExtractor {
     } catch (IllegalStateException ex) {
       ex.printStackTrace();
     }
+    return finish();
+  }
+
+  private MapData run(InputStream in) throws XMLStreamException {
+    KmlStreamReader reader = new KmlStreamReader(new KmlStreamReader.Handler() {
+      @Override
+      public void placemark(String name, GeometryType type, double[] lngLats, int count) {
+        processPlacemark(new Placemark().withName(name), type, lngLats, count);
+      }
+    });
+    try {
+      reader.read(in);
+    } catch (IllegalStateException ex) {
+      ex.printStackTrace();
+    }
+    return finish();
+  }
+
+  /**
+   * With {@link #AUTO_CRS}, selects the UTM zone for the placemarks that were
+   * read and processes them, as they would have been while reading.
+   */
+  private void selectCrs() {
+    if (_transforms != null) {
+      return;
+    }
+    String code = DEFAULT_CRS;
+    if (_minLat <= _maxLat) {
+      code = TransformRegistry.utmZone((_minLat + _maxLat) / 2, (_minLng + _maxLng) / 2);
+    }
+    _transforms = TransformRegistry.get(code);
+    List<PendingPlacemark> pending = _pending;
+    _pending = null;
+    for (PendingPlacemark p : pending) {
+      processPlacemark(p.placemark, p.type, p.lngLats, p.count);
+    }
+  }
 
-    for (Polyline p : _graph.go()) {
+  private MapData finish() {
+    try {
+      selectCrs();
+    } catch (IllegalStateException ex) {
+      ex.printStackTrace();
+    }
+    List<Polyline> polylines;
+    if (isPartitioned()) {
+      polylines = _partitionedGraph.go(_snapshot);
+      int featureCount = _data.features.size();
+      if (_partitionedGraph.getFailure() != null) {
+        // The sequential path stops reading at the polyline that fails, so
+        // drop everything read after it.
+        _partitionedGraph.getFailure().printStackTrace();
+        featureCount = _polylineFeatures.get(_partitionedGraph.getFailedPolyline());
+        _data.features.subList(featureCount, _data.features.size()).clear();
+      }
+      for (PendingPoint point : _points) {
+        if (point.feature < featureCount) {
+          _placemarks.addPlacemark(point.location, point.id);
+        }
+      }
+    } else {
+      polylines = _graph.go();
+    }
+    int[][][] levels = _levelsOfDetail ? simplify(polylines) : null;
+    Map<List<String>, Integer> channelClasses = new HashMap<>();
+    for (int i = 0; i < polylines.size(); ++i) {
+      Polyline p = polylines.get(i);
       MapSegment segment = new MapSegment();
       segment.ids = new ArrayList<>();
       for (Placemark placemark : p.placemarks) {
         segment.ids.add(placemark.getName());
       }
-      segment.line = encodePolyline(p.line);
+      segment.channelClass = channelClass(segment.ids, channelClasses);
+      double[] latLngs = toLatLngs(p.line);
+      segment.line = PolylineEncoder.encode(latLngs);
+      if (levels != null) {
+        segment.levels = new ArrayList<>();
+        for (int[][] level : levels) {
+          segment.levels.add(PolylineEncoder.encode(latLngs, level[i]));
+        }
+      }
       _data.segments.add(segment);
     }
+    if (levels != null) {
+      _data.levelZooms = new ArrayList<>();
+      for (int zoom : LEVEL_ZOOMS) {
+        _data.levelZooms.add(zoom);
+      }
+    }
     
+    List<Map.Entry<Coordinate, List<String>>> entries = new ArrayList<>();
+    List<Coordinate> locations = new ArrayList<>();
     for (Map.Entry<Coordinate, List<String>> entry : _placemarks.getEntries()) {
-      de.micromata.opengis.kml.v_2_2_0.Coordinate c = reverse(entry.getKey());
+      entries.add(entry);
+      locations.add(entry.getKey());
+    }
+    double[] latLngs = toLatLngs(locations);
+    for (int i = 0; i < entries.size(); ++i) {
       MapPlacemark placemark = new MapPlacemark();
-      placemark.lat = c.getLatitude();
-      placemark.lng = c.getLongitude();
-      placemark.ids = entry.getValue();
+      placemark.lat = latLngs[2 * i];
+      placemark.lng = latLngs[2 * i + 1];
+      placemark.ids = entries.get(i).getValue();
+      placemark.channelClass = channelClass(placemark.ids, channelClasses);
       _data.placemarks.add(placemark);
     }
     return _data;
   }
 
-  private String encodePolyline(List<Coordinate> line) {
-    List<LatLng> latLngs = new ArrayList<>();
-    for (Coordinate c : line) {
-      de.micromata.opengis.kml.v_2_2_0.Coordinate p = reverse(c);
-      latLngs.add(new LatLng(p.getLatitude(), p.getLongitude()));
+  /**
+   * Returns the index of an id list in {@link MapData#channelClasses}, adding
+   * it if it's new, or null without channel classes.
+   */
+  @Nullable
+  private Integer channelClass(List<String> ids, Map<List<String>, Integer> channelClasses) {
+    if (_data.channelClasses == null) {
+      return null;
+    }
+    Integer index = channelClasses.get(ids);
+    if (index == null) {
+      index = _data.channelClasses.size();
+      _data.channelClasses.add(ids);
+      channelClasses.put(ids, index);
+    }
+    return index;
+  }
+
+  /**
+   * Simplifies the polylines for each of {@link #LEVEL_ZOOMS}, to within half
+   * a pixel at the equator, which is a little under a pixel at mid latitudes.
+   *
+   * @return the indices of the vertices kept in each polyline, for each level
+   */
+  private static int[][][] simplify(List<Polyline> polylines) {
+    List<List<Coordinate>> lines = new ArrayList<>(polylines.size());
+    for (Polyline p : polylines) {
+      lines.add(p.line);
     }
-    return new EncodedPolyline(latLngs).getEncodedPath();
+    PolylineSimplifier simplifier = new PolylineSimplifier(lines);
+    int[][][] levels = new int[LEVEL_ZOOMS.length][][];
+    for (int i = 0; i < LEVEL_ZOOMS.length; ++i) {
+      double tolerance = METERS_PER_PIXEL_AT_ZOOM_0 / (1 << LEVEL_ZOOMS[i]) / 2;
+      levels[i] = simplifier.simplify(tolerance);
+    }
+    return levels;
+  }
+
+  /**
+   * Returns interleaved lat-lng values for the specified projected
+   * coordinates.  Coordinates that still carry their original WGS84 location
+   * use it directly, and the rest are inverse-projected in a single batch.
+   */
+  private double[] toLatLngs(List<Coordinate> coordinates) {
+    double[] latLngs = new double[coordinates.size() * 2];
+    double[] projected = null;
+    int[] indices = null;
+    int count = 0;
+    int index = 0;
+    for (Coordinate c : coordinates) {
+      if (c instanceof GeographicCoordinate) {
+        GeographicCoordinate g = (GeographicCoordinate) c;
+        latLngs[2 * index] = g.latitude;
+        latLngs[2 * index + 1] = g.longitude;
+      } else {
+        if (projected == null) {
+          projected = new double[latLngs.length];
+          indices = new int[coordinates.size()];
+        }
+        projected[2 * count] = c.x;
+        projected[2 * count + 1] = c.y;
+        indices[count++] = index;
+      }
+      index++;
+    }
+    if (count > 0) {
+      double[] lngLats = transform(_transforms.inverse, projected, count);
+      for (int i = 0; i < count; ++i) {
+        latLngs[2 * indices[i]] = lngLats[2 * i + 1];
+        latLngs[2 * indices[i] + 1] = lngLats[2 * i];
+      }
+    }
+    return latLngs;
+  }
+
+  private boolean isPartitioned() {
+    return _snapshot != null;
   }
 
   private void visitFeature(Feature feature) {
@@ -125,31 +391,68 @@ public class MapDataExtractor {
 
   private void processPlacemark(Placemark placemark) {
     Geometry geometry = placemark.getGeometry();
+    GeometryType type = GeometryType.OTHER;
+    List<de.micromata.opengis.kml.v_2_2_0.Coordinate> kmlCoordinates = Collections.emptyList();
     if (geometry instanceof LineString) {
-      Coordinate prev = null;
-      for (Coordinate c : convertCoordinates(((LineString) geometry).getCoordinates())) {
-        c = _graph.snapToGraph(c, prev);
-        if (prev != null) {
-          _graph.addEdge(prev, c, placemark);
-        }
-        prev = c;
-      }
+      type = GeometryType.LINE_STRING;
+      kmlCoordinates = ((LineString) geometry).getCoordinates();
     } else if (geometry instanceof  Point) {
-      List<Coordinate> coordinates = convertCoordinates(((Point) geometry).getCoordinates());
+      type = GeometryType.POINT;
+      kmlCoordinates = ((Point) geometry).getCoordinates();
+    }
+    double[] lngLats = new double[kmlCoordinates.size() * 2];
+    int index = 0;
+    for (de.micromata.opengis.kml.v_2_2_0.Coordinate raw : kmlCoordinates) {
+      lngLats[index++] = raw.getLongitude();
+      lngLats[index++] = raw.getLatitude();
+    }
+    processPlacemark(placemark, type, lngLats, kmlCoordinates.size());
+  }
+
+  private void processPlacemark(Placemark placemark, GeometryType type, double[] lngLats, int count) {
+    if (_transforms == null) {
+      for (int i = 0; i < count; ++i) {
+        _minLng = Math.min(_minLng, lngLats[2 * i]);
+        _maxLng = Math.max(_maxLng, lngLats[2 * i]);
+        _minLat = Math.min(_minLat, lngLats[2 * i + 1]);
+        _maxLat = Math.max(_maxLat, lngLats[2 * i + 1]);
+      }
+      _pending.add(new PendingPlacemark(placemark, type, Arrays.copyOf(lngLats, count * 2), count));
+      return;
+    }
+    if (type == GeometryType.LINE_STRING) {
+      List<Coordinate> coordinates = convertCoordinates(lngLats, count);
+      if (isPartitioned()) {
+        _polylineFeatures.add(_data.features.size());
+        _partitionedGraph.addPolyline(coordinates, placemark);
+      } else {
+        _graph.addPolyline(coordinates, placemark);
+      }
+    } else if (type == GeometryType.POINT) {
+      List<Coordinate> coordinates = convertCoordinates(lngLats, count);
       if (coordinates.size() != 1) {
         throw new IllegalStateException();
       }
-      _placemarks.addPlacemark(coordinates.get(0), placemark.getName());
+      if (isPartitioned()) {
+        _points.add(new PendingPoint(coordinates.get(0), placemark.getName(), _data.features.size()));
+      } else {
+        _placemarks.addPlacemark(coordinates.get(0), placemark.getName());
+      }
     }
     MapFeature feature = new MapFeature();
     feature.id = placemark.getName();
     _data.features.add(feature);
   }
 
-  private List<Coordinate> convertCoordinates(List<de.micromata.opengis.kml.v_2_2_0.Coordinate> kmlCoordinates) {
-    List<Coordinate> coordinates = new ArrayList<>();
-    for (de.micromata.opengis.kml.v_2_2_0.Coordinate raw : kmlCoordinates) {
-      coordinates.add(transform(raw));
+  /**
+   * Projects {@code count} interleaved longitude and latitude values.
+   */
+  private List<Coordinate> convertCoordinates(double[] lngLats, int count) {
+    double[] projected = transform(_transforms.forward, lngLats, count);
+    List<Coordinate> coordinates = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      coordinates.add(new GeographicCoordinate(projected[2 * i], projected[2 * i + 1],
+          lngLats[2 * i + 1], lngLats[2 * i]));
     }
     if (coordinates.size() < 2) {
       return coordinates;
@@ -162,23 +465,19 @@ public class MapDataExtractor {
     return coordinates;
   }
 
-  private Coordinate transform(de.micromata.opengis.kml.v_2_2_0.Coordinate c) {
-    Coordinate source = new Coordinate();
-    source.x = c.getLongitude();
-    source.y = c.getLatitude();
-    Coordinate dest = new Coordinate();
+  /**
+   * Transforms {@code count} interleaved x-y points in a single call.
+   */
+  private static double[] transform(MathTransform transform, double[] points, int count) {
+    double[] dest = new double[count * 2];
     try {
-      JTS.transform(source, dest, _transform);
+      transform.transform(points, 0, dest, 0, count);
       return dest;
     } catch (TransformException e) {
       throw new IllegalStateException(e);
     }
   }
 
-  private de.micromata.opengis.kml.v_2_2_0.Coordinate reverse(Coordinate c) {
-    return reverse(_reverseTransform, c);
-  }
-  
   public static de.micromata.opengis.kml.v_2_2_0.Coordinate reverse(MathTransform reverseTransform, Coordinate c) {
     Coordinate dest = new Coordinate();
     try {
@@ -188,23 +487,32 @@ public class MapDataExtractor {
       throw new IllegalStateException(e);
     }
   }
-  
 
-  private static MathTransform createTransform() {
-    try {
-      CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:4326");
-      CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:32610");
-      return CRS.findMathTransform(sourceCRS, targetCRS, false);
-    } catch (FactoryException ex) {
-      throw new IllegalStateException(ex);
+  private static class PendingPoint {
+    final Coordinate location;
+    final String id;
+
+    // The index of the point's feature.
+    final int feature;
+
+    PendingPoint(Coordinate location, String id, int feature) {
+      this.location = location;
+      this.id = id;
+      this.feature = feature;
     }
   }
 
-  private static MathTransform reverseTransform(MathTransform transform) {
-    try {
-      return _transform.inverse();
-    } catch (NoninvertibleTransformException e) {
-      throw new IllegalStateException(e);
+  private static class PendingPlacemark {
+    final Placemark placemark;
+    final GeometryType type;
+    final double[] lngLats;
+    final int count;
+
+    PendingPlacemark(Placemark placemark, GeometryType type, double[] lngLats, int count) {
+      this.placemark = placemark;
+      this.type = type;
+      this.lngLats = lngLats;
+      this.count = count;
     }
   }
 }
@@ -0,0 +1,591 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.google.infrastructuredmap.model.InternedMapData;
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapFeature;
+import com.google.infrastructuredmap.model.MapPlacemark;
+import com.google.infrastructuredmap.model.MapSegment;
+import com.google.infrastructuredmap.model.MapTile;
+import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Writes {@link MapData} as JSON, optionally wrapped in a JSONP template and
+ * optionally as {@link InternedMapData}, in a compact binary encoding, or as
+ * tiles.
+ *
+ * The data is serialized incrementally to a buffered writer, so the output is
+ * never held in memory as a single string.
+ */
+public class MapDataWriter {
+
+  /**
+   * Gson instances are immutable and thread-safe, so one is shared by every
+   * writer rather than rebuilding its type adapters for each output.
+   */
+  private static final Gson GSON = new Gson();
+
+  private static final String JSONP_PLACEHOLDER = "%s";
+
+  /**
+   * The name of the index file of tiled output.
+   */
+  public static final String TILE_INDEX = "index.json";
+
+  private static final String TILE_PREFIX = "tile";
+
+  private static final byte[] BINARY_MAGIC = {'I', 'S', 'M', 'B'};
+
+  private static final int BINARY_VERSION = 1;
+
+  /**
+   * The version with level-of-detail polylines, which is only written when
+   * the data has them, so that older clients can still read the rest.
+   */
+  private static final int BINARY_VERSION_WITH_LEVELS = 2;
+
+  /**
+   * The version with a flags field that says which optional sections follow
+   * the segments, written only when the data has channel classes.
+   */
+  private static final int BINARY_VERSION_WITH_FLAGS = 3;
+
+  private static final int BINARY_FLAG_LEVELS = 1;
+  private static final int BINARY_FLAG_CHANNEL_CLASSES = 2;
+  private static final int BINARY_FLAG_CHANNEL_CLASS_INDICES = 4;
+
+  /**
+   * Placemark coordinates are stored in millionths of a degree, which is
+   * about ten centimeters and finer than the encoded polylines.
+   */
+  private static final double BINARY_COORDINATE_SCALE = 1e6;
+
+  /**
+   * @param jsonpTemplate a format string with a single {@code %s} where the
+   *     JSON data goes, as for {@link String#format}
+   * @param interned if true, the data is written as {@link InternedMapData}
+   */
+  public static void writeJson(MapData data, Path path, @Nullable String jsonpTemplate,
+      boolean interned) throws IOException {
+    String prefix = "";
+    String suffix = "";
+    if (jsonpTemplate != null) {
+      int index = jsonpTemplate.indexOf(JSONP_PLACEHOLDER);
+      if (index < 0) {
+        throw new IllegalArgumentException("JSONP template has no " + JSONP_PLACEHOLDER + ": "
+            + jsonpTemplate);
+      }
+      // Format each half on its own so that escapes like %% behave as before.
+      prefix = String.format(jsonpTemplate.substring(0, index));
+      suffix = String.format(jsonpTemplate.substring(index + JSONP_PLACEHOLDER.length()));
+    }
+
+    try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      out.write(prefix);
+      if (interned) {
+        writeJson(new Interner(data).intern(data), InternedMapData.class, out);
+      } else {
+        writeJson(data, MapData.class, out);
+      }
+      out.write(suffix);
+    }
+  }
+
+  private static void writeJson(Object data, Class<?> type, Writer out) throws IOException {
+    JsonWriter writer = GSON.newJsonWriter(out);
+    GSON.toJson(data, type, writer);
+    writer.flush();
+  }
+
+  /**
+   * Writes the data in the binary encoding read by the
+   * {@code InfraStructuredMap.prototype.load} JavaScript client.
+   *
+   * All integers are unsigned LEB128 varints, and signed values are zigzag
+   * encoded.  A string reference is the index of the string in the string
+   * table plus one, with zero for null.  The layout is:
+   *
+   * <pre>
+   * magic "ISMB", version, and from version 3 on, flags
+   * string table: count, the UTF-16 length of each string, then the UTF-8
+   *   bytes of all strings, concatenated and prefixed by their total length
+   * features: count, then for each feature
+   *   id, project count, then for each project
+   *     title count, title strings, headingId, timeline, status, color
+   * placemarks: count, then for each placemark
+   *   lat and lng deltas from the previous placemark (signed, 1e-6 degrees),
+   *   id count, ids
+   * segments: count, then for each segment
+   *   encoded polyline length, id count, ids
+   * then the ASCII bytes of all encoded polylines, concatenated and prefixed
+   *   by their total length
+   * levels, only in version 2 or with flag 1: count, the highest zoom of each
+   *   level, then for each segment the encoded polyline length of each level
+   * then the ASCII bytes of all level polylines, concatenated and prefixed by
+   *   their total length
+   * channel classes, only with flag 2: count, then for each class
+   *   id count, ids
+   * channel class indices, only with flag 4: the class of each placemark,
+   *   then of each segment
+   * </pre>
+   *
+   * Tiles have channel class indices but no classes, which are in the index.
+   *
+   * Strings and polylines are concatenated so that a client can decode each
+   * group with a single call and then slice it, rather than decoding many
+   * short byte ranges.
+   */
+  public static void writeBinary(MapData data, Path path) throws IOException {
+    try (OutputStream stream = Files.newOutputStream(path)) {
+      writeBinary(data, stream);
+    }
+  }
+
+  private static void writeBinary(MapData data, OutputStream stream) throws IOException {
+    Map<String, Integer> strings = collectStrings(data);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.write(BINARY_MAGIC);
+    int flags = (data.levelZooms != null ? BINARY_FLAG_LEVELS : 0)
+        | (data.channelClasses != null ? BINARY_FLAG_CHANNEL_CLASSES : 0)
+        | (hasChannelClassIndices(data) ? BINARY_FLAG_CHANNEL_CLASS_INDICES : 0);
+    if ((flags & ~BINARY_FLAG_LEVELS) != 0) {
+      writeVarint(out, BINARY_VERSION_WITH_FLAGS);
+      writeVarint(out, flags);
+    } else {
+      writeVarint(out, flags != 0 ? BINARY_VERSION_WITH_LEVELS : BINARY_VERSION);
+    }
+
+    StringBuilder allStrings = new StringBuilder();
+    writeVarint(out, strings.size());
+    for (String string : strings.keySet()) {
+      writeVarint(out, string.length());
+      allStrings.append(string);
+    }
+    writeBytes(out, allStrings.toString().getBytes(StandardCharsets.UTF_8));
+
+    writeVarint(out, data.features.size());
+    for (MapFeature feature : data.features) {
+      writeString(out, strings, feature.id);
+      List<ProjectReference> projects = feature.projects != null
+          ? feature.projects : new ArrayList<ProjectReference>();
+      writeVarint(out, projects.size());
+      for (ProjectReference project : projects) {
+        writeStrings(out, strings, project.title);
+        writeString(out, strings, project.headingId);
+        writeString(out, strings, project.timeline);
+        writeString(out, strings, project.status);
+        writeString(out, strings, project.color);
+      }
+    }
+
+    writeVarint(out, data.placemarks.size());
+    long prevLat = 0;
+    long prevLng = 0;
+    for (MapPlacemark placemark : data.placemarks) {
+      long lat = Math.round(placemark.lat * BINARY_COORDINATE_SCALE);
+      long lng = Math.round(placemark.lng * BINARY_COORDINATE_SCALE);
+      writeSignedVarint(out, lat - prevLat);
+      writeSignedVarint(out, lng - prevLng);
+      prevLat = lat;
+      prevLng = lng;
+      writeStrings(out, strings, placemark.ids);
+    }
+
+    writeVarint(out, data.segments.size());
+    long lineLength = 0;
+    for (MapSegment segment : data.segments) {
+      writeVarint(out, segment.line.length());
+      writeStrings(out, strings, segment.ids);
+      lineLength += segment.line.length();
+    }
+    writeVarint(out, lineLength);
+    for (MapSegment segment : data.segments) {
+      out.write(segment.line.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    if (data.levelZooms != null) {
+      writeVarint(out, data.levelZooms.size());
+      for (int zoom : data.levelZooms) {
+        writeVarint(out, zoom);
+      }
+      long levelLength = 0;
+      for (MapSegment segment : data.segments) {
+        for (String level : segment.levels) {
+          writeVarint(out, level.length());
+          levelLength += level.length();
+        }
+      }
+      writeVarint(out, levelLength);
+      for (MapSegment segment : data.segments) {
+        for (String level : segment.levels) {
+          out.write(level.getBytes(StandardCharsets.US_ASCII));
+        }
+      }
+    }
+
+    if (data.channelClasses != null) {
+      writeVarint(out, data.channelClasses.size());
+      for (List<String> ids : data.channelClasses) {
+        writeStrings(out, strings, ids);
+      }
+    }
+    if ((flags & BINARY_FLAG_CHANNEL_CLASS_INDICES) != 0) {
+      for (MapPlacemark placemark : data.placemarks) {
+        writeVarint(out, placemark.channelClass);
+      }
+      for (MapSegment segment : data.segments) {
+        writeVarint(out, segment.channelClass);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * The extractor gives every segment and placemark a channel class or none
+   * of them, so the first one tells.
+   */
+  private static boolean hasChannelClassIndices(MapData data) {
+    if (!data.placemarks.isEmpty()) {
+      return data.placemarks.get(0).channelClass != null;
+    }
+    return !data.segments.isEmpty() && data.segments.get(0).channelClass != null;
+  }
+
+  /**
+   * Writes the data as tiles for the {@code InfraStructuredMap.prototype.loadTiled}
+   * JavaScript client, which only loads the tiles in view.  The segments and
+   * placemarks are partitioned into a quadtree of tile files by
+   * {@link MapTiler}, and a {@link #TILE_INDEX} JSON file holds the features,
+   * with their projects, and the path and bounds of each tile.
+   *
+   * Tile files are named by their content hash, so an unchanged tile keeps its
+   * name from one run to the next and can be cached indefinitely.  The index
+   * is written last, and then the tiles it no longer refers to are deleted.
+   *
+   * With {@code interned}, the index is {@link InternedMapData} with the
+   * string, project and feature tables, and each tile is
+   * {@link InternedMapData} with segments and placemarks that refer to the
+   * index's features.
+   *
+   * @param binary if true, tiles are written in the binary encoding rather
+   *     than as JSON
+   * @param interned if true, the index and tiles are {@link InternedMapData}
+   */
+  public static void writeTiles(MapData data, Path dir, boolean binary, boolean interned)
+      throws IOException {
+    if (binary && interned) {
+      throw new IllegalArgumentException("Binary tiles can't be interned");
+    }
+    Files.createDirectories(dir);
+    MapData index = new MapData();
+    // Every placemark has a feature, so ids repeat, but clients look projects
+    // up by id and only need one of each.
+    Set<String> ids = new HashSet<>();
+    for (MapFeature feature : data.features) {
+      if (ids.add(feature.id)) {
+        index.features.add(feature);
+      }
+    }
+    index.levelZooms = data.levelZooms;
+    index.channelClasses = data.channelClasses;
+    index.tiles = new ArrayList<>();
+    Interner interner = interned ? new Interner(data) : null;
+    Set<String> names = new HashSet<>();
+    for (MapTiler.Tile tile : MapTiler.partition(data)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      if (binary) {
+        writeBinary(tile.data, bytes);
+      } else {
+        Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        if (interner != null) {
+          writeJson(interner.internGeometry(tile.data), InternedMapData.class, out);
+        } else {
+          writeJson(tile.data, MapData.class, out);
+        }
+        out.flush();
+      }
+      byte[] content = bytes.toByteArray();
+      String name = TILE_PREFIX + tile.key + "-" + SourceCache.hash(content).substring(0, 16)
+          + (binary ? ".bin" : ".json");
+      if (!Files.exists(dir.resolve(name))) {
+        writeAtomically(dir.resolve(name), content);
+      }
+      names.add(name);
+
+      MapTile entry = new MapTile();
+      entry.path = name;
+      entry.south = tile.south;
+      entry.west = tile.west;
+      entry.north = tile.north;
+      entry.east = tile.east;
+      index.tiles.add(entry);
+    }
+    String indexJson = interner != null ? GSON.toJson(interner.intern(index)) : GSON.toJson(index);
+    writeAtomically(dir.resolve(TILE_INDEX), indexJson.getBytes(StandardCharsets.UTF_8));
+
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(dir, TILE_PREFIX + "*-*.{json,bin}")) {
+      for (Path file : files) {
+        if (!names.contains(file.getFileName().toString())) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the string, project and feature tables of {@link InternedMapData}
+   * for a map, and refers to them from the map's segments and placemarks, or
+   * from those of a part of the map.
+   */
+  private static class Interner {
+    private final InternedMapData _tables = new InternedMapData();
+    private final Map<String, Integer> _strings = new HashMap<>();
+    /**
+     * Projects are interned by value: each project is referenced by a
+     * separate {@link ProjectReference} for every id it lists.
+     */
+    private final Map<List<Object>, Integer> _projects = new HashMap<>();
+    private final Map<String, Integer> _features = new HashMap<>();
+
+    Interner(MapData data) {
+      _tables.strings = new ArrayList<>();
+      _tables.projects = new ArrayList<>();
+      _tables.features = new ArrayList<>();
+      for (MapFeature feature : data.features) {
+        if (_features.containsKey(feature.id)) {
+          continue;
+        }
+        InternedMapData.Feature interned = new InternedMapData.Feature();
+        interned.id = string(feature.id);
+        if (feature.projects != null) {
+          interned.projects = new ArrayList<>();
+          for (ProjectReference project : feature.projects) {
+            interned.projects.add(project(project));
+          }
+        }
+        _features.put(feature.id, _tables.features.size());
+        _tables.features.add(interned);
+      }
+    }
+
+    /**
+     * Returns the tables, with the segments and placemarks of {@code data}.
+     */
+    InternedMapData intern(MapData data) {
+      InternedMapData interned = internGeometry(data);
+      interned.strings = _tables.strings;
+      interned.projects = _tables.projects;
+      interned.features = _tables.features;
+      interned.tiles = data.tiles;
+      if (data.channelClasses != null) {
+        interned.channelClasses = new ArrayList<>();
+        for (List<String> ids : data.channelClasses) {
+          interned.channelClasses.add(features(ids));
+        }
+      }
+      return interned;
+    }
+
+    /**
+     * Returns the segments and placemarks of {@code data}, without the tables.
+     */
+    InternedMapData internGeometry(MapData data) {
+      InternedMapData interned = new InternedMapData();
+      interned.placemarks = new ArrayList<>();
+      for (MapPlacemark placemark : data.placemarks) {
+        InternedMapData.Placemark p = new InternedMapData.Placemark();
+        p.lat = placemark.lat;
+        p.lng = placemark.lng;
+        p.features = features(placemark.ids);
+        p.channelClass = placemark.channelClass;
+        interned.placemarks.add(p);
+      }
+      interned.segments = new ArrayList<>();
+      for (MapSegment segment : data.segments) {
+        InternedMapData.Segment s = new InternedMapData.Segment();
+        s.line = segment.line;
+        s.features = features(segment.ids);
+        s.channelClass = segment.channelClass;
+        s.levels = segment.levels;
+        interned.segments.add(s);
+      }
+      interned.levelZooms = data.levelZooms;
+      return interned;
+    }
+
+    private List<Integer> features(List<String> ids) {
+      List<Integer> features = new ArrayList<>(ids.size());
+      for (String id : ids) {
+        Integer index = _features.get(id);
+        if (index == null) {
+          throw new IllegalArgumentException("No feature with id " + id);
+        }
+        features.add(index);
+      }
+      return features;
+    }
+
+    private int project(ProjectReference project) {
+      List<Integer> title = null;
+      if (project.title != null) {
+        title = new ArrayList<>(project.title.size());
+        for (String line : project.title) {
+          title.add(string(line));
+        }
+      }
+      List<Object> key = Arrays.<Object>asList(title, string(project.headingId),
+          string(project.timeline), string(project.status), string(project.color));
+      Integer index = _projects.get(key);
+      if (index == null) {
+        InternedMapData.Project interned = new InternedMapData.Project();
+        interned.title = title;
+        interned.headingId = (Integer) key.get(1);
+        interned.timeline = (Integer) key.get(2);
+        interned.status = (Integer) key.get(3);
+        interned.color = (Integer) key.get(4);
+        index = _tables.projects.size();
+        _tables.projects.add(interned);
+        _projects.put(key, index);
+      }
+      return index;
+    }
+
+    @Nullable
+    private Integer string(@Nullable String string) {
+      if (string == null) {
+        return null;
+      }
+      Integer index = _strings.get(string);
+      if (index == null) {
+        index = _tables.strings.size();
+        _tables.strings.add(string);
+        _strings.put(string, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Writes a file by moving a complete sibling over it, so that a client
+   * never reads a partial file.
+   */
+  private static void writeAtomically(Path path, byte[] content) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      Files.write(temp, content);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static Map<String, Integer> collectStrings(MapData data) {
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    for (MapFeature feature : data.features) {
+      addString(strings, feature.id);
+      if (feature.projects == null) {
+        continue;
+      }
+      for (ProjectReference project : feature.projects) {
+        if (project.title != null) {
+          for (String title : project.title) {
+            addString(strings, title);
+          }
+        }
+        addString(strings, project.headingId);
+        addString(strings, project.timeline);
+        addString(strings, project.status);
+        addString(strings, project.color);
+      }
+    }
+    for (MapPlacemark placemark : data.placemarks) {
+      for (String id : placemark.ids) {
+        addString(strings, id);
+      }
+    }
+    for (MapSegment segment : data.segments) {
+      for (String id : segment.ids) {
+        addString(strings, id);
+      }
+    }
+    return strings;
+  }
+
+  private static void addString(Map<String, Integer> strings, @Nullable String string) {
+    if (string != null && !strings.containsKey(string)) {
+      strings.put(string, strings.size());
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, Map<String, Integer> strings,
+      @Nullable List<String> values) throws IOException {
+    if (values == null) {
+      writeVarint(out, 0);
+      return;
+    }
+    writeVarint(out, values.size());
+    for (String value : values) {
+      writeString(out, strings, value);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, Map<String, Integer> strings,
+      @Nullable String value) throws IOException {
+    writeVarint(out, value == null ? 0 : strings.get(value) + 1);
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    writeVarint(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeSignedVarint(DataOutputStream out, long value) throws IOException {
+    writeVarint(out, (value << 1) ^ (value >> 63));
+  }
+
+  private static void writeVarint(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapPlacemark;
+import com.google.infrastructuredmap.model.MapSegment;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partitions the segments and placemarks of a map into a quadtree of tiles,
+ * so that a client only has to load the tiles in view.
+ *
+ * Each segment or placemark belongs to exactly one tile, the leaf cell
+ * containing the center of its bounding box, and a tile's bounds are the
+ * union of its contents' bounding boxes.  A client that loads every tile
+ * whose bounds intersect the viewport therefore has everything in view,
+ * without any feature being duplicated across tiles.
+ */
+final class MapTiler {
+
+  /**
+   * A cell is split into quadrants while it holds more items than this.
+   */
+  static final int MAX_TILE_ITEMS = 500;
+
+  /**
+   * Cells aren't split any further than this, in case many items share a
+   * center.
+   */
+  private static final int MAX_DEPTH = 16;
+
+  /**
+   * A leaf of the quadtree.
+   */
+  static class Tile {
+    /**
+     * The quadrants from the root to the tile, each a digit from 0 to 3: one
+     * for the east half, plus two for the north half.
+     */
+    final String key;
+
+    /**
+     * The tile's segments and placemarks, with no features.
+     */
+    final MapData data = new MapData();
+
+    double south = Double.POSITIVE_INFINITY;
+    double west = Double.POSITIVE_INFINITY;
+    double north = Double.NEGATIVE_INFINITY;
+    double east = Double.NEGATIVE_INFINITY;
+
+    private Tile(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A segment or placemark and its bounding box.
+   */
+  private static class Item {
+    final Object feature;
+    final double south;
+    final double west;
+    final double north;
+    final double east;
+
+    Item(Object feature, double south, double west, double north, double east) {
+      this.feature = feature;
+      this.south = south;
+      this.west = west;
+      this.north = north;
+      this.east = east;
+    }
+
+    double centerLat() {
+      return (south + north) / 2;
+    }
+
+    double centerLng() {
+      return (west + east) / 2;
+    }
+  }
+
+  private MapTiler() {}
+
+  /**
+   * Returns the non-empty tiles of the map, in depth-first order of their
+   * keys.  Segments and placemarks keep their relative order within a tile.
+   */
+  static List<Tile> partition(MapData data) {
+    List<Item> items = new ArrayList<>();
+    for (MapSegment segment : data.segments) {
+      double[] latLngs = PolylineEncoder.decode(segment.line);
+      double south = Double.POSITIVE_INFINITY;
+      double west = Double.POSITIVE_INFINITY;
+      double north = Double.NEGATIVE_INFINITY;
+      double east = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < latLngs.length; i += 2) {
+        south = Math.min(south, latLngs[i]);
+        north = Math.max(north, latLngs[i]);
+        west = Math.min(west, latLngs[i + 1]);
+        east = Math.max(east, latLngs[i + 1]);
+      }
+      if (latLngs.length > 0) {
+        items.add(new Item(segment, south, west, north, east));
+      }
+    }
+    for (MapPlacemark placemark : data.placemarks) {
+      items.add(new Item(placemark, placemark.lat, placemark.lng, placemark.lat, placemark.lng));
+    }
+
+    double south = Double.POSITIVE_INFINITY;
+    double west = Double.POSITIVE_INFINITY;
+    double north = Double.NEGATIVE_INFINITY;
+    double east = Double.NEGATIVE_INFINITY;
+    for (Item item : items) {
+      south = Math.min(south, item.centerLat());
+      north = Math.max(north, item.centerLat());
+      west = Math.min(west, item.centerLng());
+      east = Math.max(east, item.centerLng());
+    }
+    List<Tile> tiles = new ArrayList<>();
+    if (!items.isEmpty()) {
+      partition(items, "", south, west, north, east, data, tiles);
+    }
+    return tiles;
+  }
+
+  private static void partition(List<Item> items, String key, double south, double west,
+      double north, double east, MapData data, List<Tile> tiles) {
+    if (items.size() > MAX_TILE_ITEMS && key.length() < MAX_DEPTH) {
+      double midLat = (south + north) / 2;
+      double midLng = (west + east) / 2;
+      List<List<Item>> quadrants = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        quadrants.add(new ArrayList<Item>());
+      }
+      for (Item item : items) {
+        int quadrant = (item.centerLng() >= midLng ? 1 : 0) + (item.centerLat() >= midLat ? 2 : 0);
+        quadrants.get(quadrant).add(item);
+      }
+      for (int i = 0; i < 4; ++i) {
+        if (quadrants.get(i).isEmpty()) {
+          continue;
+        }
+        boolean isEast = (i & 1) != 0;
+        boolean isNorth = (i & 2) != 0;
+        partition(quadrants.get(i), key + i, isNorth ? midLat : south, isEast ? midLng : west,
+            isNorth ? north : midLat, isEast ? east : midLng, data, tiles);
+      }
+      return;
+    }
+
+    Tile tile = new Tile(key);
+    tile.data.levelZooms = data.levelZooms;
+    for (Item item : items) {
+      if (item.feature instanceof MapSegment) {
+        tile.data.segments.add((MapSegment) item.feature);
+      } else {
+        tile.data.placemarks.add((MapPlacemark) item.feature);
+      }
+      tile.south = Math.min(tile.south, item.south);
+      tile.west = Math.min(tile.west, item.west);
+      tile.north = Math.max(tile.north, item.north);
+      tile.east = Math.max(tile.east, item.east);
+    }
+    tiles.add(tile);
+  }
+}
@@ -16,7 +16,9 @@
 package com.google.infrastructuredmap;
 
 import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
@@ -29,14 +31,16 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import org.pegdown.PegDownProcessor;
 import org.pegdown.ast.HeaderNode;
 import org.pegdown.ast.HtmlBlockNode;
 import org.pegdown.ast.InlineHtmlNode;
 import org.pegdown.ast.Node;
-import org.pegdown.ast.RootNode;
 import org.pegdown.ast.SuperNode;
 import org.pegdown.ast.TextNode;
 
@@ -46,72 +50,493 @@ import org.pegdown.ast.TextNode;
  */
 public class MarkdownReferenceExtractor {
 
-  private static Pattern _metadataPattern = Pattern.compile("<!--(.*)-->", Pattern.DOTALL);
+  private static final String COMMENT_START = "<!--";
+  private static final String COMMENT_END = "-->";
+  private static final String CODE_FENCE = "```";
+
+  /**
+   * Building a processor generates and loads its parser classes, which costs
+   * far more than parsing a typical document.  Processors aren't thread-safe,
+   * so each thread keeps its own for reuse across documents.
+   */
+  private static final ThreadLocal<PegDownProcessor> _processor =
+      new ThreadLocal<PegDownProcessor>() {
+        @Override
+        protected PegDownProcessor initialValue() {
+          return new PegDownProcessor();
+        }
+      };
 
   private MarkdownReferenceExtractor() {
   }
 
+  private static final Map<String, Status> _statusByName = lookupByName(Status.values());
+  private static final Map<String, Timeline> _timelineByName = lookupByName(Timeline.values());
+
   private Deque<String> _headers = new ArrayDeque<>();
+  // The anchor id of the innermost header, computed when first needed.
+  private String _headingId;
+  private final Metadata _metadata = new Metadata();
   private Map<String, List<ProjectReference>> _referencesById = new HashMap<>();
 
+  // State of the line scanner.  The last line of the current paragraph, which
+  // becomes a setext heading if the next line underlines it.
+  private String _paragraphLine;
+  private boolean _inParagraph;
+  private boolean _inList;
+  // The start of a comment that continues onto following lines, and whether
+  // it started an HTML block rather than being inline in a paragraph.
+  private StringBuilder _comment;
+  private boolean _commentIsBlock;
+  // The lines of a paragraph from a "```" line, which are a code span if a
+  // closing "```" line follows before the end of the paragraph.
+  private List<String> _codeSpan;
+
   /**
-   * Returns a mapping of {@link ProjectReference}, grouped by project id.
+   * How a document is read.
+   */
+  public enum Parser {
+    /**
+     * A full Pegdown parse of the document.  HTML other than a metadata
+     * comment is an error.
+     */
+    PEGDOWN,
+    /**
+     * A single pass over the lines of the document, looking only at headings
+     * and {@code <!-- ... -->} comments, without parsing it as a whole.  The
+     * result matches {@link #PEGDOWN} for the Markdown that planning documents
+     * use: ATX and setext headings with plain, emphasized, code or linked
+     * text, and comments on their own lines or inline in paragraphs, lists and
+     * block quotes.  Comments in indented code blocks, including those nested
+     * in lists, and between "```" lines are skipped.  Pegdown has no fenced
+     * code blocks, so "```" lines only hide comments as the delimiters of a
+     * code span within one paragraph, and "~~~" lines don't at all.  Headings
+     * in block quotes aren't recognized, and other HTML is ignored rather than
+     * reported.
+     */
+    SCANNER
+  }
+
+  /**
+   * Returns a mapping of {@link ProjectReference}, grouped by project id,
+   * from a Pegdown parse of the document.
    */
   public static Map<String, List<ProjectReference>> extractReferences(Path path) throws IOException {
-    CharBuffer decode = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Files.readAllBytes(path)));
-    PegDownProcessor processor = new PegDownProcessor();
-    RootNode node = processor.parseMarkdown(decode.array());
+    return extractReferences(path, Parser.PEGDOWN);
+  }
 
+  /**
+   * Returns a mapping of {@link ProjectReference}, grouped by project id.
+   */
+  public static Map<String, List<ProjectReference>> extractReferences(Path path, Parser parser)
+      throws IOException {
     MarkdownReferenceExtractor extractor = new MarkdownReferenceExtractor();
-    extractor.visit(node, "");
+    if (parser == Parser.SCANNER) {
+      try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        extractor.scan(reader);
+      }
+    } else {
+      CharBuffer decode = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Files.readAllBytes(path)));
+      extractor.visit(_processor.get().parseMarkdown(decode.array()));
+    }
     return extractor._referencesById;
   }
 
-  private void visit(Node node, String prefix) {
-    if (node instanceof HeaderNode) {
-      HeaderNode header = (HeaderNode) node;
-      while (_headers.size() >= header.getLevel()) {
-        _headers.pop();
+  /**
+   * Returns a mapping of {@link ProjectReference} from several documents,
+   * grouped by project id.  The references for an id are ordered by document,
+   * in the order of {@code paths}, and then by position in the document.
+   *
+   * @param executor if set, the documents are parsed in parallel on this
+   *     executor
+   */
+  public static Map<String, List<ProjectReference>> extractReferences(List<Path> paths,
+      final Parser parser, @Nullable ExecutorService executor) throws IOException {
+    List<Map<String, List<ProjectReference>>> results = new ArrayList<>(paths.size());
+    if (executor == null || paths.size() < 2) {
+      for (Path path : paths) {
+        results.add(extractReferencesWithContext(path, parser));
       }
-      _headers.push(toString(node, new StringBuilder()).toString());
-    } else if (node instanceof HtmlBlockNode || node instanceof InlineHtmlNode) {
-      TextNode block = (TextNode) node;
-      Matcher m = _metadataPattern.matcher(block.getText());
-      if (m.matches()) {
-        Map<String, String> metadata = extractMetadata(m.group(1));
-        ProjectReference reference = new ProjectReference();
-        String id = metadata.get("id");
-        reference.status = metadata.get("status");
-        reference.timeline = metadata.get("timeline");
-        if ("completed".equals(reference.status) && reference.timeline == null) {
-          reference.timeline = "completed";
-        }
-        
-        if (metadata.containsKey("color")) {
-          reference.color = metadata.get("color");
-        }
-        reference.title = new ArrayList<>(_headers);
-        Collections.reverse(reference.title);
-        if (metadata.containsKey("label")) {
-          reference.title.add(metadata.get("label"));
-        }
-        reference.headingId = generateHeaderIdFromString(_headers.getFirst()); 
-        
-        validate(id, reference);
-        
-        List<ProjectReference> references = _referencesById.get(id);
+    } else {
+      List<Future<Map<String, List<ProjectReference>>>> futures = new ArrayList<>(paths.size());
+      for (final Path path : paths) {
+        futures.add(executor.submit(new Callable<Map<String, List<ProjectReference>>>() {
+          @Override
+          public Map<String, List<ProjectReference>> call() throws IOException {
+            return extractReferencesWithContext(path, parser);
+          }
+        }));
+      }
+      for (Future<Map<String, List<ProjectReference>>> future : futures) {
+        results.add(getResult(future));
+      }
+    }
+
+    Map<String, List<ProjectReference>> merged = new HashMap<>();
+    for (Map<String, List<ProjectReference>> result : results) {
+      for (Map.Entry<String, List<ProjectReference>> entry : result.entrySet()) {
+        List<ProjectReference> references = merged.get(entry.getKey());
         if (references == null) {
-          references = new ArrayList<>();
-          _referencesById.put(id, references);
+          merged.put(entry.getKey(), entry.getValue());
+        } else {
+          references.addAll(entry.getValue());
         }
-        references.add(reference);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * As {@link #extractReferences(Path, Parser)}, but names the document in
+   * the message of a parse error.
+   */
+  private static Map<String, List<ProjectReference>> extractReferencesWithContext(Path path,
+      Parser parser) throws IOException {
+    try {
+      return extractReferences(path, parser);
+    } catch (RuntimeException ex) {
+      throw new IllegalStateException(path + ": " + ex.getMessage(), ex);
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private void scan(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      scanLine(line);
+    }
+    if (_codeSpan != null) {
+      endUnclosedCodeSpan();
+    }
+  }
+
+  private void scanLine(String line) {
+    if (_comment != null) {
+      int end = line.indexOf(COMMENT_END);
+      if (end < 0) {
+        _comment.append('\n').append(line);
+        return;
+      }
+      end += COMMENT_END.length();
+      _comment.append('\n').append(line, 0, end);
+      addMetadata(_comment.toString());
+      _comment = null;
+      _inParagraph = !_commentIsBlock || !line.substring(end).trim().isEmpty();
+      scanComments(line, end);
+      return;
+    }
+    String trimmed = line.trim();
+    if (_codeSpan != null) {
+      if (trimmed.isEmpty()) {
+        endUnclosedCodeSpan();
+      } else if (trimmed.startsWith(CODE_FENCE)) {
+        // The code span ends, but its paragraph continues.
+        _codeSpan = null;
+        _paragraphLine = null;
+        _inParagraph = true;
+        return;
+      } else {
+        _codeSpan.add(line);
+        return;
+      }
+    }
+    if (trimmed.isEmpty()) {
+      _paragraphLine = null;
+      _inParagraph = false;
+      return;
+    }
+
+    int indent = indentation(line);
+    if (_inList && indent == 0 && !_inParagraph && !isListItem(trimmed)) {
+      _inList = false;
+    }
+    if (!_inParagraph && indent >= (_inList ? 8 : 4)) {
+      // An indented code block.
+      _paragraphLine = null;
+      return;
+    }
+    if (isListItem(trimmed)) {
+      _inList = true;
+    }
+    if (trimmed.startsWith(CODE_FENCE) && trimmed.indexOf(CODE_FENCE, CODE_FENCE.length()) < 0) {
+      _codeSpan = new ArrayList<>();
+      _codeSpan.add(line);
+      return;
+    }
+    if (_paragraphLine != null && isSetextUnderline(line)) {
+      addHeader(line.charAt(0) == '=' ? 1 : 2, headingText(_paragraphLine));
+      _paragraphLine = null;
+      _inParagraph = false;
+      return;
+    }
+    if (line.startsWith("#")) {
+      int level = 0;
+      while (level < line.length() && line.charAt(level) == '#') {
+        level++;
+      }
+      String text = stripClosingHashes(line.substring(level));
+      if (!text.isEmpty()) {
+        addHeader(Math.min(level, 6), headingText(text));
+        _paragraphLine = null;
+        _inParagraph = false;
+        return;
+      }
+    }
+    scanText(line);
+  }
+
+  /**
+   * Scans a line of paragraph text, or a comment that starts an HTML block.
+   */
+  private void scanText(String line) {
+    boolean block = !_inParagraph && line.trim().startsWith(COMMENT_START);
+    _paragraphLine = line;
+    _inParagraph = true;
+    _commentIsBlock = block;
+    scanComments(line, 0);
+    if (block && _comment == null && line.trim().endsWith(COMMENT_END)) {
+      _inParagraph = false;
+    }
+  }
+
+  /**
+   * Adds the comments in {@code line} from {@code start}, and starts one that
+   * continues onto following lines.
+   */
+  private void scanComments(String line, int start) {
+    start = line.indexOf(COMMENT_START, start);
+    while (start >= 0) {
+      _paragraphLine = null;
+      int end = line.indexOf(COMMENT_END, start + COMMENT_START.length());
+      if (end < 0) {
+        _comment = new StringBuilder(line.substring(start));
+        break;
+      }
+      addMetadata(line.substring(start, end + COMMENT_END.length()));
+      start = line.indexOf(COMMENT_START, end + COMMENT_END.length());
+    }
+  }
+
+  /**
+   * Scans the lines from a "```" line that wasn't closed within its paragraph
+   * as plain text.
+   */
+  private void endUnclosedCodeSpan() {
+    List<String> lines = _codeSpan;
+    _codeSpan = null;
+    scanText(lines.get(0));
+    for (int i = 1; i < lines.size(); ++i) {
+      scanLine(lines.get(i));
+    }
+  }
+
+  /**
+   * Returns the column of the first character of {@code line} that isn't a
+   * space or tab, with tab stops every 4 columns.
+   */
+  private static int indentation(String line) {
+    int column = 0;
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (c == ' ') {
+        column++;
+      } else if (c == '\t') {
+        column += 4 - column % 4;
+      } else {
+        break;
+      }
+    }
+    return column;
+  }
+
+  private static boolean isListItem(String trimmed) {
+    int i = 0;
+    if (trimmed.charAt(0) == '*' || trimmed.charAt(0) == '+' || trimmed.charAt(0) == '-') {
+      i = 1;
+    } else {
+      while (i < trimmed.length() && trimmed.charAt(i) >= '0' && trimmed.charAt(i) <= '9') {
+        i++;
+      }
+      if (i == 0 || i == trimmed.length() || trimmed.charAt(i) != '.') {
+        return false;
+      }
+      i++;
+    }
+    return i < trimmed.length() && (trimmed.charAt(i) == ' ' || trimmed.charAt(i) == '\t');
+  }
+
+  /**
+   * Returns true if {@code line} underlines a setext heading: at least three
+   * '=' or '-' characters from its first column, as Pegdown requires, and
+   * optional trailing whitespace.
+   */
+  private static boolean isSetextUnderline(String line) {
+    int end = line.length();
+    while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+      end--;
+    }
+    if (end < 3 || (line.charAt(0) != '=' && line.charAt(0) != '-')) {
+      return false;
+    }
+    for (int i = 1; i < end; ++i) {
+      if (line.charAt(i) != line.charAt(0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes an optional closing sequence of '#' characters, and surrounding
+   * whitespace, from the text of an ATX heading.
+   */
+  private static String stripClosingHashes(String text) {
+    int end = text.length();
+    while (end > 0 && text.charAt(end - 1) == '#') {
+      end--;
+    }
+    if (end < text.length() && end > 0 && !Character.isWhitespace(text.charAt(end - 1))) {
+      // Part of the heading text, like "C#".
+      end = text.length();
+    }
+    return text.substring(0, end).trim();
+  }
+
+  /**
+   * Returns heading text as Pegdown's text nodes would spell it: with runs of
+   * whitespace collapsed, backslash escapes resolved, and the markup of
+   * emphasis, code spans and links removed.
+   */
+  private static String headingText(String text) {
+    StringBuilder b = new StringBuilder(text.length());
+    boolean space = false;
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c == ' ' || c == '\t') {
+        space = b.length() > 0;
+        continue;
+      }
+      if (space) {
+        b.append(' ');
+        space = false;
+      }
+      if (c == '\\' && i + 1 < text.length() && isEscapable(text.charAt(i + 1))) {
+        b.append(text.charAt(++i));
+      } else if ((c == '*' || c == '`') && !isSpaced(text, i)) {
+        // Emphasis and code span delimiters.
+      } else if (c == '_' && !isSpaced(text, i) && (i == 0 || i + 1 == text.length()
+          || !Character.isLetterOrDigit(text.charAt(i - 1))
+          || !Character.isLetterOrDigit(text.charAt(i + 1)))) {
+        // Underscore emphasis, but not an underscore inside a word.
+      } else if (c == '[' || (c == ']' && !startsLinkTarget(text, i + 1))) {
+        // Link text delimiters.
+      } else if (c == ']') {
+        // The end of the link text, followed by a target that isn't shown.
+        int close = text.indexOf(text.charAt(i + 1) == '(' ? ')' : ']', i + 1);
+        i = close < 0 ? text.length() : close;
       } else {
-        throw new IllegalStateException("content=" + block.getText());
+        b.append(c);
       }
+    }
+    return b.toString();
+  }
+
+  /**
+   * Returns true if the character at {@code index} has whitespace, or the
+   * end of the text, on both sides, so it can't delimit emphasis.
+   */
+  private static boolean isSpaced(String text, int index) {
+    return (index == 0 || Character.isWhitespace(text.charAt(index - 1)))
+        && (index + 1 == text.length() || Character.isWhitespace(text.charAt(index + 1)));
+  }
+
+  private static boolean startsLinkTarget(String text, int index) {
+    return index < text.length() && (text.charAt(index) == '(' || text.charAt(index) == '[');
+  }
+
+  private static boolean isEscapable(char c) {
+    return "\\`*_{}[]()#+-.!>".indexOf(c) >= 0;
+  }
+
+  private void visit(Node node) {
+    if (node instanceof HeaderNode) {
+      HeaderNode header = (HeaderNode) node;
+      addHeader(header.getLevel(), toString(node, new StringBuilder()).toString());
+    } else if (node instanceof HtmlBlockNode || node instanceof InlineHtmlNode) {
+      addMetadata(((TextNode) node).getText());
     } else {
       for (Node child : node.getChildren()) {
-        visit(child, prefix + "  ");
+        visit(child);
+      }
+    }
+  }
+
+  private void addHeader(int level, String text) {
+    while (_headers.size() >= level) {
+      _headers.pop();
+    }
+    _headers.push(text);
+    _headingId = null;
+  }
+
+  /**
+   * Adds the reference described by a metadata comment, such as
+   * {@code <!-- id: ProjectId, status: planned -->}.
+   */
+  private void addMetadata(String html) {
+    if (html.length() >= COMMENT_START.length() + COMMENT_END.length()
+        && html.startsWith(COMMENT_START) && html.endsWith(COMMENT_END)) {
+      Metadata metadata = _metadata;
+      extractMetadata(html, COMMENT_START.length(), html.length() - COMMENT_END.length(), metadata);
+      ProjectReference reference = new ProjectReference();
+      String id = metadata.id;
+      reference.status = metadata.status;
+      reference.timeline = metadata.timeline;
+      if ("completed".equals(reference.status) && reference.timeline == null) {
+        reference.timeline = "completed";
+      }
+      
+      if (metadata.color != null) {
+        reference.color = metadata.color;
+      }
+      reference.title = new ArrayList<>(_headers);
+      Collections.reverse(reference.title);
+      if (metadata.label != null) {
+        reference.title.add(metadata.label);
+      }
+      if (_headingId == null) {
+        _headingId = generateHeaderIdFromString(_headers.getFirst());
+      }
+      reference.headingId = _headingId;
+      
+      validate(id, reference);
+      
+      List<ProjectReference> references = _referencesById.get(id);
+      if (references == null) {
+        references = new ArrayList<>();
+        _referencesById.put(id, references);
       }
+      references.add(reference);
+    } else {
+      throw new IllegalStateException("content=" + html);
     }
   }
   
@@ -135,19 +560,28 @@ public class MarkdownReferenceExtractor {
     if (reference.status == null) {
       throw new ValidationException(id, "missing \"status\" property");
     }
-    validateEnum(id, reference.status, Status.values());
+    validateEnum(id, reference.status, _statusByName);
     if (reference.timeline != null) {
-      validateEnum(id, reference.timeline, Timeline.values());
+      validateEnum(id, reference.timeline, _timelineByName);
     }
   }
 
-  private <T extends Enum<T>> void  validateEnum(String id, String value, T[] values) {
-    for (T enumValue : values) {
-      if (enumValue.name().toLowerCase().equals(value)) {
-        return;
-      }
+  private void validateEnum(String id, String value, Map<String, ?> valuesByName) {
+    if (!valuesByName.containsKey(value)) {
+      throw new ValidationException(id, "unknown property value=" + value);
     }
-    throw new ValidationException(id, "unknown property value=" + value);
+  }
+
+  /**
+   * Returns the enum values keyed by their lowercase names, as they're
+   * written in metadata comments.
+   */
+  private static <T extends Enum<T>> Map<String, T> lookupByName(T[] values) {
+    Map<String, T> valuesByName = new HashMap<>();
+    for (T value : values) {
+      valuesByName.put(value.name().toLowerCase(), value);
+    }
+    return valuesByName;
   }
 
   private static StringBuilder toString(Node node, StringBuilder b) {
@@ -164,21 +598,114 @@ public class MarkdownReferenceExtractor {
     return b;
   }
 
-  private Map<String, String> extractMetadata(String text) {
-    Map<String, String> metadata = new HashMap<>();
-    String splitOn = text.contains("\n") ? "\n" : ",";
-    for (String kvp : text.split(splitOn)) {
-      if (kvp.trim().isEmpty()) {
-        continue;
+  /**
+   * The values of the metadata keys that are used, reused for each comment.
+   * Other keys are ignored.
+   */
+  private static class Metadata {
+    String id;
+    String status;
+    String timeline;
+    String color;
+    String label;
+  }
+
+  /**
+   * Parses the "key: value" pairs in {@code text} between {@code start} and
+   * {@code end} into {@code metadata}.  Pairs are separated by newlines if
+   * there are any, and by commas otherwise.  Keys and values are trimmed, and
+   * a later value for a key replaces an earlier one.
+   */
+  private static void extractMetadata(String text, int start, int end, Metadata metadata) {
+    metadata.id = null;
+    metadata.status = null;
+    metadata.timeline = null;
+    metadata.color = null;
+    metadata.label = null;
+    char separator = ',';
+    for (int i = start; i < end; ++i) {
+      if (text.charAt(i) == '\n') {
+        separator = '\n';
+        break;
+      }
+    }
+    int pairStart = start;
+    while (pairStart < end) {
+      int pairEnd = text.indexOf(separator, pairStart);
+      if (pairEnd < 0 || pairEnd > end) {
+        pairEnd = end;
       }
-      String[] keyAndValue = kvp.split(":");
-      if (keyAndValue.length != 2) {
-        throw new IllegalStateException("Invalid kvp: " + kvp);
+      extractPair(text, pairStart, pairEnd, metadata);
+      pairStart = pairEnd + 1;
+    }
+  }
+
+  private static void extractPair(String text, int start, int end, Metadata metadata) {
+    int keyStart = skipWhitespace(text, start, end);
+    if (keyStart == end) {
+      return;
+    }
+    int colon = indexOf(text, ':', keyStart, end);
+    int valueEnd = colon < 0 ? -1 : indexOf(text, ':', colon + 1, end);
+    if (valueEnd < 0) {
+      valueEnd = end;
+    } else {
+      // Like String.split, trailing empty fields are ignored, so "key: value:"
+      // is fine but "key: value: more" isn't.
+      for (int i = valueEnd; i < end; ++i) {
+        if (text.charAt(i) != ':') {
+          colon = -1;
+        }
       }
-      String key = keyAndValue[0].trim();
-      String value = keyAndValue[1].trim();
-      metadata.put(key, value);
     }
-    return metadata;
+    if (colon < 0 || valueEnd == colon + 1) {
+      throw new IllegalStateException("Invalid kvp: " + text.substring(start, end));
+    }
+
+    int keyEnd = trimEnd(text, keyStart, colon);
+    int valueStart = skipWhitespace(text, colon + 1, valueEnd);
+    String value = text.substring(valueStart, trimEnd(text, valueStart, valueEnd));
+    if (isKey(text, keyStart, keyEnd, "id")) {
+      metadata.id = value;
+    } else if (isKey(text, keyStart, keyEnd, "status")) {
+      metadata.status = value;
+    } else if (isKey(text, keyStart, keyEnd, "timeline")) {
+      metadata.timeline = value;
+    } else if (isKey(text, keyStart, keyEnd, "color")) {
+      metadata.color = value;
+    } else if (isKey(text, keyStart, keyEnd, "label")) {
+      metadata.label = value;
+    }
+  }
+
+  private static boolean isKey(String text, int start, int end, String key) {
+    return end - start == key.length() && text.startsWith(key, start);
+  }
+
+  private static int indexOf(String text, char c, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      if (text.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the first character from {@code start} that isn't
+   * whitespace, as defined by {@link String#trim}, or {@code end}.
+   */
+  private static int skipWhitespace(String text, int start, int end) {
+    while (start < end && text.charAt(start) <= ' ') {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimEnd(String text, int start, int end) {
+    while (end > start && text.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return end;
   }
 }
@@ -0,0 +1,450 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.AlignmentGraph.Polyline;
+import com.vividsolutions.jts.geom.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Aligns polylines by partitioning them into separate {@link AlignmentGraph}
+ * instances, with the same result as adding them all to a single graph in
+ * order, so that partitions unchanged since an {@link AlignmentSnapshot} don't
+ * have to be aligned again.
+ *
+ * Each polyline starts out in the square tile that holds its first point, and
+ * the polylines of each tile are aligned in a graph of their own, in their
+ * original order, recording the graph's {@link AlignmentFootprint}.  Groups of
+ * tiles whose graphs could have affected each other, because one searched
+ * where the other put a node or edge, are then stitched together: they are
+ * merged and aligned again as a single graph.  That repeats until no two
+ * groups interfere, at which point their combined polylines are exactly those
+ * of a single graph.  Only polylines from different tiles that actually come
+ * near each other merge their tiles.  When the tiles are all close enough
+ * together that they might all merge, they start out as a single group
+ * instead, so that a connected network costs about as much as a single graph.
+ *
+ * With an {@link AlignmentSnapshot}, tiles that were merged into one group
+ * last time start out in that group again if none of them have changed, so
+ * that the group is reused from the snapshot as a whole.
+ */
+public class PartitionedPolylineAlignment {
+
+  /**
+   * The side of the tiles that polylines are first partitioned into.  Larger
+   * tiles need fewer merges, and smaller ones let the snapshot reuse more of
+   * the map when polylines are mostly short.
+   */
+  static final double TILE_METERS = 5000;
+
+  private final AlignmentGraph.Backend _backend;
+
+  private final double _tileMeters;
+
+  private final List<Placemark> _placemarks = new ArrayList<>();
+
+  private final List<List<Coordinate>> _lines = new ArrayList<>();
+
+  /**
+   * The polylines that start in each tile, with the tiles in order of their
+   * first polyline.
+   */
+  private final Map<Long, List<Integer>> _tiles = new LinkedHashMap<>();
+
+  @Nullable
+  private IllegalStateException _failure;
+
+  private int _failedPolyline = -1;
+
+  public PartitionedPolylineAlignment(AlignmentGraph.Backend backend) {
+    this(backend, TILE_METERS);
+  }
+
+  PartitionedPolylineAlignment(AlignmentGraph.Backend backend, double tileMeters) {
+    _backend = backend;
+    _tileMeters = tileMeters;
+  }
+
+  public void addPolyline(List<Coordinate> coordinates, Placemark placemark) {
+    long tile = coordinates.isEmpty() ? 0 : tile(coordinates.get(0));
+    List<Integer> polylines = _tiles.get(tile);
+    if (polylines == null) {
+      polylines = new ArrayList<>();
+      _tiles.put(tile, polylines);
+    }
+    polylines.add(_placemarks.size());
+    _placemarks.add(placemark);
+    _lines.add(coordinates);
+  }
+
+  /**
+   * Aligns each partition and returns the combined polylines.
+   *
+   * If the graph rejects a polyline, the polylines are added to a single graph
+   * instead, which stops at the same polyline that a sequential alignment
+   * would, and {@link #getFailure} reports it.
+   *
+   * @param snapshot if set, partitions that are unchanged since the snapshot
+   *     reuse its polylines rather than being aligned again, and the snapshot
+   *     is then updated to match this alignment, unless a polyline is rejected
+   */
+  public List<Polyline> go(@Nullable AlignmentSnapshot snapshot) {
+    _failure = null;
+    _failedPolyline = -1;
+    List<Group> groups = new ArrayList<>();
+    for (List<Integer> tile : _tiles.values()) {
+      Group group = new Group(tile, new ArrayList<AlignmentSnapshot.Key>());
+      if (snapshot != null) {
+        group.key = key(tile);
+        group.tiles.add(group.key);
+      }
+      groups.add(group);
+    }
+    if (snapshot != null) {
+      groups = regroup(groups, snapshot);
+    }
+    if (groups.size() > 1 && mayAllConflict(groups)) {
+      groups = Collections.singletonList(union(groups));
+      if (snapshot != null) {
+        groups.get(0).key = key(groups.get(0).polylines);
+      }
+    }
+
+    int aligned = 0;
+    while (true) {
+      List<Group> pending = new ArrayList<>();
+      for (Group group : groups) {
+        if (group.footprint != null) {
+          continue;
+        }
+        if (snapshot != null) {
+          if (group.key == null) {
+            group.key = key(group.polylines);
+          }
+          group.result = snapshot.get(group.key, placemarks(group.polylines));
+          group.footprint = snapshot.getFootprint(group.key);
+          group.reused = group.result != null;
+        }
+        if (!group.reused) {
+          pending.add(group);
+        }
+      }
+      for (Group group : pending) {
+        align(group);
+      }
+      aligned += pending.size();
+      for (Group group : pending) {
+        if (group.failure != null) {
+          return alignSequentially();
+        }
+      }
+
+      List<AlignmentFootprint> footprints = new ArrayList<>(groups.size());
+      for (Group group : groups) {
+        footprints.add(group.footprint);
+      }
+      List<int[]> conflicts = AlignmentFootprint.conflicts(footprints);
+      if (conflicts.isEmpty()) {
+        break;
+      }
+      groups = merge(groups, conflicts);
+    }
+
+    if (snapshot != null) {
+      Set<AlignmentSnapshot.Key> keys = new HashSet<>();
+      int reused = 0;
+      for (Group group : groups) {
+        keys.add(group.key);
+        if (group.reused) {
+          reused++;
+        } else {
+          snapshot.put(group.key, group.result, placemarks(group.polylines), group.footprint,
+              group.tiles);
+        }
+      }
+      snapshot.retain(keys, reused, aligned);
+    }
+
+    List<Polyline> polylines = new ArrayList<>();
+    for (Group group : groups) {
+      polylines.addAll(group.result);
+    }
+    // Each group emits polylines in order of their first point, as a single
+    // graph does, and no two groups share a point, so a stable sort restores
+    // the order a single graph would have produced.
+    Collections.sort(polylines, new Comparator<Polyline>() {
+      @Override
+      public int compare(Polyline lhs, Polyline rhs) {
+        return lhs.line.get(0).compareTo(rhs.line.get(0));
+      }
+    });
+    return polylines;
+  }
+
+  /**
+   * @return the exception for the polyline that the last call to
+   *     {@link #go} could not add, or null if all of them were added
+   */
+  @Nullable
+  public IllegalStateException getFailure() {
+    return _failure;
+  }
+
+  /**
+   * @return the index, in the order they were added, of the polyline that
+   *     the last call to {@link #go} could not add, or -1
+   */
+  public int getFailedPolyline() {
+    return _failedPolyline;
+  }
+
+  private void align(Group group) {
+    AlignmentGraph graph = _backend.create();
+    AlignmentFootprint footprint = new AlignmentFootprint();
+    graph.setFootprint(footprint);
+    try {
+      for (int index : group.polylines) {
+        graph.addPolyline(_lines.get(index), _placemarks.get(index));
+      }
+    } catch (IllegalStateException ex) {
+      group.failure = ex;
+      return;
+    }
+    group.result = graph.go();
+    group.footprint = footprint;
+  }
+
+  private List<Polyline> alignSequentially() {
+    AlignmentGraph graph = _backend.create();
+    for (int i = 0; i < _lines.size(); ++i) {
+      try {
+        graph.addPolyline(_lines.get(i), _placemarks.get(i));
+      } catch (IllegalStateException ex) {
+        _failure = ex;
+        _failedPolyline = i;
+        break;
+      }
+    }
+    return graph.go();
+  }
+
+  /**
+   * Replaces the groups of tiles that made up a single partition of the
+   * snapshot with one group for that partition, as long as none of its tiles
+   * has changed.
+   */
+  private List<Group> regroup(List<Group> groups, AlignmentSnapshot snapshot) {
+    Map<Object, List<Group>> sets = new LinkedHashMap<>();
+    for (Group group : groups) {
+      Object partition = snapshot.getPartition(group.key);
+      if (partition == null) {
+        partition = group;
+      }
+      List<Group> set = sets.get(partition);
+      if (set == null) {
+        set = new ArrayList<>();
+        sets.put(partition, set);
+      }
+      set.add(group);
+    }
+    List<Group> regrouped = new ArrayList<>(groups.size());
+    for (Map.Entry<Object, List<Group>> set : sets.entrySet()) {
+      if (set.getValue().size() == 1) {
+        regrouped.add(set.getValue().get(0));
+        continue;
+      }
+      Group merged = union(set.getValue());
+      merged.key = key(merged.polylines);
+      // A missing tile leaves out its polylines, and so changes the key.
+      if (merged.key.equals(set.getKey())) {
+        regrouped.add(merged);
+      } else {
+        regrouped.addAll(set.getValue());
+      }
+    }
+    return regrouped;
+  }
+
+  /**
+   * Returns whether every group is near enough to the others, directly or
+   * through other groups, that their graphs might all conflict.  The graph of
+   * a group only searches within the snap threshold of its own polylines, so
+   * two groups whose polylines' bounds are further apart than that, in cells
+   * of the footprint, can't conflict.
+   *
+   * A connected network ends up merged into a single group anyway, so it is
+   * aligned as one straight away rather than tile by tile first.
+   */
+  private boolean mayAllConflict(List<Group> groups) {
+    long[][] bounds = new long[groups.size()][];
+    for (int i = 0; i < bounds.length; ++i) {
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int index : groups.get(i).polylines) {
+        for (Coordinate c : _lines.get(index)) {
+          minX = Math.min(minX, c.x);
+          minY = Math.min(minY, c.y);
+          maxX = Math.max(maxX, c.x);
+          maxY = Math.max(maxY, c.y);
+        }
+      }
+      double halo = AlignmentGraph.SNAP_THRESHOLD_METERS;
+      bounds[i] = new long[] {cell(minX - halo), cell(minY - halo), cell(maxX + halo),
+          cell(maxY + halo)};
+    }
+    int[] parents = new int[bounds.length];
+    for (int i = 0; i < parents.length; ++i) {
+      parents[i] = i;
+    }
+    int components = bounds.length;
+    for (int i = 0; i < bounds.length; ++i) {
+      for (int j = i + 1; j < bounds.length; ++j) {
+        if (bounds[i][0] <= bounds[j][2] && bounds[j][0] <= bounds[i][2]
+            && bounds[i][1] <= bounds[j][3] && bounds[j][1] <= bounds[i][3]) {
+          int a = find(parents, i);
+          int b = find(parents, j);
+          if (a != b) {
+            parents[Math.max(a, b)] = Math.min(a, b);
+            components--;
+          }
+        }
+      }
+    }
+    return components == 1;
+  }
+
+  private static long cell(double value) {
+    return (long) Math.floor(value / AlignmentFootprint.CELL_METERS);
+  }
+
+  /**
+   * Merges each set of transitively conflicting groups into a single group
+   * that has yet to be aligned, in place of the earliest of them.
+   */
+  private static List<Group> merge(List<Group> groups, List<int[]> conflicts) {
+    int[] parents = new int[groups.size()];
+    for (int i = 0; i < parents.length; ++i) {
+      parents[i] = i;
+    }
+    for (int[] conflict : conflicts) {
+      int a = find(parents, conflict[0]);
+      int b = find(parents, conflict[1]);
+      parents[Math.max(a, b)] = Math.min(a, b);
+    }
+    Map<Integer, List<Group>> sets = new LinkedHashMap<>();
+    for (int i = 0; i < groups.size(); ++i) {
+      int root = find(parents, i);
+      List<Group> set = sets.get(root);
+      if (set == null) {
+        set = new ArrayList<>();
+        sets.put(root, set);
+      }
+      set.add(groups.get(i));
+    }
+    List<Group> merged = new ArrayList<>(sets.size());
+    for (List<Group> set : sets.values()) {
+      merged.add(set.size() == 1 ? set.get(0) : union(set));
+    }
+    return merged;
+  }
+
+  /**
+   * Returns a group, yet to be aligned, with the polylines of all the groups.
+   */
+  private static Group union(List<Group> groups) {
+    List<Integer> polylines = new ArrayList<>();
+    List<AlignmentSnapshot.Key> tiles = new ArrayList<>();
+    for (Group group : groups) {
+      polylines.addAll(group.polylines);
+      tiles.addAll(group.tiles);
+    }
+    Collections.sort(polylines);
+    return new Group(polylines, tiles);
+  }
+
+  private static int find(int[] parents, int index) {
+    while (parents[index] != index) {
+      parents[index] = parents[parents[index]];
+      index = parents[index];
+    }
+    return index;
+  }
+
+  private long tile(Coordinate c) {
+    long x = (long) Math.floor(c.x / _tileMeters);
+    long y = (long) Math.floor(c.y / _tileMeters);
+    return (x << 32) | (y & 0xffffffffL);
+  }
+
+  private AlignmentSnapshot.Key key(List<Integer> polylines) {
+    return AlignmentSnapshot.key(placemarks(polylines), lines(polylines));
+  }
+
+  private List<Placemark> placemarks(List<Integer> polylines) {
+    List<Placemark> placemarks = new ArrayList<>(polylines.size());
+    for (int index : polylines) {
+      placemarks.add(_placemarks.get(index));
+    }
+    return placemarks;
+  }
+
+  private List<List<Coordinate>> lines(List<Integer> polylines) {
+    List<List<Coordinate>> lines = new ArrayList<>(polylines.size());
+    for (int index : polylines) {
+      lines.add(_lines.get(index));
+    }
+    return lines;
+  }
+
+  /**
+   * A group of tiles whose polylines are aligned in one graph.
+   */
+  private static class Group {
+    /**
+     * Indices of the polylines in the group, in the order they were added.
+     */
+    final List<Integer> polylines;
+
+    /**
+     * Snapshot keys of the tiles merged into the group, when there is a
+     * snapshot.
+     */
+    final List<AlignmentSnapshot.Key> tiles;
+
+    // Set once the group is aligned or found in the snapshot.
+    AlignmentSnapshot.Key key;
+    List<Polyline> result;
+    AlignmentFootprint footprint;
+    boolean reused;
+    IllegalStateException failure;
+
+    Group(List<Integer> polylines, List<AlignmentSnapshot.Key> tiles) {
+      this.polylines = polylines;
+      this.tiles = tiles;
+    }
+  }
+}
@@ -17,7 +17,7 @@ package com.google.infrastructuredmap;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,21 +28,55 @@ public class PlacemarkAlignment {
   
   private static final double SNAP_THRESHOLD_METERS = 20.0;
   
-  private Map<Coordinate, List<String>> _placemarksByLocation = new HashMap<>();
+  private Map<Coordinate, List<String>> _placemarksByLocation = new LinkedHashMap<>();
+
+  /**
+   * Cluster locations in order of creation, indexed by position in a grid of
+   * snap-threshold-sized cells so only the 3x3 neighborhood is searched.
+   */
+  private final List<Coordinate> _locations = new ArrayList<>();
+  private final SpatialGrid<Integer> _index = new SpatialGrid<>(SNAP_THRESHOLD_METERS);
+
+  private final boolean _snapToNearest;
+
+  public PlacemarkAlignment() {
+    this(false);
+  }
+
+  /**
+   * @param snapToNearest if true, a placemark joins the nearest cluster within
+   *     the snap threshold, rather than the first cluster created within it
+   */
+  public PlacemarkAlignment(boolean snapToNearest) {
+    _snapToNearest = snapToNearest;
+  }
   
   public Iterable<Map.Entry<Coordinate, List<String>>> getEntries() {
     return _placemarksByLocation.entrySet();
   }
   
   public void addPlacemark(Coordinate location, String id) {
-    for (Map.Entry<Coordinate, List<String>> entry : _placemarksByLocation.entrySet()) {
-      if (entry.getKey().distance(location) < SNAP_THRESHOLD_METERS) {
-        entry.getValue().add(id);
-        return;
+    int match = -1;
+    double minDistance = SNAP_THRESHOLD_METERS;
+    for (int cluster : _index.query(location, SNAP_THRESHOLD_METERS)) {
+      double d = _locations.get(cluster).distance(location);
+      if (d >= SNAP_THRESHOLD_METERS) {
+        continue;
       }
+      boolean better = _snapToNearest ? d < minDistance : match == -1 || cluster < match;
+      if (better) {
+        match = cluster;
+        minDistance = d;
+      }
+    }
+    if (match != -1) {
+      _placemarksByLocation.get(_locations.get(match)).add(id);
+      return;
     }
     List<String> ids = new ArrayList<>();
     ids.add(id);
     _placemarksByLocation.put(location, ids);
+    _index.insert(location, _locations.size());
+    _locations.add(location);
   }
 }
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Interns ordered placemark sequences as canonical int "signatures", so that
+ * two sequences can be compared with a single int comparison.
+ *
+ * Placemarks are identified by instance, not by {@link Placemark#equals},
+ * which would compare their full geometry.
+ */
+class PlacemarkSignatures {
+
+  private final Map<Placemark, Integer> _placemarkIds = new IdentityHashMap<>();
+
+  private final Map<Key, Integer> _signatures = new HashMap<>();
+
+  public int signature(Collection<Placemark> placemarks) {
+    int[] ids = new int[placemarks.size()];
+    int index = 0;
+    for (Placemark placemark : placemarks) {
+      Integer id = _placemarkIds.get(placemark);
+      if (id == null) {
+        id = _placemarkIds.size();
+        _placemarkIds.put(placemark, id);
+      }
+      ids[index++] = id;
+    }
+    Key key = new Key(ids);
+    Integer signature = _signatures.get(key);
+    if (signature == null) {
+      signature = _signatures.size();
+      _signatures.put(key, signature);
+    }
+    return signature;
+  }
+
+  /**
+   * Hash key for an int array, compared by content.
+   */
+  static class Key {
+    private final int[] values;
+    private final int hash;
+
+    Key(int[] values) {
+      this.values = values;
+      this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && Arrays.equals(values, ((Key) obj).values);
+    }
+  }
+}
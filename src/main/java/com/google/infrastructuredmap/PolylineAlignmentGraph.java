@@ -18,31 +18,65 @@ package com.google.infrastructuredmap;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineSegment;
 import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Objects;
 import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
  * Graph of polyline nodes and edges to "align" similar polyline into combined segments.
  */
-public class PolylineAlignmentGraph {
-  
-  private static final double SNAP_THRESHOLD_METERS = 15.0;
+public class PolylineAlignmentGraph extends AlignmentGraph {
   
   private Map<Coordinate, Node> nodes = new HashMap<>();
 
-  public PolylineAlignmentGraph() {}
+  /**
+   * Spatial index over the keys of {@link #nodes}, so that snapping a point
+   * only considers nodes in nearby cells.  A point equally close to several
+   * nodes snaps to the one added first.
+   */
+  private SpatialGrid<Coordinate> nodeIndex = new SpatialGrid<>(SNAP_THRESHOLD_METERS);
+
+  /**
+   * Spatial index over the undirected edges of the graph, each stored in the
+   * canonical orientation produced by {@link #asSegment}.  A point equally
+   * close to several edges snaps to the one indexed first, where the two
+   * halves of a split edge are indexed when it is split.
+   */
+  private SpatialGrid<LineSegment> edgeIndex = new SpatialGrid<>(SNAP_THRESHOLD_METERS);
+
+  /**
+   * True if {@link #removePlacemark} is enabled, in which case each node
+   * records the placemarks with a polyline vertex at it.
+   */
+  private final boolean removable;
+
+  public PolylineAlignmentGraph() {
+    this(false);
+  }
+
+  /**
+   * @param removable whether to enable {@link #removePlacemark}, at the cost
+   *     of recording the placemarks with a polyline vertex at each node
+   */
+  public PolylineAlignmentGraph(boolean removable) {
+    this.removable = removable;
+  }
 
+  @Override
   public void addEdge(Coordinate from, Coordinate to, Placemark placemark) {
     if (from.equals(to)) {
       throw new IllegalStateException("bad edge: from=" + from + " to=" + to);
@@ -62,21 +96,22 @@ public class PolylineAlignmentGraph {
   private boolean splitEdgeAtIntermediatePoint(Coordinate from, Coordinate to, Placemark placemark) {
     LineSegment segment = new LineSegment(from, to);
     double minValue = SNAP_THRESHOLD_METERS;
-    Entry<Coordinate, Node> minEntry = null;
-    for (Map.Entry<Coordinate, Node> nodeEntry : nodes.entrySet()) {
-      Coordinate edgePoint = segment.closestPoint(nodeEntry.getKey());
+    Coordinate minPoint = null;
+    searched(from, to, SNAP_THRESHOLD_METERS);
+    for (Coordinate nodePoint : nodeIndex.query(from, to, SNAP_THRESHOLD_METERS)) {
+      Coordinate edgePoint = segment.closestPoint(nodePoint);
       if (edgePoint.equals2D(segment.p0) || edgePoint.equals2D(segment.p1)) {
         continue;
       }
-      double d = edgePoint.distance(nodeEntry.getKey());
+      double d = edgePoint.distance(nodePoint);
       if (d < minValue) {
         minValue = d;
-        minEntry = nodeEntry;
+        minPoint = nodePoint;
       }
     }
-    if (minEntry != null) {
-      addEdge(from, minEntry.getKey(), placemark);
-      addEdge(minEntry.getKey(), to, placemark);
+    if (minPoint != null) {
+      addEdge(from, minPoint, placemark);
+      addEdge(minPoint, to, placemark);
       return true;
     }
     return false;
@@ -84,18 +119,30 @@ public class PolylineAlignmentGraph {
   
   private boolean splitEdgeAtIntersectingEdge(Coordinate from, Coordinate to, Placemark placemark) {
     LineSegment segment = new LineSegment(from, to);
-    for (Map.Entry<Coordinate, Node> nodeEntry : nodes.entrySet()) {
-      for (Map.Entry<Coordinate, Edge> edgeEntry : nodeEntry.getValue().edges.entrySet()) {
-        LineSegment edgeSegment = new LineSegment(nodeEntry.getKey(), edgeEntry.getKey());
-        Coordinate point = segment.intersection(edgeSegment);
-        if (point != null && isOk(edgeSegment, point) && isOk(segment, point)) {
-          splitEdge(edgeSegment.p0, edgeSegment.p1, point);
-          addEdge(from, point, placemark);
-          addEdge(point, to, placemark);
-          return true;
+    // Split at the crossing closest to the start of the new edge, so the
+    // result doesn't depend on index iteration order.  Any further crossings
+    // are handled by the recursive addEdge() calls.
+    double minDistance = Double.POSITIVE_INFINITY;
+    LineSegment minEdgeSegment = null;
+    Coordinate minPoint = null;
+    searched(from, to, 0.0);
+    for (LineSegment edgeSegment : edgeIndex.query(from, to, 0.0)) {
+      Coordinate point = segment.intersection(edgeSegment);
+      if (point != null && isOk(edgeSegment, point) && isOk(segment, point)) {
+        double d = from.distance(point);
+        if (d < minDistance) {
+          minDistance = d;
+          minEdgeSegment = edgeSegment;
+          minPoint = point;
         }
       }
     }
+    if (minPoint != null) {
+      splitEdge(minEdgeSegment.p0, minEdgeSegment.p1, minPoint);
+      addEdge(from, minPoint, placemark);
+      addEdge(minPoint, to, placemark);
+      return true;
+    }
     return false;
   }
 
@@ -104,6 +151,10 @@ public class PolylineAlignmentGraph {
   }
 
   private void addEdgeInternal(Coordinate from, Coordinate to, Placemark placemark) {
+    if (!nodes.get(from).edges.containsKey(to)) {
+      edgeIndex.insert(from, to, asSegment(from, to));
+      occupied(from, to);
+    }
     addEdgeDirectional(from, to, placemark, Direction.FORWARD);
     addEdgeDirectional(to, from, placemark, Direction.REVERSE);
   }
@@ -126,6 +177,7 @@ public class PolylineAlignmentGraph {
     }
   }
   
+  @Override
   public Coordinate snapToGraph(Coordinate point, @Nullable Coordinate previous) {
     Coordinate node = snapToNode(point, previous);
     if (node != null) {
@@ -137,15 +189,35 @@ public class PolylineAlignmentGraph {
       return node;
     }
     
-    nodes.put(point, new Node());
+    addNode(point, new Node());
     return point;
   }
+
+  @Override
+  protected void addVertex(Coordinate point, Placemark placemark) {
+    if (!removable) {
+      return;
+    }
+    Node node = nodes.get(point);
+    if (node.vertexOf == null) {
+      node.vertexOf = new ArrayList<>(1);
+    }
+    node.vertexOf.add(placemark);
+  }
+
+  private void addNode(Coordinate point, Node node) {
+    if (nodes.put(point, node) == null) {
+      nodeIndex.insert(point, point);
+      occupied(point, point);
+    }
+  }
   
   private Coordinate snapToNode(Coordinate point, @Nullable Coordinate previous) {
     // Try snapping to a node.
     double minDistance = SNAP_THRESHOLD_METERS;
     Coordinate minPoint = null;
-    for (Coordinate nodePoint : nodes.keySet()) {
+    searched(point, point, SNAP_THRESHOLD_METERS);
+    for (Coordinate nodePoint : nodeIndex.query(point, SNAP_THRESHOLD_METERS)) {
       if (nodePoint.equals(previous)) {
         continue;
       }
@@ -165,22 +237,18 @@ public class PolylineAlignmentGraph {
     Coordinate minToPoint = null;
     Coordinate minSnappedPoint = null;
     
-    for (Map.Entry<Coordinate, Node> entry : nodes.entrySet()) {
-      Coordinate nodePoint = entry.getKey();
-      Node node = entry.getValue();
-      for (Coordinate edge : node.edges.keySet()) {
-        LineSegment segment = new LineSegment(nodePoint, edge);
-        Coordinate snapped = segment.closestPoint(point);
-        if (snapped.equals(previous)) {
-          continue;
-        }
-        double d = point.distance(snapped);
-        if (d < minDistance) {
-          minDistance = d;
-          minFromPoint = nodePoint;
-          minToPoint = edge;
-          minSnappedPoint = snapped;
-        }        
+    searched(point, point, SNAP_THRESHOLD_METERS);
+    for (LineSegment segment : edgeIndex.query(point, SNAP_THRESHOLD_METERS)) {
+      Coordinate snapped = segment.closestPoint(point);
+      if (snapped.equals(previous)) {
+        continue;
+      }
+      double d = point.distance(snapped);
+      if (d < minDistance) {
+        minDistance = d;
+        minFromPoint = segment.p0;
+        minToPoint = segment.p1;
+        minSnappedPoint = snapped;
       }
     }
     
@@ -204,13 +272,27 @@ public class PolylineAlignmentGraph {
     toNode.edges.put(midPoint, existingFromEdge);
     
     Node mid = new Node();
+    mid.split = true;
     mid.edges.put(fromPoint, new Edge(existingFromEdge));
     mid.edges.put(toPoint, new Edge(existingToEdge));
-    nodes.put(midPoint, mid);
+    addNode(midPoint, mid);
+
+    edgeIndex.remove(fromPoint, toPoint, asSegment(fromPoint, toPoint));
+    edgeIndex.insert(fromPoint, midPoint, asSegment(fromPoint, midPoint));
+    edgeIndex.insert(midPoint, toPoint, asSegment(midPoint, toPoint));
   }
   
   private class Node {
-    private Map<Coordinate, Edge> edges = new HashMap<>();
+    // Edges are kept in insertion order so that go() is deterministic.
+    private Map<Coordinate, Edge> edges = new LinkedHashMap<>();
+
+    // True if the node was created by splitEdge(), which means it lies on the
+    // line between its neighbors.
+    private boolean split;
+
+    // The placemarks with a polyline vertex at this node, if any, recorded
+    // only if the graph is removable.
+    private List<Placemark> vertexOf;
   }
   
   private class Edge {
@@ -220,81 +302,223 @@ public class PolylineAlignmentGraph {
     }
 
     private Deque<Placemark> placemarks = new LinkedList<>();
+
+    // Assigned by assignSignatures() when the graph is traversed.
+    private int id;
+    private int signature;
+    private int reverseSignature;
   }
   
-  public class Polyline {
-    public Polyline(List<Coordinate> line, Collection<Placemark> placemarks) {
-      this.line = line;
-      this.placemarks = placemarks;
+  /**
+   * Removes a placemark from every edge of the graph.  Edges left with no
+   * placemarks are deleted, along with any nodes left with no edges and no
+   * polyline vertices.  Nodes that {@link #splitEdge} created are merged back
+   * into a single edge once no polyline vertex remains at them and the edges
+   * on both sides of them carry the same placemarks again.
+   *
+   * Nodes that remaining placemarks snapped to are kept where they are, so the
+   * graph can differ from one built without the placemark in the first place.
+   *
+   * @return true if the placemark was found on any edge
+   * @throws IllegalStateException if the graph wasn't created removable
+   */
+  public boolean removePlacemark(Placemark placemark) {
+    if (!removable) {
+      throw new IllegalStateException("Graph wasn't created with removal enabled");
     }
-    List<Coordinate> line;
-    Collection<Placemark> placemarks;
-  }
-  
-  public List<Polyline> go() {
-    List<Polyline> polylines = new ArrayList<>();
-    Set<LineSegment> visitedEdges = new HashSet<>();
-    
-    int edgeCount = 0;
+    Set<Coordinate> touched = new LinkedHashSet<>();
     for (Map.Entry<Coordinate, Node> nodeEntry : nodes.entrySet()) {
-      for (Map.Entry<Coordinate, Edge> edgeEntry : nodeEntry.getValue().edges.entrySet()) {
-        edgeCount++;
-        LineSegment segment = asSegment(nodeEntry.getKey(), edgeEntry.getKey());
-        if (!visitedEdges.contains(segment)) {
-          List<Coordinate> c = new ArrayList<>();
-          Deque<Placemark> placemarks = edgeEntry.getValue().placemarks;
-          if (!hasMatchingOutgoing(nodeEntry.getValue(), edgeEntry.getValue())) {
-            exploreEdgesWithSamePlacemarks(nodeEntry.getKey(), placemarks, c, visitedEdges);
-            polylines.add(new Polyline(c, placemarks));
-          }
+      Node node = nodeEntry.getValue();
+      if (node.vertexOf != null && removeAll(node.vertexOf, placemark)) {
+        touched.add(nodeEntry.getKey());
+      }
+      for (Edge edge : node.edges.values()) {
+        if (removeAll(edge.placemarks, placemark)) {
+          touched.add(nodeEntry.getKey());
         }
       }
     }
-    if (edgeCount / 2 != visitedEdges.size()) {
-      //throw new IllegalStateException("expected=" + (edgeCount/2) + " actual=" + visitedEdges.size());
+
+    // Both directions of an edge carry the same placemarks, so they are
+    // emptied together.
+    for (Coordinate point : touched) {
+      Iterator<Map.Entry<Coordinate, Edge>> it = nodes.get(point).edges.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Coordinate, Edge> edgeEntry = it.next();
+        if (edgeEntry.getValue().placemarks.isEmpty()) {
+          it.remove();
+          nodes.get(edgeEntry.getKey()).edges.remove(point);
+          edgeIndex.remove(point, edgeEntry.getKey(), asSegment(point, edgeEntry.getKey()));
+        }
+      }
     }
-    return polylines;
-  }
 
-  private boolean hasMatchingOutgoing(Node node, Edge sourceEdge) {
-    for (Edge edge : node.edges.values()) {
-      if (edge == sourceEdge) {
+    Deque<Coordinate> pending = new ArrayDeque<>(touched);
+    while (!pending.isEmpty()) {
+      Coordinate point = pending.poll();
+      Node node = nodes.get(point);
+      if (node == null) {
         continue;
       }
-      if (edge.placemarks.size() != sourceEdge.placemarks.size()) {
+      if (node.vertexOf != null && !node.vertexOf.isEmpty()) {
         continue;
       }
-      Iterator<Placemark> a = edge.placemarks.iterator();
-      Iterator<Placemark> b = sourceEdge.placemarks.descendingIterator();
-      if (equals(a, b)) {
-        return true;
+      if (node.edges.isEmpty()) {
+        nodes.remove(point);
+        nodeIndex.remove(point, point);
+      } else if (mergeSplitNode(point, node)) {
+        // The neighbors may themselves be split nodes that can now be merged.
+        pending.addAll(node.edges.keySet());
       }
     }
-    return false;
+    return !touched.isEmpty();
+  }
+
+  /**
+   * Removes every occurrence of the placemark, compared by instance rather
+   * than by {@link Placemark#equals}, which compares their contents.
+   */
+  private static boolean removeAll(Collection<Placemark> placemarks, Placemark placemark) {
+    boolean removed = false;
+    Iterator<Placemark> it = placemarks.iterator();
+    while (it.hasNext()) {
+      if (it.next() == placemark) {
+        it.remove();
+        removed = true;
+      }
+    }
+    return removed;
   }
 
-  private boolean equals(Iterator<Placemark> lhs, Iterator<Placemark> rhs) {
-    while (lhs.hasNext() && rhs.hasNext()) {
-      if (!Objects.equals(lhs.next(), rhs.next())) {
+  /**
+   * Replaces a node created by {@link #splitEdge} and its two edges with a
+   * single edge between its neighbors, if both edges carry the same
+   * placemarks in each direction and the neighbors aren't already connected.
+   */
+  private boolean mergeSplitNode(Coordinate midPoint, Node mid) {
+    if (!mid.split || mid.edges.size() != 2) {
+      return false;
+    }
+    Iterator<Map.Entry<Coordinate, Edge>> it = mid.edges.entrySet().iterator();
+    Map.Entry<Coordinate, Edge> toA = it.next();
+    Map.Entry<Coordinate, Edge> toB = it.next();
+    Coordinate a = toA.getKey();
+    Coordinate b = toB.getKey();
+    Node nodeA = nodes.get(a);
+    Node nodeB = nodes.get(b);
+    if (nodeA.edges.containsKey(b)) {
+      return false;
+    }
+    Edge aToMid = nodeA.edges.get(midPoint);
+    Edge bToMid = nodeB.edges.get(midPoint);
+    if (!samePlacemarks(aToMid, toB.getValue()) || !samePlacemarks(bToMid, toA.getValue())) {
+      return false;
+    }
+
+    nodeA.edges.remove(midPoint);
+    nodeA.edges.put(b, aToMid);
+    nodeB.edges.remove(midPoint);
+    nodeB.edges.put(a, bToMid);
+    nodes.remove(midPoint);
+    nodeIndex.remove(midPoint, midPoint);
+
+    edgeIndex.remove(a, midPoint, asSegment(a, midPoint));
+    edgeIndex.remove(midPoint, b, asSegment(midPoint, b));
+    edgeIndex.insert(a, b, asSegment(a, b));
+    return true;
+  }
+
+  private static boolean samePlacemarks(Edge lhs, Edge rhs) {
+    if (lhs.placemarks.size() != rhs.placemarks.size()) {
+      return false;
+    }
+    Iterator<Placemark> it = rhs.placemarks.iterator();
+    for (Placemark placemark : lhs.placemarks) {
+      if (placemark != it.next()) {
         return false;
       }
     }
-    return !lhs.hasNext() && !rhs.hasNext();
+    return true;
   }
 
-  private void exploreEdgesWithSamePlacemarks(Coordinate nodePoint, Collection<Placemark> placemarks,
-      List<Coordinate> outputPoints, Set<LineSegment> visitedEdges) {
+  @Override
+  public List<Polyline> go() {
+    List<Polyline> polylines = new ArrayList<>();
+    
+    // Visit nodes in coordinate order, so that the polylines produced for a
+    // connected part of the graph don't depend on the rest of the graph, and
+    // polylines are emitted in order of their first point.
+    List<Coordinate> nodePoints = new ArrayList<>(nodes.keySet());
+    Collections.sort(nodePoints, new Comparator<Coordinate>() {
+      @Override
+      public int compare(Coordinate lhs, Coordinate rhs) {
+        return lhs.compareTo(rhs);
+      }
+    });
+
+    BitSet visitedEdges = new BitSet(assignSignatures(nodePoints));
+    for (Coordinate nodePoint : nodePoints) {
+      Node node = nodes.get(nodePoint);
+      for (Edge edge : node.edges.values()) {
+        if (!visitedEdges.get(edge.id)) {
+          if (!hasMatchingOutgoing(node, edge)) {
+            List<Coordinate> c = new ArrayList<>();
+            exploreEdgesWithSamePlacemarks(nodePoint, edge.signature, c, visitedEdges);
+            polylines.add(new Polyline(c, edge.placemarks));
+          }
+        }
+      }
+    }
+    return polylines;
+  }
+
+  /**
+   * Numbers each undirected edge, shared by the {@link Edge} in each direction,
+   * and interns the placemarks of each directed edge as a signature.
+   *
+   * @return the number of undirected edges
+   */
+  private int assignSignatures(List<Coordinate> nodePoints) {
+    PlacemarkSignatures signatures = new PlacemarkSignatures();
+    int edgeCount = 0;
+    for (Coordinate nodePoint : nodePoints) {
+      for (Map.Entry<Coordinate, Edge> edgeEntry : nodes.get(nodePoint).edges.entrySet()) {
+        if (nodePoint.compareTo(edgeEntry.getKey()) > 0) {
+          continue;
+        }
+        Edge edge = edgeEntry.getValue();
+        Edge reverse = nodes.get(edgeEntry.getKey()).edges.get(nodePoint);
+        edge.id = reverse.id = edgeCount++;
+        edge.signature = reverse.reverseSignature = signatures.signature(edge.placemarks);
+        reverse.signature = edge.reverseSignature = signatures.signature(reverse.placemarks);
+      }
+    }
+    return edgeCount;
+  }
+
+  private boolean hasMatchingOutgoing(Node node, Edge sourceEdge) {
+    for (Edge edge : node.edges.values()) {
+      if (edge != sourceEdge && edge.signature == sourceEdge.reverseSignature) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void exploreEdgesWithSamePlacemarks(Coordinate nodePoint, int signature,
+      List<Coordinate> outputPoints, BitSet visitedEdges) {
     Coordinate prevPoint = null;
     while (nodePoint != null) {
       outputPoints.add(nodePoint);
       Node node = nodes.get(nodePoint);
       Coordinate nextPoint = null;
       for (Map.Entry<Coordinate, Edge> edgeEntry : node.edges.entrySet()) {
-        if (edgeEntry.getValue().placemarks.equals(placemarks) && !edgeEntry.getKey().equals(prevPoint)) {
-          LineSegment segment = asSegment(nodePoint, edgeEntry.getKey());
-          if (!visitedEdges.add(segment)) {
+        Edge edge = edgeEntry.getValue();
+        if (edge.signature == signature && !edgeEntry.getKey().equals(prevPoint)) {
+          if (visitedEdges.get(edge.id)) {
             continue;
-          }          
+          }
+          visitedEdges.set(edge.id);
           prevPoint = nodePoint;
           nextPoint = edgeEntry.getKey();
           break;
@@ -304,6 +528,22 @@ public class PolylineAlignmentGraph {
     }
   }
 
+  /**
+   * Returns the placemarks of each edge, in the direction of its segment.
+   */
+  Map<LineSegment, List<Placemark>> dumpPlacemarks() {
+    Map<LineSegment, List<Placemark>> placemarks = new HashMap<>();
+    for (Map.Entry<Coordinate, Node> nodeEntry : nodes.entrySet()) {
+      for (Map.Entry<Coordinate, Edge> edgeEntry : nodeEntry.getValue().edges.entrySet()) {
+        if (nodeEntry.getKey().compareTo(edgeEntry.getKey()) < 0) {
+          placemarks.put(asSegment(nodeEntry.getKey(), edgeEntry.getKey()),
+              new ArrayList<>(edgeEntry.getValue().placemarks));
+        }
+      }
+    }
+    return placemarks;
+  }
+
   public Set<LineSegment> dump() {
     Set<LineSegment> visitedEdges = new HashSet<>();
     for (Map.Entry<Coordinate, Node> nodeEntry : nodes.entrySet()) {
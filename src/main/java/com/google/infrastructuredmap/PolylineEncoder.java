@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes polylines in the Google Maps encoded polyline format directly from
+ * an array of interleaved lat-lng values.
+ *
+ * The output is identical to {@link com.google.maps.model.EncodedPolyline},
+ * without allocating a {@link com.google.maps.model.LatLng} per point.
+ */
+final class PolylineEncoder {
+
+  private PolylineEncoder() {}
+
+  /**
+   * @param latLngs interleaved latitude and longitude values
+   */
+  public static String encode(double[] latLngs) {
+    return encode(latLngs, null);
+  }
+
+  /**
+   * Encodes a subset of the points, such as the vertices kept by
+   * {@link PolylineSimplifier}.
+   *
+   * @param latLngs interleaved latitude and longitude values
+   * @param indices the ascending indices of the points to encode, or null for
+   *     all of them
+   */
+  public static String encode(double[] latLngs, @Nullable int[] indices) {
+    StringBuilder result = new StringBuilder();
+    long lastLat = 0;
+    long lastLng = 0;
+    int count = indices != null ? indices.length : latLngs.length / 2;
+    for (int i = 0; i < count; ++i) {
+      int index = indices != null ? indices[i] : i;
+      long lat = Math.round(latLngs[2 * index] * 1e5);
+      long lng = Math.round(latLngs[2 * index + 1] * 1e5);
+      encodeValue(lat - lastLat, result);
+      encodeValue(lng - lastLng, result);
+      lastLat = lat;
+      lastLng = lng;
+    }
+    return result.toString();
+  }
+
+  /**
+   * Decodes an encoded polyline.
+   *
+   * @return interleaved latitude and longitude values
+   */
+  public static double[] decode(String encoded) {
+    double[] latLngs = new double[16];
+    int count = 0;
+    long lat = 0;
+    long lng = 0;
+    int[] index = {0};
+    while (index[0] < encoded.length()) {
+      lat += decodeValue(encoded, index);
+      lng += decodeValue(encoded, index);
+      if (count + 2 > latLngs.length) {
+        latLngs = Arrays.copyOf(latLngs, latLngs.length * 2);
+      }
+      latLngs[count++] = lat / 1e5;
+      latLngs[count++] = lng / 1e5;
+    }
+    return Arrays.copyOf(latLngs, count);
+  }
+
+  private static void encodeValue(long value, StringBuilder result) {
+    value = value < 0 ? ~(value << 1) : value << 1;
+    while (value >= 0x20) {
+      result.append((char) ((0x20 | (value & 0x1f)) + 63));
+      value >>= 5;
+    }
+    result.append((char) (value + 63));
+  }
+
+  /**
+   * Decodes the value starting at {@code index[0]}, and advances it past the
+   * value.
+   */
+  private static long decodeValue(String encoded, int[] index) {
+    long result = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = encoded.charAt(index[0]++) - 63;
+      result |= (long) (b & 0x1f) << shift;
+      shift += 5;
+    } while (b >= 0x20);
+    return (result & 1) != 0 ? ~(result >> 1) : result >> 1;
+  }
+}
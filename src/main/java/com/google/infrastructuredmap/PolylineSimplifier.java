@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineSegment;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simplifies a set of aligned polylines together with the Douglas-Peucker
+ * algorithm, for drawing at lower zoom levels.
+ *
+ * The first and last vertex of each line are always kept, so lines that meet
+ * at a junction still meet at exactly the same point.  A run of vertices is
+ * only replaced by a shortcut if the shortcut doesn't cross or touch any other
+ * segment of the map as it currently stands, so simplification doesn't add
+ * intersections between lines, or within a line, that weren't there before.
+ * This is the approach of JTS's TopologyPreservingSimplifier, applied across
+ * all lines at once rather than to a single geometry.
+ */
+final class PolylineSimplifier {
+
+  /**
+   * A segment of a line, from one kept vertex to the next.
+   */
+  private static class Edge {
+    final int line;
+    final int from;
+    final int to;
+
+    Edge(int line, int from, int to) {
+      this.line = line;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private final List<List<Coordinate>> _lines;
+
+  private final LineSegment _scratchSegment = new LineSegment();
+
+  /**
+   * @param lines the lines to simplify, in projected coordinates
+   */
+  PolylineSimplifier(List<List<Coordinate>> lines) {
+    _lines = lines;
+  }
+
+  /**
+   * Simplifies every line, such that no removed vertex is further than
+   * {@code tolerance} from the simplified line.
+   *
+   * @return for each line, the ascending indices of the vertices that are kept
+   */
+  int[][] simplify(double tolerance) {
+    // Cells a few times the tolerance keep both the short input edges and the
+    // long shortcuts in a reasonable number of cells.
+    SpatialGrid<Edge> grid = new SpatialGrid<>(Math.max(tolerance, 1.0) * 4);
+    Edge[][] edges = new Edge[_lines.size()][];
+    for (int i = 0; i < _lines.size(); ++i) {
+      List<Coordinate> line = _lines.get(i);
+      edges[i] = new Edge[Math.max(0, line.size() - 1)];
+      for (int j = 0; j + 1 < line.size(); ++j) {
+        edges[i][j] = new Edge(i, j, j + 1);
+        grid.insert(line.get(j), line.get(j + 1), edges[i][j]);
+      }
+    }
+
+    int[][] result = new int[_lines.size()][];
+    for (int i = 0; i < _lines.size(); ++i) {
+      result[i] = simplifyLine(i, tolerance, grid, edges[i]);
+    }
+    return result;
+  }
+
+  private int[] simplifyLine(int index, double tolerance, SpatialGrid<Edge> grid, Edge[] edges) {
+    List<Coordinate> line = _lines.get(index);
+    if (line.size() <= 2) {
+      int[] all = new int[line.size()];
+      for (int i = 0; i < all.length; ++i) {
+        all[i] = i;
+      }
+      return all;
+    }
+    boolean[] keep = new boolean[line.size()];
+    keep[0] = true;
+    keep[line.size() - 1] = true;
+
+    // Ranges still to be simplified, as pairs of vertex indices.  An explicit
+    // stack, since a long line could recurse once per vertex.
+    int[] stack = new int[16];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = line.size() - 1;
+    while (top > 0) {
+      int to = stack[--top];
+      int from = stack[--top];
+      Coordinate a = line.get(from);
+      Coordinate b = line.get(to);
+      _scratchSegment.setCoordinates(a, b);
+      int farthest = -1;
+      double maxDistance = -1;
+      for (int i = from + 1; i < to; ++i) {
+        double distance = _scratchSegment.distance(line.get(i));
+        if (distance > maxDistance) {
+          maxDistance = distance;
+          farthest = i;
+        }
+      }
+      if (farthest < 0) {
+        continue;
+      }
+      if (maxDistance <= tolerance && !hasConflict(index, from, to, a, b, grid)) {
+        for (int i = from; i < to; ++i) {
+          grid.remove(line.get(i), line.get(i + 1), edges[i]);
+        }
+        grid.insert(a, b, new Edge(index, from, to));
+        continue;
+      }
+      keep[farthest] = true;
+      if (top + 4 > stack.length) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      }
+      stack[top++] = from;
+      stack[top++] = farthest;
+      stack[top++] = farthest;
+      stack[top++] = to;
+    }
+
+    int count = 0;
+    for (boolean k : keep) {
+      if (k) {
+        count++;
+      }
+    }
+    int[] kept = new int[count];
+    count = 0;
+    for (int i = 0; i < keep.length; ++i) {
+      if (keep[i]) {
+        kept[count++] = i;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Returns true if the shortcut from vertex {@code from} to vertex {@code to}
+   * of a line would meet any edge other than the ones it replaces, anywhere
+   * but at a shared end point.
+   */
+  private boolean hasConflict(int index, int from, int to, Coordinate a, Coordinate b,
+      SpatialGrid<Edge> grid) {
+    for (Edge edge : grid.query(a, b, 0.0)) {
+      if (edge.line == index && edge.from >= from && edge.to <= to) {
+        continue;
+      }
+      List<Coordinate> line = _lines.get(edge.line);
+      if (intersectsInterior(a, b, line.get(edge.from), line.get(edge.to))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if segments ab and cd meet at any point that isn't an end
+   * point of both.
+   */
+  private static boolean intersectsInterior(Coordinate a, Coordinate b, Coordinate c,
+      Coordinate d) {
+    int abc = orientation(a, b, c);
+    int abd = orientation(a, b, d);
+    int cda = orientation(c, d, a);
+    int cdb = orientation(c, d, b);
+    if (abc * abd < 0 && cda * cdb < 0) {
+      return true;
+    }
+    // Otherwise they can only meet where an end point of one lies on the other.
+    return (abc == 0 && isOnSegment(c, a, b) && !c.equals2D(a) && !c.equals2D(b))
+        || (abd == 0 && isOnSegment(d, a, b) && !d.equals2D(a) && !d.equals2D(b))
+        || (cda == 0 && isOnSegment(a, c, d) && !a.equals2D(c) && !a.equals2D(d))
+        || (cdb == 0 && isOnSegment(b, c, d) && !b.equals2D(c) && !b.equals2D(d));
+  }
+
+  private static int orientation(Coordinate a, Coordinate b, Coordinate c) {
+    double cross = (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+    return cross > 0 ? 1 : cross < 0 ? -1 : 0;
+  }
+
+  /**
+   * Returns true if {@code p}, which is collinear with segment ab, lies
+   * within it.
+   */
+  private static boolean isOnSegment(Coordinate p, Coordinate a, Coordinate b) {
+    return p.x >= Math.min(a.x, b.x) && p.x <= Math.max(a.x, b.x)
+        && p.y >= Math.min(a.y, b.y) && p.y <= Math.max(a.y, b.y);
+  }
+}
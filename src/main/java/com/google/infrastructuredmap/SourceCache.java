@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of the inputs of previous runs, so that a scheduled run
+ * with unchanged inputs costs a conditional request rather than a download
+ * and a full extraction.
+ *
+ * Remote documents are stored by URL along with their ETag, Last-Modified
+ * date and content hash, and revalidated with a conditional request on each
+ * use.  The cache also records a fingerprint of the inputs each output was
+ * written from.
+ */
+public class SourceCache {
+
+  /**
+   * Fetches remote documents.
+   */
+  public interface Fetcher {
+    /**
+     * Fetches a document, conditionally if either validator is set.
+     *
+     * @param etag the ETag of the cached copy, if any
+     * @param lastModified the Last-Modified date of the cached copy, if any
+     * @return the document, or null if the server reports that the cached
+     *     copy is still current
+     */
+    @Nullable
+    Response fetch(URL url, @Nullable String etag, @Nullable String lastModified)
+        throws IOException;
+  }
+
+  /**
+   * A fetched document, which must be closed.
+   */
+  public static class Response implements Closeable {
+    public final InputStream body;
+    @Nullable public final String etag;
+    @Nullable public final String lastModified;
+
+    public Response(InputStream body, @Nullable String etag, @Nullable String lastModified) {
+      this.body = body;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public void close() throws IOException {
+      body.close();
+    }
+  }
+
+  /**
+   * A cached copy of a remote document.
+   */
+  public static class Document {
+    public final Path path;
+
+    /**
+     * The hex SHA-256 hash of the content.
+     */
+    public final String hash;
+
+    private Document(Path path, String hash) {
+      this.path = path;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Fetches documents with {@link HttpURLConnection}, using the
+   * If-None-Match and If-Modified-Since headers for conditional requests.
+   */
+  public static final Fetcher HTTP_FETCHER = new Fetcher() {
+    @Override
+    public Response fetch(URL url, String etag, String lastModified) throws IOException {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      if (etag != null) {
+        connection.setRequestProperty("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        connection.setRequestProperty("If-Modified-Since", lastModified);
+      }
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        connection.disconnect();
+        return null;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        connection.disconnect();
+        throw new IOException("HTTP " + status + " fetching " + url);
+      }
+      return new Response(connection.getInputStream(), connection.getHeaderField("ETag"),
+          connection.getHeaderField("Last-Modified"));
+    }
+  };
+
+  private static final String KEY_URL = "url";
+  private static final String KEY_ETAG = "etag";
+  private static final String KEY_LAST_MODIFIED = "lastModified";
+  private static final String KEY_HASH = "hash";
+
+  private final Path _dir;
+  private final Fetcher _fetcher;
+
+  public SourceCache(Path dir) {
+    this(dir, HTTP_FETCHER);
+  }
+
+  public SourceCache(Path dir, Fetcher fetcher) {
+    _dir = dir;
+    _fetcher = fetcher;
+  }
+
+  /**
+   * Returns the cached copy of a remote document, downloading it first if
+   * it isn't cached or has changed.  If the request fails but a copy is
+   * cached, the copy is used.
+   */
+  public Document fetch(String url) throws IOException {
+    Files.createDirectories(_dir);
+    String key = hash(url.getBytes(StandardCharsets.UTF_8));
+    Path body = _dir.resolve(key + ".body");
+    Path metadataPath = _dir.resolve(key + ".properties");
+    Properties metadata = Files.exists(body) ? readProperties(metadataPath) : new Properties();
+    String cachedHash = metadata.getProperty(KEY_HASH);
+
+    Response response;
+    try {
+      response = _fetcher.fetch(new URL(url), metadata.getProperty(KEY_ETAG),
+          metadata.getProperty(KEY_LAST_MODIFIED));
+    } catch (IOException ex) {
+      if (cachedHash == null) {
+        throw ex;
+      }
+      System.err.println("Using cached copy of " + url + ": " + ex);
+      return new Document(body, cachedHash);
+    }
+    if (response == null) {
+      if (cachedHash == null) {
+        throw new IOException("Not modified, but not cached: " + url);
+      }
+      return new Document(body, cachedHash);
+    }
+
+    String contentHash;
+    Path temp = Files.createTempFile(_dir, key, ".tmp");
+    try {
+      try (Response r = response; OutputStream out = Files.newOutputStream(temp)) {
+        contentHash = copy(r.body, out);
+      }
+      Files.move(temp, body, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    metadata = new Properties();
+    metadata.setProperty(KEY_URL, url);
+    metadata.setProperty(KEY_HASH, contentHash);
+    if (response.etag != null) {
+      metadata.setProperty(KEY_ETAG, response.etag);
+    }
+    if (response.lastModified != null) {
+      metadata.setProperty(KEY_LAST_MODIFIED, response.lastModified);
+    }
+    writeProperties(metadata, metadataPath);
+    return new Document(body, contentHash);
+  }
+
+  /**
+   * Returns true if {@code output} exists and was last written from inputs
+   * with the specified fingerprint.
+   */
+  public boolean isUpToDate(Path output, String fingerprint) throws IOException {
+    Path stamp = stampPath(output);
+    return Files.exists(output) && Files.exists(stamp)
+        && fingerprint.equals(readProperties(stamp).getProperty(KEY_HASH));
+  }
+
+  /**
+   * Records that {@code output} was written from inputs with the specified
+   * fingerprint.
+   */
+  public void setUpToDate(Path output, String fingerprint) throws IOException {
+    Files.createDirectories(_dir);
+    Properties stamp = new Properties();
+    stamp.setProperty(KEY_HASH, fingerprint);
+    writeProperties(stamp, stampPath(output));
+  }
+
+  /**
+   * Forgets the inputs that {@code output} was written from, before it's
+   * written by something that doesn't record them.
+   */
+  public void clearUpToDate(Path output) throws IOException {
+    Files.deleteIfExists(stampPath(output));
+  }
+
+  /**
+   * Returns the hex SHA-256 hash of a file's content.
+   */
+  public static String hash(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return copy(in, null);
+    }
+  }
+
+  static String hash(byte[] bytes) {
+    MessageDigest digest = newDigest();
+    digest.update(bytes);
+    return toHex(digest.digest());
+  }
+
+  private Path stampPath(Path output) {
+    String key = hash(output.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+    return _dir.resolve(key + ".output.properties");
+  }
+
+  /**
+   * Copies {@code in} to {@code out}, if set, and returns the hex SHA-256 hash
+   * of the content.
+   */
+  private static String copy(InputStream in, @Nullable OutputStream out) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      digest.update(buffer, 0, n);
+      if (out != null) {
+        out.write(buffer, 0, n);
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder b = new StringBuilder(bytes.length * 2);
+    for (byte value : bytes) {
+      b.append(Character.forDigit((value >> 4) & 0xf, 16));
+      b.append(Character.forDigit(value & 0xf, 16));
+    }
+    return b.toString();
+  }
+
+  private static Properties readProperties(Path path) throws IOException {
+    Properties properties = new Properties();
+    if (Files.exists(path)) {
+      try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        properties.load(in);
+      }
+    }
+    return properties;
+  }
+
+  private static void writeProperties(Properties properties, Path path) throws IOException {
+    Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+        path.getFileName().toString(), ".tmp");
+    try {
+      try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        properties.store(out, null);
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * A uniform grid spatial index over projected coordinates. Each point or line
+ * segment item is bucketed into every cell it crosses, so a query only has to
+ * consider items in the handful of cells around the query geometry.
+ *
+ * Cells are stored in an open-addressing table of primitive keys, with the
+ * items of each cell chained through parallel arrays, since a large graph can
+ * occupy millions of cells.
+ *
+ * When the cell size matches the snap threshold, a radius query around a
+ * point touches at most the 3x3 neighborhood of cells.
+ *
+ * Queries return items in the order they were inserted, whatever cells they
+ * fall in, so callers that keep the first of several equally good matches
+ * resolve ties deterministically, in favor of the oldest item.  That is a
+ * choice of this index rather than a property of the code it replaced: the
+ * graph used to scan its nodes in {@link java.util.HashMap} order, which
+ * depends on coordinate hashes, so a tie can snap to a different node than it
+ * did then.
+ */
+class SpatialGrid<T> {
+
+  private static final double EPSILON = 1e-9;
+
+  private static final int NONE = -1;
+
+  /**
+   * Marks an unused slot in the cell table. It is the key of the cell with x
+   * at {@link Integer#MIN_VALUE} and y at 0, which {@link #cells} never
+   * returns, since it clamps x above {@link Integer#MIN_VALUE}.
+   */
+  private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+  private final double _cellSize;
+
+  // Open-addressing hash table from cell key to the first entry in the cell.
+  private long[] _cellKeys;
+  private int[] _cellHeads;
+  private int _cellCount = 0;
+
+  // Entries, chained per cell, with removed entries kept on a free list.  The
+  // sequence of an entry is the number of the insert() call that added it.
+  private Object[] _entryItems = new Object[16];
+  private int[] _entryNext = new int[16];
+  private int[] _entrySequence = new int[16];
+  private int _entryCount = 0;
+  private int _freeEntry = NONE;
+  private int _nextSequence = 0;
+
+  public SpatialGrid(double cellSize) {
+    _cellSize = cellSize;
+    allocateCells(64);
+  }
+
+  public void insert(Coordinate point, T item) {
+    insert(point, point, item);
+  }
+
+  /**
+   * Inserts an item into each cell crossed by the line segment from {@code a}
+   * to {@code b}.
+   */
+  public void insert(Coordinate a, Coordinate b, T item) {
+    int sequence = _nextSequence++;
+    for (long key : keys(a, b, 0.0)) {
+      int cell = findOrAddCell(key);
+      int entry = allocateEntry();
+      _entryItems[entry] = item;
+      _entrySequence[entry] = sequence;
+      _entryNext[entry] = _cellHeads[cell];
+      _cellHeads[cell] = entry;
+    }
+  }
+
+  public void remove(Coordinate point, T item) {
+    remove(point, point, item);
+  }
+
+  /**
+   * Removes an item. The segment must match the one used to insert it.
+   */
+  public void remove(Coordinate a, Coordinate b, T item) {
+    for (long key : keys(a, b, 0.0)) {
+      int cell = findCell(key);
+      if (cell == NONE) {
+        continue;
+      }
+      int prev = NONE;
+      for (int entry = _cellHeads[cell]; entry != NONE; prev = entry, entry = _entryNext[entry]) {
+        if (!item.equals(_entryItems[entry])) {
+          continue;
+        }
+        if (prev == NONE) {
+          _cellHeads[cell] = _entryNext[entry];
+        } else {
+          _entryNext[prev] = _entryNext[entry];
+        }
+        _entryItems[entry] = null;
+        _entryNext[entry] = _freeEntry;
+        _freeEntry = entry;
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns all items in cells within {@code radius} of the specified point.
+   * The result is a superset of the items actually within that distance.
+   */
+  public Collection<T> query(Coordinate point, double radius) {
+    return query(point, point, radius);
+  }
+
+  /**
+   * Returns all items in cells within {@code radius} of the line segment from
+   * {@code a} to {@code b}, without duplicates and in insertion order. The
+   * result is a superset of the items actually within that distance.
+   */
+  @SuppressWarnings("unchecked")
+  public Collection<T> query(Coordinate a, Coordinate b, double radius) {
+    // Each entry is packed with its sequence in the high bits, so sorting the
+    // packed values orders the entries by insertion.
+    long[] found = new long[16];
+    int count = 0;
+    for (long key : keys(a, b, radius)) {
+      int cell = findCell(key);
+      if (cell == NONE) {
+        continue;
+      }
+      for (int entry = _cellHeads[cell]; entry != NONE; entry = _entryNext[entry]) {
+        if (count == found.length) {
+          found = Arrays.copyOf(found, count * 2);
+        }
+        found[count++] = ((long) _entrySequence[entry] << 32) | entry;
+      }
+    }
+    Arrays.sort(found, 0, count);
+    Collection<T> results = new LinkedHashSet<>();
+    for (int i = 0; i < count; ++i) {
+      results.add((T) _entryItems[(int) found[i]]);
+    }
+    return results;
+  }
+
+  private int allocateEntry() {
+    if (_freeEntry != NONE) {
+      int entry = _freeEntry;
+      _freeEntry = _entryNext[entry];
+      return entry;
+    }
+    if (_entryCount == _entryNext.length) {
+      _entryItems = Arrays.copyOf(_entryItems, _entryCount * 2);
+      _entryNext = Arrays.copyOf(_entryNext, _entryCount * 2);
+      _entrySequence = Arrays.copyOf(_entrySequence, _entryCount * 2);
+    }
+    return _entryCount++;
+  }
+
+  private int findCell(long key) {
+    int mask = _cellKeys.length - 1;
+    for (int i = hash(key) & mask; _cellKeys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+      if (_cellKeys[i] == key) {
+        return i;
+      }
+    }
+    return NONE;
+  }
+
+  private int findOrAddCell(long key) {
+    int cell = findCell(key);
+    if (cell != NONE) {
+      return cell;
+    }
+    if ((_cellCount + 1) * 2 > _cellKeys.length) {
+      long[] keys = _cellKeys;
+      int[] heads = _cellHeads;
+      allocateCells(keys.length * 2);
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] != EMPTY_KEY) {
+          _cellHeads[addCell(keys[i])] = heads[i];
+        }
+      }
+    }
+    _cellCount++;
+    return addCell(key);
+  }
+
+  private int addCell(long key) {
+    int mask = _cellKeys.length - 1;
+    int i = hash(key) & mask;
+    while (_cellKeys[i] != EMPTY_KEY) {
+      i = (i + 1) & mask;
+    }
+    _cellKeys[i] = key;
+    _cellHeads[i] = NONE;
+    return i;
+  }
+
+  private void allocateCells(int capacity) {
+    _cellKeys = new long[capacity];
+    Arrays.fill(_cellKeys, EMPTY_KEY);
+    _cellHeads = new int[capacity];
+  }
+
+  static int hash(long key) {
+    // Cell keys pack two small ints, so mix the bits before masking.
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private long[] keys(Coordinate a, Coordinate b, double pad) {
+    return cells(_cellSize, a, b, pad);
+  }
+
+  /**
+   * Returns the keys of all cells of a grid with the specified cell size that
+   * are within {@code pad} of the segment from {@code a} to {@code b}.
+   */
+  static long[] cells(double cellSize, Coordinate a, Coordinate b, double pad) {
+    Cells cells = new Cells();
+    cells.walk(cellSize, a.x, a.y, b.x, b.y, pad);
+    return Arrays.copyOf(cells.keys, cells.count);
+  }
+
+  /**
+   * A reusable buffer of cell keys.
+   */
+  static final class Cells {
+    long[] keys = new long[16];
+    int count;
+
+    /**
+     * Replaces the keys with those of all cells of a grid with the specified
+     * cell size that are within {@code pad} of the segment from (ax, ay) to
+     * (bx, by), walking the segment one column of cells at a time so that
+     * long diagonal segments don't pay for their full bounding box.
+     */
+    void walk(double cellSize, double ax, double ay, double bx, double by, double pad) {
+      if (ax > bx) {
+        double tmp = ax;
+        ax = bx;
+        bx = tmp;
+        tmp = ay;
+        ay = by;
+        by = tmp;
+      }
+      // Pad slightly so that segments running exactly along a cell boundary
+      // are bucketed on both sides of it.
+      pad += cellSize * EPSILON;
+      double slope = ax == bx ? 0.0 : (by - ay) / (bx - ax);
+      int minX = cell(cellSize, ax - pad);
+      int maxX = cell(cellSize, bx + pad);
+      count = 0;
+      for (int x = minX; x <= maxX; ++x) {
+        double x0 = clamp(x * cellSize - pad, ax, bx);
+        double x1 = clamp((x + 1) * cellSize + pad, ax, bx);
+        double y0 = ax == bx ? ay : ay + (x0 - ax) * slope;
+        double y1 = ax == bx ? by : ay + (x1 - ax) * slope;
+        int minY = cell(cellSize, Math.min(y0, y1) - pad);
+        int maxY = cell(cellSize, Math.max(y0, y1) + pad);
+        for (int y = minY; y <= maxY; ++y) {
+          if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+          }
+          keys[count++] = ((long) x << 32) | (y & 0xffffffffL);
+        }
+      }
+    }
+  }
+
+  private static double clamp(double value, double min, double max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private static int cell(double cellSize, double value) {
+    // Keeps cell keys clear of EMPTY_KEY, which also marks unused slots in
+    // AlignmentFootprint.
+    return Math.max(Integer.MIN_VALUE + 1, (int) Math.floor(value / cellSize));
+  }
+}
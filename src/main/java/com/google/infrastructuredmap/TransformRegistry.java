@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.NoninvertibleTransformException;
+
+/**
+ * A process-wide cache of the transforms between WGS84 (aka lat-lng) and
+ * projected coordinate reference systems.
+ *
+ * Decoding a CRS from the EPSG database and finding the transform is far more
+ * expensive than extracting a small map, so each pair of transforms is built
+ * once and shared.  Concurrent requests for the same CRS wait for a single
+ * decode rather than repeating it.
+ */
+final class TransformRegistry {
+
+  /**
+   * A forward transform from WGS84 to a projected CRS, and its inverse.
+   * Both are immutable and safe to use from several threads.
+   */
+  static final class Transforms {
+    final MathTransform forward;
+    final MathTransform inverse;
+
+    private Transforms(MathTransform forward, MathTransform inverse) {
+      this.forward = forward;
+      this.inverse = inverse;
+    }
+  }
+
+  private static final String WGS84 = "EPSG:4326";
+
+  private static final ConcurrentMap<String, FutureTask<Transforms>> _transforms =
+      new ConcurrentHashMap<>();
+
+  private TransformRegistry() {
+  }
+
+  /**
+   * Returns the transforms for the projected CRS with the specified code,
+   * such as "EPSG:32610".
+   *
+   * @throws IllegalArgumentException if the code can't be decoded
+   */
+  static Transforms get(final String code) {
+    FutureTask<Transforms> task = _transforms.get(code);
+    if (task == null) {
+      FutureTask<Transforms> newTask = new FutureTask<>(new Callable<Transforms>() {
+        @Override
+        public Transforms call() throws FactoryException, NoninvertibleTransformException {
+          return create(code);
+        }
+      });
+      task = _transforms.putIfAbsent(code, newTask);
+      if (task == null) {
+        task = newTask;
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    } catch (ExecutionException ex) {
+      // Don't cache the failure, in case it was transient.
+      _transforms.remove(code, task);
+      if (ex.getCause() instanceof FactoryException) {
+        throw new IllegalArgumentException("Unknown CRS: " + code, ex.getCause());
+      }
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  /**
+   * Returns the code of the WGS84 UTM zone containing the specified point,
+   * without the special zones around Norway and Svalbard.
+   */
+  static String utmZone(double latitude, double longitude) {
+    int zone = (int) Math.floor((longitude + 180) / 6) + 1;
+    zone = Math.max(1, Math.min(60, zone));
+    return String.format("EPSG:%d", (latitude >= 0 ? 32600 : 32700) + zone);
+  }
+
+  private static Transforms create(String code)
+      throws FactoryException, NoninvertibleTransformException {
+    CoordinateReferenceSystem sourceCRS = CRS.decode(WGS84);
+    CoordinateReferenceSystem targetCRS = CRS.decode(code);
+    MathTransform forward = CRS.findMathTransform(sourceCRS, targetCRS, false);
+    return new Transforms(forward, forward.inverse());
+  }
+}
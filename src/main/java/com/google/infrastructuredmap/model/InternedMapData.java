@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap.model;
+
+import java.util.List;
+
+/**
+ * {@link MapData} with each string, project and feature written once, in
+ * tables that the rest of the data refers to by index.  In the plain format,
+ * every placemark repeats the full projects of its id, and every project
+ * repeats its title strings.
+ *
+ * String references are indices into {@link #strings}, or null for a null
+ * string.
+ */
+public class InternedMapData {
+
+  /**
+   * A {@link ProjectReference}, with string references for its strings.
+   */
+  public static class Project {
+    public List<Integer> title;
+    public Integer headingId;
+    public Integer timeline;
+    public Integer status;
+    public Integer color;
+  }
+
+  /**
+   * A {@link MapFeature}, with a string reference for its id and indices into
+   * {@link InternedMapData#projects} for its projects.
+   */
+  public static class Feature {
+    public int id;
+    public List<Integer> projects;
+  }
+
+  /**
+   * A {@link MapPlacemark}, with indices into
+   * {@link InternedMapData#features} for its ids.
+   */
+  public static class Placemark {
+    public double lat;
+    public double lng;
+    public List<Integer> features;
+    public Integer channelClass;
+  }
+
+  /**
+   * A {@link MapSegment}, with indices into {@link InternedMapData#features}
+   * for its ids.
+   */
+  public static class Segment {
+    public String line;
+    public List<Integer> features;
+    public Integer channelClass;
+    public List<String> levels;
+  }
+
+  public List<String> strings;
+  public List<Project> projects;
+
+  /**
+   * One feature per id.
+   */
+  public List<Feature> features;
+
+  /**
+   * As for {@link MapData#channelClasses}, with indices into
+   * {@link #features}.
+   */
+  public List<List<Integer>> channelClasses;
+
+  public List<Placemark> placemarks;
+  public List<Segment> segments;
+
+  /**
+   * As for {@link MapData#levelZooms}.
+   */
+  public List<Integer> levelZooms;
+
+  /**
+   * As for {@link MapData#tiles}.
+   */
+  public List<MapTile> tiles;
+}
@@ -22,4 +22,25 @@ public class MapData {
   public List<MapFeature> features = new ArrayList<>();
   public List<MapPlacemark> placemarks = new ArrayList<>();
   public List<MapSegment> segments = new ArrayList<>();  
+
+  /**
+   * The highest zoom level at which each of {@link MapSegment#levels} is
+   * drawn, coarsest first.  Above the last one, segments are drawn at full
+   * resolution.  Null without level-of-detail output.
+   */
+  public List<Integer> levelZooms;
+
+  /**
+   * The distinct id lists of the segments and placemarks, which a client can
+   * use to evaluate filters once per list rather than once per segment or
+   * placemark.  See {@link MapSegment#channelClass}.  Null without channel
+   * classes.
+   */
+  public List<List<String>> channelClasses;
+
+  /**
+   * In the index of tiled map data, the tiles that hold the segments and
+   * placemarks.  Null otherwise.
+   */
+  public List<MapTile> tiles;
 }
@@ -21,4 +21,10 @@ public class MapPlacemark {
   public double lat;
   public double lng;
   public List<String> ids;
+
+  /**
+   * The index of {@link #ids} in {@link MapData#channelClasses}, or null
+   * without channel classes.
+   */
+  public Integer channelClass;
 }
@@ -20,4 +20,16 @@ import java.util.List;
 public class MapSegment {
   public String line;
   public List<String> ids;
+
+  /**
+   * The index of {@link #ids} in {@link MapData#channelClasses}, or null
+   * without channel classes.
+   */
+  public Integer channelClass;
+
+  /**
+   * Simplified encodings of the line for lower zoom levels, one for each of
+   * {@link MapData#levelZooms}, or null without level-of-detail output.
+   */
+  public List<String> levels;
 }
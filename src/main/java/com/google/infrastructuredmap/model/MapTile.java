@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap.model;
+
+/**
+ * A tile of segments and placemarks in the index of tiled map data.
+ */
+public class MapTile {
+  /**
+   * The path of the tile's data, relative to the index.
+   */
+  public String path;
+
+  /**
+   * The bounding box of the tile's segments and placemarks, which can extend
+   * past the tile's quadtree cell.
+   */
+  public double south;
+  public double west;
+  public double north;
+  public double east;
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The Web Worker for InfraStructuredMap.prototype.loadInWorker.  It fetches
+ * and parses the map data, decodes the polylines, and groups the segments and
+ * placemarks into channel classes with their channels, so that the page only
+ * has to create the map objects.
+ *
+ * The request is {url, colorsByTitle}, with the entries of the map's
+ * colorsByTitle.  The response is {error}, or:
+ *
+ *   projects: the distinct projects, as in the JSON output
+ *   features: [{id, projects}], with indices into projects
+ *   channelClasses: the channels of each class, as [{color, projects}]
+ *   levelZooms: as in the JSON output
+ *   segments: {channelClasses, offsets, coordinates}, where the interleaved
+ *     lat-lng coordinates of segment i at level j, coarsest first and ending
+ *     with full resolution, run from offsets[i * levels + j] to
+ *     offsets[i * levels + j + 1]
+ *   placemarks: {channelClasses, coordinates}
+ *
+ * The channel class indices, offsets and coordinates are typed arrays, which
+ * are transferred rather than copied.
+ */
+importScripts('infra-structured-map.js');
+
+(function(root) {
+  root.onmessage = function(event) {
+    const request = event.data;
+    const binary = /\.bin$/.test(request.url);
+    fetch(request.url)
+      .then(function(response) {
+        if (!response.ok) {
+          throw new Error(
+            'HTTP ' + response.status + ' fetching ' + request.url);
+        }
+        return binary ? response.arrayBuffer() : response.json();
+      })
+      .then(function(data) {
+        if (binary) {
+          data = InfraStructuredMap.decodeMapData(data);
+        }
+        const decoded = decode(data, new Map(request.colorsByTitle));
+        root.postMessage(decoded, [
+          decoded.segments.channelClasses.buffer,
+          decoded.segments.offsets.buffer,
+          decoded.segments.coordinates.buffer,
+          decoded.placemarks.channelClasses.buffer,
+          decoded.placemarks.coordinates.buffer,
+        ]);
+      })
+      .catch(function(error) {
+        root.postMessage({error: String(error)});
+      });
+  };
+
+  /**
+   * @param {Object} data - map data, as parsed JSON, interned JSON, or
+   *    decoded binary
+   * @param {Map<string, string>} colorsByTitle
+   * @return {Object} the response described above
+   */
+  function decode(data, colorsByTitle) {
+    // Projects are listed once however many features refer to them, as the
+    // interned output does.
+    const projects = [];
+    const projectIndices = new Map();
+    const addProject = function(project) {
+      const key = JSON.stringify([project.title, project.headingId,
+        project.timeline, project.status, project.color]);
+      if (!projectIndices.has(key)) {
+        projectIndices.set(key, projects.length);
+        projects.push(project);
+      }
+      return projectIndices.get(key);
+    };
+
+    const projectsById = new Map();
+    let featureIds = [];
+    let classIds = data.channelClasses || [];
+    if (data.strings) {
+      const strings = data.strings;
+      const string = function(index) {
+        return index === undefined ? null : strings[index];
+      };
+      const internedProjects = data.projects.map(function(project) {
+        return addProject({
+          title: project.title.map(string),
+          headingId: string(project.headingId),
+          timeline: string(project.timeline),
+          status: string(project.status),
+          color: string(project.color),
+        });
+      });
+      featureIds = data.features.map(function(feature) {
+        return strings[feature.id];
+      });
+      data.features.forEach(function(feature, index) {
+        projectsById.set(featureIds[index],
+          feature.projects.map(function(project) {
+            return internedProjects[project];
+          }));
+      });
+      classIds = classIds.map(function(features) {
+        return features.map(function(index) {
+          return featureIds[index];
+        });
+      });
+    } else {
+      for (const feature of data.features) {
+        projectsById.set(feature.id, feature.projects.map(addProject));
+      }
+    }
+    const features = [];
+    projectsById.forEach(function(indices, id) {
+      features.push({id: id, projects: indices});
+    });
+
+    // As for InfraStructuredMap.prototype.channelClassOf_ and
+    // constructChannelsFromFeatureIds.
+    const channelClasses = [];
+    const classesByKey = new Map();
+    const classesByIndex = [];
+    const classOfIds = function(ids) {
+      const key = ids.join('\n');
+      if (!classesByKey.has(key)) {
+        classesByKey.set(key, channelClasses.length);
+        channelClasses.push(channelsOf(ids));
+      }
+      return classesByKey.get(key);
+    };
+    const channelsOf = function(ids) {
+      const channels = [];
+      const channelsByColor = new Map();
+      for (const id of ids) {
+        for (const index of projectsById.get(id)) {
+          const project = projects[index];
+          const color = project.color || colorsByTitle.get(project.title[0]);
+          let channel = channelsByColor.get(color);
+          if (!channel) {
+            channel = {color: color, projects: []};
+            channelsByColor.set(color, channel);
+            channels.push(channel);
+          }
+          channel.projects.push(index);
+        }
+      }
+      return channels;
+    };
+    const classOf = function(item) {
+      const index = item.channelClass;
+      if (index !== undefined && index < classIds.length) {
+        if (classesByIndex[index] === undefined) {
+          classesByIndex[index] = classOfIds(classIds[index]);
+        }
+        return classesByIndex[index];
+      }
+      return classOfIds(item.ids || item.features.map(function(index) {
+        return featureIds[index];
+      }));
+    };
+
+    const levelZooms = data.levelZooms || [];
+    const levels = levelZooms.length + 1;
+    const segmentClasses = new Int32Array(data.segments.length);
+    const offsets = new Uint32Array(data.segments.length * levels + 1);
+    // Each value takes at least one character, so this is enough for any
+    // line, and the unused end is trimmed below.
+    let length = 0;
+    for (const segment of data.segments) {
+      length += segment.line.length;
+      for (const level of segment.levels || []) {
+        length += level.length;
+      }
+    }
+    let coordinates = new Float64Array(length);
+    let offset = 0;
+    data.segments.forEach(function(segment, i) {
+      segmentClasses[i] = classOf(segment);
+      const lines = (segment.levels || []).concat([segment.line]);
+      for (let level = 0; level < levels; ++level) {
+        offsets[i * levels + level] = offset;
+        offset = decodePolyline(lines[level], coordinates, offset);
+      }
+    });
+    offsets[data.segments.length * levels] = offset;
+    coordinates = coordinates.slice(0, offset);
+
+    const placemarkClasses = new Int32Array(data.placemarks.length);
+    const placemarkCoordinates = new Float64Array(data.placemarks.length * 2);
+    data.placemarks.forEach(function(placemark, i) {
+      placemarkClasses[i] = classOf(placemark);
+      placemarkCoordinates[2 * i] = placemark.lat;
+      placemarkCoordinates[2 * i + 1] = placemark.lng;
+    });
+
+    return {
+      projects: projects,
+      features: features,
+      channelClasses: channelClasses,
+      levelZooms: levelZooms,
+      segments: {
+        channelClasses: segmentClasses,
+        offsets: offsets,
+        coordinates: coordinates,
+      },
+      placemarks: {
+        channelClasses: placemarkClasses,
+        coordinates: placemarkCoordinates,
+      },
+    };
+  };
+
+  /**
+   * Decodes an encoded polyline into interleaved lat-lng coordinates.
+   * @param {string} encoded
+   * @param {Float64Array} coordinates - the array to decode into
+   * @param {Number} offset - the index to start writing at
+   * @return {Number} the index after the last coordinate written
+   */
+  function decodePolyline(encoded, coordinates, offset) {
+    let index = 0;
+    let lat = 0;
+    let lng = 0;
+    const readValue = function() {
+      let result = 0;
+      let shift = 0;
+      let b;
+      do {
+        b = encoded.charCodeAt(index++) - 63;
+        result |= (b & 0x1f) << shift;
+        shift += 5;
+      } while (b >= 0x20);
+      return (result & 1) ? ~(result >> 1) : (result >> 1);
+    };
+    while (index < encoded.length) {
+      lat += readValue();
+      lng += readValue();
+      coordinates[offset++] = lat / 1e5;
+      coordinates[offset++] = lng / 1e5;
+    }
+    return offset;
+  };
+}(this));
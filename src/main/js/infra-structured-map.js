@@ -52,6 +52,8 @@
     };
 
     this.projectsById = new Map();
+    // The id of each feature of interned data, by index.
+    this.featureIds = [];
     this.modeIds = new PropertyIds(
       ['Pedestrian / Bike', 'Transit', 'Freight', 'Other']);
     this.statusIds = new PropertyIds(['completed', 'planned', 'eval']);
@@ -59,6 +61,33 @@
     this.segments = [];
     this.placemarks = [];
 
+    // The highest zoom of each level of detail in the loaded data, and the
+    // level currently drawn, where levelZooms.length is full resolution.
+    this.levelZooms = [];
+    this.level = 0;
+    this.map.addListener('zoom_changed', this.updateLevel_.bind(this));
+
+    // The tiles of data loaded with loadTiled, if any.
+    this.tiles = [];
+    this.map.addListener('idle', this.updateTiles_.bind(this));
+
+    // Segments and placemarks with the same ids share a ChannelClass, which
+    // evaluates the filters once for all of them.  classesByProperty maps
+    // each bit of each property mask to the classes with a project that has
+    // it, so that a toggle only re-evaluates those.  Classes whose channels
+    // change are drawn together in the next animation frame.
+    this.channelClasses = [];
+    this.channelClassesByKey = new Map();
+    this.channelClassesByIndex = [];
+    this.channelClassIds = [];
+    this.classesByProperty = {mode: [], status: [], timeline: []};
+    this.pendingClasses = new Set();
+    this.drawScheduled = false;
+
+    // Incremented by each load, so that an incremental load from
+    // loadInWorker stops if other data is loaded in the meantime.
+    this.loadGeneration = 0;
+
     this.masks = new PropertyMasks();
     this.masks.mode.setEnabledAll(true);
     this.masks.status.setEnabledAll(true);
@@ -94,43 +123,462 @@
     propertyMask.setEnabled(index, checkbox.checked);
     checkbox.addEventListener('change', function(event) {
       propertyMask.setEnabled(index, checkbox.checked);
-      for (const segment of this.segments) {
-        segment.updateChannels(this.masks);
+      this.updateChannelClasses_(
+        this.channelClassesAffectedBy_(propertyMask, index));
+    }.bind(this));
+  };
+
+  /**
+   * The properties of {@link PropertyMasks}.
+   */
+  const PROPERTY_KINDS = ['mode', 'status', 'timeline'];
+
+  /**
+   * @param {PropertyMask} propertyMask - one of this.masks
+   * @param {Number} index - the index of a property in the mask
+   * @return {ChannelClass[]} the classes that toggling the property affects
+   */
+  InfraStructuredMap.prototype.channelClassesAffectedBy_ =
+    function(propertyMask, index) {
+      for (const kind of PROPERTY_KINDS) {
+        if (this.masks[kind] === propertyMask) {
+          // As for PropertyMask.setEnabled, where 1 << undefined is bit 0.
+          return this.classesByProperty[kind][index | 0] || [];
+        }
       }
-      for (const placemark of this.placemarks) {
-        placemark.updateChannels(this.masks);
+      return this.channelClasses;
+    };
+
+  /**
+   * Re-evaluates the classes against this.masks, and schedules the ones that
+   * changed to be drawn.
+   * @param {ChannelClass[]} channelClasses
+   */
+  InfraStructuredMap.prototype.updateChannelClasses_ =
+    function(channelClasses) {
+    for (const channelClass of channelClasses) {
+      if (channelClass.updateMask(this.masks)) {
+        this.pendingClasses.add(channelClass);
       }
-    }.bind(this));
+    }
+    if (this.pendingClasses.size > 0 && !this.drawScheduled) {
+      this.drawScheduled = true;
+      requestFrame(this.drawPendingClasses_.bind(this));
+    }
+  };
+
+  /**
+   * Calls the callback before the next repaint, or as soon as possible where
+   * there are no animation frames.
+   * @param {function()} callback
+   */
+  function requestFrame(callback) {
+    if (root.requestAnimationFrame) {
+      root.requestAnimationFrame(callback);
+    } else {
+      setTimeout(callback, 0);
+    }
+  };
+
+  InfraStructuredMap.prototype.drawPendingClasses_ = function() {
+    const channelClasses = this.pendingClasses;
+    this.pendingClasses = new Set();
+    this.drawScheduled = false;
+    for (const channelClass of channelClasses) {
+      channelClass.draw(this.masks);
+    }
   };
 
+  /**
+   * @param {Object|ArrayBuffer} data - map data, either as parsed JSON or in
+   *    the binary encoding (see {@link InfraStructuredMap.decodeMapData})
+   */
   InfraStructuredMap.prototype.load = function(data) {
-    this.projectsById.clear();
+    if (data instanceof ArrayBuffer) {
+      data = InfraStructuredMap.decodeMapData(data);
+    }
+    this.loadProjects_(data);
+    this.tiles = [];
+    this.segments = [];
+    this.placemarks = [];
+    this.addFeatures_(data);
+  };
 
-    // Build up a mapping of all projects
-    for (const feature of data.features) {
-      const projects = [];
-      for (const project of feature.projects) {
-        projects.push(this.createProjectRef(project));
+  /**
+   * How long each slice of a load from loadInWorker can run before yielding
+   * to the page, in milliseconds.
+   */
+  const LOAD_SLICE_MILLIS = 8;
+
+  /**
+   * Loads map data in a Web Worker, which fetches and parses it, decodes the
+   * polylines, and works out the channels of each segment and placemark.
+   * This thread then only creates the map objects, a slice at a time between
+   * frames, so that the page stays responsive while a large map loads.
+   * @param {string} url - the URL of JSON or binary (.bin) map data
+   * @param {string=} workerUrl - the URL of infra-structured-map-worker.js,
+   *    which must be next to infra-structured-map.js; by default, it's
+   *    relative to the page
+   * @return {Promise} resolved once every segment and placemark is added
+   */
+  InfraStructuredMap.prototype.loadInWorker = function(url, workerUrl) {
+    const worker = new Worker(workerUrl || 'infra-structured-map-worker.js');
+    return new Promise(function(resolve, reject) {
+      worker.onmessage = function(event) {
+        worker.terminate();
+        if (event.data.error) {
+          reject(new Error(event.data.error));
+          return;
+        }
+        this.addDecodedData_(event.data, resolve);
+      }.bind(this);
+      worker.onerror = function(event) {
+        worker.terminate();
+        reject(new Error(event.message));
+      };
+      worker.postMessage({
+        // The worker would resolve a relative URL against its own.
+        url: new URL(url, root.location.href).href,
+        colorsByTitle: Array.from(this.colorsByTitle),
+      });
+    }.bind(this));
+  };
+
+  /**
+   * Replaces the map's data with data decoded by the worker, adding its
+   * segments and placemarks in slices of LOAD_SLICE_MILLIS.
+   * @param {Object} decoded - see infra-structured-map-worker.js
+   * @param {function()} done - called once everything is added, or other
+   *    data has been loaded instead
+   */
+  InfraStructuredMap.prototype.addDecodedData_ = function(decoded, done) {
+    this.resetProjects_(decoded.levelZooms);
+    this.tiles = [];
+    this.segments = [];
+    this.placemarks = [];
+    const generation = this.loadGeneration;
+
+    const projectRefs = decoded.projects.map(function(project) {
+      return this.createProjectRef(project);
+    }, this);
+    for (const feature of decoded.features) {
+      this.projectsById.set(feature.id, feature.projects.map(function(index) {
+        return projectRefs[index];
+      }));
+    }
+    const channelClasses = decoded.channelClasses.map(function(channels) {
+      return this.addChannelClass_(channels.map(function(channel) {
+        const mapChannel = new MapChannel(channel.color);
+        for (const index of channel.projects) {
+          mapChannel.projectRefs.push(projectRefs[index]);
+        }
+        return mapChannel;
+      }));
+    }, this);
+
+    const segments = decoded.segments;
+    const placemarks = decoded.placemarks;
+    const levels = this.levelZooms.length + 1;
+    const segmentCount = segments.channelClasses.length;
+    const total = segmentCount + placemarks.channelClasses.length;
+    let next = 0;
+    const addSlice = function() {
+      if (this.loadGeneration != generation) {
+        done();
+        return;
+      }
+      const deadline = Date.now() + LOAD_SLICE_MILLIS;
+      for (; next < segmentCount && Date.now() < deadline; ++next) {
+        const lines = [];
+        for (let level = 0; level < levels; ++level) {
+          const offset = next * levels + level;
+          lines.push(segments.coordinates.subarray(
+            segments.offsets[offset], segments.offsets[offset + 1]));
+        }
+        const channelClass = channelClasses[segments.channelClasses[next]];
+        const ms =
+          new MapSegment(this, channelClass.channels, lines, this.level);
+        channelClass.add(ms, this.masks);
+        this.segments.push(ms);
+      }
+      for (; next >= segmentCount && next < total && Date.now() < deadline;
+        ++next) {
+        const index = next - segmentCount;
+        const position = new google.maps.LatLng(
+          placemarks.coordinates[2 * index],
+          placemarks.coordinates[2 * index + 1]);
+        const channelClass =
+          channelClasses[placemarks.channelClasses[index]];
+        const place = new MapPlacemark(this, channelClass.channels, position);
+        channelClass.add(place, this.masks);
+        this.placemarks.push(place);
+      }
+      if (next < total) {
+        requestFrame(addSlice);
+      } else {
+        done();
+      }
+    }.bind(this);
+    addSlice();
+  };
+
+  /**
+   * How long a loaded tile can stay out of view before it's removed.
+   */
+  const TILE_EVICTION_MILLIS = 30000;
+
+  /**
+   * Loads map data written with -tiled.  The index is fetched first, and then
+   * only the tiles that intersect the viewport, as it moves.  Tiles that stay
+   * out of view for a while are removed from the map again.
+   * @param {string} indexUrl - the URL of the tiles' index.json
+   * @return {Promise} resolved once the index is loaded
+   */
+  InfraStructuredMap.prototype.loadTiled = function(indexUrl) {
+    const baseUrl = indexUrl.substring(0, indexUrl.lastIndexOf('/') + 1);
+    return fetch(indexUrl)
+      .then(function(response) {
+        return response.json();
+      })
+      .then(function(index) {
+        this.loadProjects_(index);
+        this.segments = [];
+        this.placemarks = [];
+        this.tiles = [];
+        for (const tile of index.tiles) {
+          const bounds = new google.maps.LatLngBounds(
+            {lat: tile.south, lng: tile.west}, {lat: tile.north, lng: tile.east});
+          this.tiles.push(new MapTile(this, bounds, baseUrl + tile.path));
+        }
+        this.updateTiles_();
+      }.bind(this));
+  };
+
+  /**
+   * Loads the tiles in view, and removes the ones that have been out of view
+   * for long enough.
+   */
+  InfraStructuredMap.prototype.updateTiles_ = function() {
+    const bounds = this.map.getBounds();
+    if (!bounds) {
+      return;
+    }
+    const now = Date.now();
+    for (const tile of this.tiles) {
+      if (bounds.intersects(tile.bounds)) {
+        tile.lastVisible = now;
+        tile.load();
+      } else if (tile.isLoaded() && now - tile.lastVisible > TILE_EVICTION_MILLIS) {
+        tile.unload();
       }
-      this.projectsById.set(feature.id, projects);
     }
+  };
 
-    this.segments = [];
+  /**
+   * Sets up the projects of each feature, and the levels of detail.
+   * @param {Object} data - map data, or the index of tiled map data
+   */
+  InfraStructuredMap.prototype.loadProjects_ = function(data) {
+    this.resetProjects_(data.levelZooms);
+    this.channelClassIds = data.channelClasses || [];
+
+    if (data.strings) {
+      // Interned data (-interned) lists each project once, so its ProjectRef
+      // is built once and shared by every feature that refers to it.
+      const strings = data.strings;
+      const string = function(index) {
+        return index === undefined ? null : strings[index];
+      };
+      const projectRefs = [];
+      for (const project of data.projects) {
+        projectRefs.push(this.createProjectRef({
+          title: project.title.map(string),
+          headingId: string(project.headingId),
+          timeline: string(project.timeline),
+          status: string(project.status),
+          color: string(project.color),
+        }));
+      }
+      for (const feature of data.features) {
+        const id = strings[feature.id];
+        this.featureIds.push(id);
+        this.projectsById.set(id, feature.projects.map(function(index) {
+          return projectRefs[index];
+        }));
+      }
+      this.channelClassIds = this.channelClassIds.map(function(features) {
+        return features.map(function(index) {
+          return this.featureIds[index];
+        }, this);
+      }, this);
+    } else {
+      // Build up a mapping of all projects
+      for (const feature of data.features) {
+        const projects = [];
+        for (const project of feature.projects) {
+          projects.push(this.createProjectRef(project));
+        }
+        this.projectsById.set(feature.id, projects);
+      }
+    }
+  };
+
+  /**
+   * Clears the projects and channel classes of previously loaded data.
+   * @param {Number[]|undefined} levelZooms - the levels of detail of the new
+   *    data
+   */
+  InfraStructuredMap.prototype.resetProjects_ = function(levelZooms) {
+    this.projectsById.clear();
+    this.featureIds = [];
+    this.channelClasses = [];
+    this.channelClassesByKey = new Map();
+    this.channelClassesByIndex = [];
+    this.channelClassIds = [];
+    this.classesByProperty = {mode: [], status: [], timeline: []};
+    this.pendingClasses = new Set();
+    this.loadGeneration++;
+
+    this.levelZooms = levelZooms || [];
+    this.level = this.levelForZoom_(this.map.getZoom());
+  };
+
+  /**
+   * Adds the segments and placemarks of the data to the map.
+   * @param {Object} data - map data, or a tile of it
+   * @return {{segments: MapSegment[], placemarks: MapPlacemark[]}} the new
+   *    features
+   */
+  InfraStructuredMap.prototype.addFeatures_ = function(data) {
+    const segments = [];
     for (const segment of data.segments) {
-      const channels = this.constructChannelsFromFeatureIds(segment.ids);
-      const path = google.maps.geometry.encoding.decodePath(segment.line);
-      const ms = new MapSegment(this, channels, path);
-      ms.updateChannels(this.masks);
-      this.segments.push(ms);
+      const channelClass = this.channelClassOf_(segment);
+      const lines = (segment.levels || []).concat([segment.line]);
+      const ms =
+        new MapSegment(this, channelClass.channels, lines, this.level);
+      channelClass.add(ms, this.masks);
+      segments.push(ms);
     }
 
-    this.placemarks = [];
+    const placemarks = [];
     for (const placemark of data.placemarks) {
       const position = new google.maps.LatLng(placemark.lat, placemark.lng);
-      const channels = this.constructChannelsFromFeatureIds(placemark.ids);
-      const place = new MapPlacemark(this, channels, position);
-      place.updateChannels(this.masks);
-      this.placemarks.push(place);
+      const channelClass = this.channelClassOf_(placemark);
+      const place = new MapPlacemark(this, channelClass.channels, position);
+      channelClass.add(place, this.masks);
+      placemarks.push(place);
+    }
+
+    this.segments = this.segments.concat(segments);
+    this.placemarks = this.placemarks.concat(placemarks);
+    return {segments: segments, placemarks: placemarks};
+  };
+
+  /**
+   * @param {Object} item - a segment or placemark of the data
+   * @return {string[]} the ids of its features, which interned data refers to
+   *    by their index in the features loaded by loadProjects_
+   */
+  InfraStructuredMap.prototype.featureIdsOf_ = function(item) {
+    if (item.ids) {
+      return item.ids;
+    }
+    return item.features.map(function(index) {
+      return this.featureIds[index];
+    }, this);
+  };
+
+  /**
+   * @param {Object} item - a segment or placemark of the data
+   * @return {ChannelClass} the class for the ids of the item, using the
+   *    classes listed in the data if it has them
+   */
+  InfraStructuredMap.prototype.channelClassOf_ = function(item) {
+    const index = item.channelClass;
+    if (index !== undefined && index < this.channelClassIds.length) {
+      if (!this.channelClassesByIndex[index]) {
+        this.channelClassesByIndex[index] = this.addChannelClass_(
+          this.constructChannelsFromFeatureIds(this.channelClassIds[index]));
+      }
+      return this.channelClassesByIndex[index];
+    }
+    const ids = this.featureIdsOf_(item);
+    const key = ids.join('\n');
+    if (!this.channelClassesByKey.has(key)) {
+      this.channelClassesByKey.set(key,
+        this.addChannelClass_(this.constructChannelsFromFeatureIds(ids)));
+    }
+    return this.channelClassesByKey.get(key);
+  };
+
+  /**
+   * Creates a class with the specified channels, and adds it to
+   * classesByProperty for every property bit of its projects.
+   * @param {MapChannel[]} channels
+   * @return {ChannelClass}
+   */
+  InfraStructuredMap.prototype.addChannelClass_ = function(channels) {
+    const channelClass = new ChannelClass(channels);
+    this.channelClasses.push(channelClass);
+    for (const kind of PROPERTY_KINDS) {
+      let bits = 0;
+      for (const channel of channelClass.channels) {
+        for (const projectRef of channel.projectRefs.refs) {
+          bits |= projectRef.propertyMasks[kind].mask;
+        }
+      }
+      const classesByBit = this.classesByProperty[kind];
+      for (let bit = 0; bit < 32; ++bit) {
+        if ((bits >>> bit) & 1) {
+          classesByBit[bit] = classesByBit[bit] || [];
+          classesByBit[bit].push(channelClass);
+        }
+      }
+    }
+    return channelClass;
+  };
+
+  /**
+   * Removes features added by addFeatures_ from the map.
+   * @param {MapFeature[]} features
+   */
+  InfraStructuredMap.prototype.removeFeatures_ = function(features) {
+    const removed = new Set(features);
+    for (const feature of features) {
+      feature.remove();
+      if (feature.channelClass) {
+        feature.channelClass.features.delete(feature);
+      }
+    }
+    this.segments = this.segments.filter(function(segment) {
+      return !removed.has(segment);
+    });
+    this.placemarks = this.placemarks.filter(function(placemark) {
+      return !removed.has(placemark);
+    });
+  };
+
+  /**
+   * @param {Number|undefined} zoom
+   * @return {Number} the index of the level of detail to draw at the zoom
+   */
+  InfraStructuredMap.prototype.levelForZoom_ = function(zoom) {
+    for (let level = 0; level < this.levelZooms.length; ++level) {
+      if (zoom <= this.levelZooms[level]) {
+        return level;
+      }
+    }
+    return this.levelZooms.length;
+  };
+
+  InfraStructuredMap.prototype.updateLevel_ = function() {
+    const level = this.levelForZoom_(this.map.getZoom());
+    if (level == this.level) {
+      return;
+    }
+    this.level = level;
+    for (const segment of this.segments) {
+      segment.setLevel(level);
     }
   };
 
@@ -186,6 +634,160 @@
     this.map.showInfoWindow(content, event.latLng);
   };
 
+  /**
+   * Decodes map data in the binary encoding written by MapDataWriter into the
+   * same structure as the JSON output.
+   * @param {ArrayBuffer} buffer
+   * @return {Object}
+   */
+  InfraStructuredMap.decodeMapData = function(buffer) {
+    // The reader state is kept in local variables rather than on an object,
+    // which is considerably faster for the many small reads.
+    const bytes = new Uint8Array(buffer);
+    const decoder = new TextDecoder('utf-8');
+    let pos = 0;
+
+    /** @return {Number} an unsigned LEB128 varint */
+    function readVarint() {
+      let b = bytes[pos++];
+      if (b < 0x80) {
+        return b;
+      }
+      // Multiply rather than shift, since bitwise operators truncate to 32
+      // bits.
+      let result = b & 0x7f;
+      let scale = 0x80;
+      do {
+        b = bytes[pos++];
+        result += (b & 0x7f) * scale;
+        scale *= 0x80;
+      } while (b >= 0x80);
+      return result;
+    }
+
+    /** @return {Number} a zigzag encoded signed varint */
+    function readSignedVarint() {
+      const value = readVarint();
+      return value % 2 ? -(value + 1) / 2 : value / 2;
+    }
+
+    /**
+     * Decodes a length-prefixed block of concatenated UTF-8 strings with a
+     * single call, then slices it into strings of the specified lengths.
+     * @param {Number[]} lengths - the length of each string, in UTF-16 units
+     * @return {string[]}
+     */
+    function readStringBlock(lengths) {
+      const byteLength = readVarint();
+      const block = decoder.decode(bytes.subarray(pos, pos + byteLength));
+      pos += byteLength;
+      const values = [];
+      let start = 0;
+      for (const length of lengths) {
+        values.push(block.substring(start, start + length));
+        start += length;
+      }
+      return values;
+    }
+
+    /** @return {string[]} a count-prefixed list of string table references */
+    function readStrings() {
+      const count = readVarint();
+      const values = [];
+      for (let i = 0; i < count; ++i) {
+        values.push(strings[readVarint()]);
+      }
+      return values;
+    }
+
+    if (String.fromCharCode(bytes[0], bytes[1], bytes[2], bytes[3]) != 'ISMB') {
+      throw new Error('Not binary map data');
+    }
+    pos = 4;
+    const version = readVarint();
+    if (version < 1 || version > 3) {
+      throw new Error('Unsupported binary map data version: ' + version);
+    }
+    // Version 2 always has levels, and version 3 says what it has.
+    const flags = version == 3 ? readVarint() : version == 2 ? 1 : 0;
+
+    const stringLengths = [];
+    for (let i = readVarint(); i > 0; --i) {
+      stringLengths.push(readVarint());
+    }
+    // Index 0 is reserved for null strings.
+    const strings = [undefined].concat(readStringBlock(stringLengths));
+
+    const features = [];
+    for (let i = readVarint(); i > 0; --i) {
+      const id = strings[readVarint()];
+      const projects = [];
+      for (let j = readVarint(); j > 0; --j) {
+        projects.push({
+          title: readStrings(),
+          headingId: strings[readVarint()],
+          timeline: strings[readVarint()],
+          status: strings[readVarint()],
+          color: strings[readVarint()],
+        });
+      }
+      features.push({id: id, projects: projects});
+    }
+
+    const placemarks = [];
+    let lat = 0;
+    let lng = 0;
+    for (let i = readVarint(); i > 0; --i) {
+      lat += readSignedVarint();
+      lng += readSignedVarint();
+      placemarks.push({lat: lat / 1e6, lng: lng / 1e6, ids: readStrings()});
+    }
+
+    const segments = [];
+    const lineLengths = [];
+    for (let i = readVarint(); i > 0; --i) {
+      lineLengths.push(readVarint());
+      segments.push({line: null, ids: readStrings()});
+    }
+    const lines = readStringBlock(lineLengths);
+    for (let i = 0; i < segments.length; ++i) {
+      segments[i].line = lines[i];
+    }
+
+    const data = {features: features, placemarks: placemarks, segments: segments};
+    if (flags & 1) {
+      const levelZooms = [];
+      for (let i = readVarint(); i > 0; --i) {
+        levelZooms.push(readVarint());
+      }
+      const levelLengths = [];
+      for (let i = 0; i < segments.length * levelZooms.length; ++i) {
+        levelLengths.push(readVarint());
+      }
+      const levelLines = readStringBlock(levelLengths);
+      for (let i = 0; i < segments.length; ++i) {
+        segments[i].levels = levelLines.slice(
+          i * levelZooms.length, (i + 1) * levelZooms.length);
+      }
+      data.levelZooms = levelZooms;
+    }
+    if (flags & 2) {
+      data.channelClasses = [];
+      for (let i = readVarint(); i > 0; --i) {
+        data.channelClasses.push(readStrings());
+      }
+    }
+    if (flags & 4) {
+      for (const placemark of placemarks) {
+        placemark.channelClass = readVarint();
+      }
+      for (const segment of segments) {
+        segment.channelClass = readVarint();
+      }
+    }
+    return data;
+  };
+
   root.InfraStructuredMap = InfraStructuredMap;
 
   /**
@@ -205,23 +807,36 @@
 
   MapFeature.prototype.updateChannelMask = function(propertyMasks) {
     this.masks = propertyMasks;
-    const newMask = [];
+    return this.setChannelMask_(
+      computeChannelMask(this.channels, propertyMasks));
+  };
+
+  /**
+   * @param {Boolean[]} mask - whether each channel is active
+   * @return {Boolean} true if the mask changed, and the feature needs to be
+   *    drawn again
+   */
+  MapFeature.prototype.setChannelMask_ = function(mask) {
+    if (channelMasksAreEqual(this.channelMask, mask)) {
+      return false;
+    }
     let activeChannelCount = 0;
-    for (const channel of this.channels) {
-      const active = channel.projectRefs.isActive(propertyMasks);
-      newMask.push(active);
+    for (const active of mask) {
       if (active) {
         activeChannelCount++;
       }
     }
-    if (channelMasksAreEqual(this.channelMask, newMask)) {
-      return false;
-    }
-    this.channelMask = newMask;
+    this.channelMask = mask;
     this.activeChannelCount = activeChannelCount;
     return true;
   };
 
+  MapFeature.prototype.updateChannels = function(propertyMasks) {
+    if (this.updateChannelMask(propertyMasks)) {
+      this.draw_();
+    }
+  };
+
   /**
    * @return {Array<ProjectRef>}
    */
@@ -245,6 +860,19 @@
     this.infraMap.handleFeatureClicked_(event, this);
   };
 
+  /**
+   * @param {MapChannel[]} channels
+   * @param {PropertyMasks} propertyMasks
+   * @return {Boolean[]} whether each channel is active
+   */
+  function computeChannelMask(channels, propertyMasks) {
+    const mask = [];
+    for (const channel of channels) {
+      mask.push(channel.projectRefs.isActive(propertyMasks));
+    }
+    return mask;
+  };
+
   /**
    * @param {Boolean[]} lhs
    * @param {Boolean[]} rhs
@@ -267,13 +895,21 @@
    * @constructor
    * @param {InfraStructuredMap} infraMap
    * @param {MapChannel[]} channels
-   * @param {google.maps.LatLng[]} path
+   * @param {Array<string|Float64Array>} lines - the encoded polyline, or the
+   *    decoded interleaved lat-lng coordinates, for each level of detail,
+   *    coarsest first and ending with full resolution
+   * @param {Number} level - the index of the line to draw
    */
-  function MapSegment(infraMap, channels, path) {
+  function MapSegment(infraMap, channels, lines, level) {
     MapFeature.call(this, infraMap, channels);
 
+    // Each level is only decoded the first time it's drawn.
+    this.lines = lines;
+    this.paths = [];
+    this.level = Math.min(level, lines.length - 1);
+
     this.options = {
-      path: path,
+      path: this.getPath_(this.level),
       strokeOpacity: 0,
       icons: [],
       map: infraMap.map,
@@ -286,10 +922,50 @@
 
   MapSegment.prototype = new MapFeature();
 
-  MapSegment.prototype.updateChannels = function(propertyMasks) {
-    if (!this.updateChannelMask(propertyMasks)) {
+  /**
+   * @param {Number} level
+   * @return {google.maps.LatLng[]} the decoded path for the level of detail
+   */
+  MapSegment.prototype.getPath_ = function(level) {
+    if (!this.paths[level]) {
+      const line = this.lines[level];
+      this.paths[level] = typeof line == 'string'
+        ? google.maps.geometry.encoding.decodePath(line) : toLatLngs(line);
+    }
+    return this.paths[level];
+  };
+
+  /**
+   * @param {Float64Array} coordinates - interleaved lat-lng coordinates
+   * @return {google.maps.LatLng[]}
+   */
+  function toLatLngs(coordinates) {
+    const path = [];
+    for (let i = 0; i < coordinates.length; i += 2) {
+      path.push(new google.maps.LatLng(coordinates[i], coordinates[i + 1]));
+    }
+    return path;
+  };
+
+  /**
+   * @param {Number} level - the index of the level of detail to draw, which
+   *    is clamped to full resolution
+   */
+  MapSegment.prototype.setLevel = function(level) {
+    level = Math.min(level, this.lines.length - 1);
+    if (level == this.level) {
       return;
     }
+    this.level = level;
+    this.options.path = this.getPath_(level);
+    this.polyline.setPath(this.options.path);
+  };
+
+  MapSegment.prototype.remove = function() {
+    this.polyline.setMap(null);
+  };
+
+  MapSegment.prototype.draw_ = function() {
     let offset = -(this.activeChannelCount - 1) / 2;
     const icons = [];
     for (let index = 0; index < this.channels.length; ++index) {
@@ -334,16 +1010,16 @@
     return `m -${r},0 a ${r},${r} 0 1,0 ${2*r},0 a ${r},${r} 0 1,0 -${2*r},0`;
   };
 
-  MapPlacemark.prototype.updateChannels = function(propertyMasks) {
-    if (!this.updateChannelMask(propertyMasks)) {
-      return;
-    }
-
-    // Clear any existing markers
+  MapPlacemark.prototype.remove = function() {
     for (const marker of this.markers) {
       marker.setMap(null);
     }
     this.markers = [];
+  };
+
+  MapPlacemark.prototype.draw_ = function() {
+    // Clear any existing markers
+    this.remove();
 
     let offset = 0;
     for (let index = 0; index < this.channels.length; ++index) {
@@ -375,6 +1051,117 @@
     }
   };
 
+  /**
+   * A tile of map data loaded with {@link InfraStructuredMap#loadTiled}.
+   * @constructor
+   * @param {InfraStructuredMap} infraMap
+   * @param {google.maps.LatLngBounds} bounds - the bounds of the tile's
+   *    segments and placemarks
+   * @param {string} url - the tile's JSON or binary data
+   */
+  function MapTile(infraMap, bounds, url) {
+    this.infraMap = infraMap;
+    this.bounds = bounds;
+    this.url = url;
+    this.lastVisible = 0;
+    this.features = null;
+    this.loading = false;
+    return this;
+  };
+
+  MapTile.prototype.isLoaded = function() {
+    return this.features != null;
+  };
+
+  MapTile.prototype.load = function() {
+    if (this.features || this.loading) {
+      return;
+    }
+    this.loading = true;
+    const binary = /\.bin$/.test(this.url);
+    fetch(this.url)
+      .then(function(response) {
+        return binary ? response.arrayBuffer() : response.json();
+      })
+      .then(function(data) {
+        if (binary) {
+          data = InfraStructuredMap.decodeMapData(data);
+        }
+        this.loading = false;
+        // Ignore tiles that arrive after other data has been loaded.
+        if (this.infraMap.tiles.indexOf(this) < 0) {
+          return;
+        }
+        const added = this.infraMap.addFeatures_(data);
+        this.features = added.segments.concat(added.placemarks);
+      }.bind(this), function(error) {
+        // Retried the next time the tile comes into view.
+        this.loading = false;
+        console.error('Failed to load ' + this.url, error);
+      }.bind(this));
+  };
+
+  MapTile.prototype.unload = function() {
+    this.infraMap.removeFeatures_(this.features);
+    this.features = null;
+  };
+
+  /**
+   * The segments and placemarks with the same ids, which therefore have the
+   * same channels, and the same channels active for any filter.
+   * @constructor
+   * @param {MapChannel[]} channels
+   */
+  function ChannelClass(channels) {
+    this.channels = channels;
+    this.features = new Set();
+    this.mask = null;
+    return this;
+  };
+
+  /**
+   * @param {PropertyMasks} propertyMasks
+   * @return {Boolean} true if the active channels changed
+   */
+  ChannelClass.prototype.updateMask = function(propertyMasks) {
+    const mask = computeChannelMask(this.channels, propertyMasks);
+    if (this.mask && channelMasksAreEqual(this.mask, mask)) {
+      return false;
+    }
+    this.mask = mask;
+    return true;
+  };
+
+  /**
+   * Adds a feature with the class's channels, and draws it.
+   * @param {MapFeature} feature
+   * @param {PropertyMasks} propertyMasks
+   */
+  ChannelClass.prototype.add = function(feature, propertyMasks) {
+    if (!this.mask) {
+      this.updateMask(propertyMasks);
+    }
+    this.features.add(feature);
+    feature.channelClass = this;
+    feature.masks = propertyMasks;
+    if (feature.setChannelMask_(this.mask)) {
+      feature.draw_();
+    }
+  };
+
+  /**
+   * Draws the features whose channels changed with the class's mask.
+   * @param {PropertyMasks} propertyMasks
+   */
+  ChannelClass.prototype.draw = function(propertyMasks) {
+    for (const feature of this.features) {
+      feature.masks = propertyMasks;
+      if (feature.setChannelMask_(this.mask)) {
+        feature.draw_();
+      }
+    }
+  };
+
   /**
    * A channel is a collection of {@link ProjectRefs} that all have the same
    * color.  They will be drawn together when active.
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the heap retained by each {@link AlignmentGraph.Backend} after
+ * aligning synthetic polylines, and the time to build it.  Run with:
+ *
+ * <pre>
+ * AlignmentGraphBenchmark [polylines [vertices]]
+ * </pre>
+ *
+ * Half of the polylines follow part of an earlier one with a few meters of
+ * jitter, as routes that share a corridor do, and the rest wander off on
+ * their own.  Groups of them are spread over a 30 by 30 grid of 6 km
+ * squares so that the graph covers a region rather than one city block.
+ */
+public class AlignmentGraphBenchmark {
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+    int vertices = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+    List<List<Coordinate>> lines = generate(7, count, vertices);
+    List<Placemark> placemarks = new ArrayList<>();
+    for (int i = 0; i < lines.size(); ++i) {
+      Placemark placemark = new Placemark();
+      placemark.setName("p" + i);
+      placemarks.add(placemark);
+    }
+
+    for (AlignmentGraph.Backend backend : AlignmentGraph.Backend.values()) {
+      long before = usedHeap();
+      long start = System.nanoTime();
+      AlignmentGraph graph = backend.create();
+      int failed = 0;
+      for (int i = 0; i < lines.size(); ++i) {
+        try {
+          graph.addPolyline(lines.get(i), placemarks.get(i));
+        } catch (IllegalStateException | StackOverflowError ex) {
+          // Random lines occasionally fold back onto themselves, and a few
+          // nearly parallel ones keep splitting each other's edges.
+          ++failed;
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      long retained = usedHeap() - before;
+      System.out.printf("%s: %.1f MB retained, built in %d ms, %d polylines out, %d skipped%n",
+          backend, retained / 1e6, elapsed / 1000000, graph.go().size(), failed);
+    }
+  }
+
+  private static List<List<Coordinate>> generate(long seed, int count, int vertices) {
+    Random random = new Random(seed);
+    List<List<Coordinate>> lines = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      List<Coordinate> line = new ArrayList<>();
+      if (!lines.isEmpty() && random.nextBoolean()) {
+        List<Coordinate> base = lines.get(random.nextInt(lines.size()));
+        int start = random.nextInt(base.size());
+        int end = Math.min(base.size(), start + 2 + random.nextInt(vertices));
+        for (int j = start; j < end; ++j) {
+          line.add(new Coordinate(base.get(j).x + random.nextGaussian() * 3,
+              base.get(j).y + random.nextGaussian() * 3));
+        }
+        Coordinate last = line.get(line.size() - 1);
+        double x = last.x;
+        double y = last.y;
+        for (int j = random.nextInt(5); j > 0; --j) {
+          x += random.nextGaussian() * 100;
+          y += random.nextGaussian() * 100;
+          line.add(new Coordinate(x, y));
+        }
+      } else {
+        double x = random.nextDouble() * 5000 + random.nextInt(30) * 6000;
+        double y = random.nextDouble() * 5000 + random.nextInt(30) * 6000;
+        for (int j = 0; j < vertices; ++j) {
+          line.add(new Coordinate(x, y));
+          x += random.nextGaussian() * 150;
+          y += random.nextGaussian() * 150;
+        }
+      }
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; ++i) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.gson.Gson;
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapFeature;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class BatchExtractorMainTest extends TestCase {
+
+  private static final FileTime OLD = FileTime.fromMillis(0);
+
+  private Path _dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    _dir = Files.createTempDirectory("batch");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(_dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  public void testRunsEachJobAndSkipsUnchangedOnes() throws Exception {
+    write("seattle.kml", kml(placemark("Link", "-122.33,47.60 -122.30,47.65 -122.31,47.70")
+        + placemark("Ferry", "-122.34,47.60 -122.50,47.57")));
+    write("seattle.md", "# Seattle\n\n## Light rail\n\n" + comment("Link")
+        + "\n## Ferries\n\n" + comment("Ferry"));
+    write("maps/tacoma.kml", kml(placemark("Streetcar", "-122.44,47.25 -122.43,47.26")));
+    write("maps/tacoma.md", "# Tacoma\n\n" + comment("Streetcar"));
+    write("manifest.json", "["
+        + "{\"kml\": \"seattle.kml\", \"markdown\": \"seattle.md\", \"output\": \"seattle.json\","
+        + " \"snapshot\": \"seattle.snapshot\"},"
+        + "{\"kml\": \"maps/tacoma.kml\", \"markdown\": \"maps\", \"output\": \"tacoma.bin\","
+        + " \"binary\": true}"
+        + "]");
+    String[] args = {"-manifest", _dir.resolve("manifest.json").toString(),
+        "-cache", _dir.resolve("cache").toString(), "-threads", "2"};
+
+    BatchExtractorMain.main(args);
+    MapData seattle = new Gson().fromJson(read("seattle.json"), MapData.class);
+    assertEquals(Arrays.asList("Link", "Ferry"), ids(seattle));
+    assertEquals(Arrays.asList("Seattle", "Ferries"),
+        seattle.features.get(1).projects.get(0).title);
+    assertEquals(2, seattle.segments.size());
+    assertTrue(Files.exists(_dir.resolve("seattle.snapshot")));
+    assertTrue(Files.size(_dir.resolve("tacoma.bin")) > 0);
+
+    // Only the job whose inputs changed is run again.
+    Files.setLastModifiedTime(_dir.resolve("seattle.json"), OLD);
+    Files.setLastModifiedTime(_dir.resolve("tacoma.bin"), OLD);
+    write("maps/tacoma.md", "# Tacoma\n\n## Streetcar\n\n" + comment("Streetcar"));
+    BatchExtractorMain.main(args);
+    assertEquals(OLD, Files.getLastModifiedTime(_dir.resolve("seattle.json")));
+    assertFalse(OLD.equals(Files.getLastModifiedTime(_dir.resolve("tacoma.bin"))));
+  }
+
+  public void testFailedJobDoesNotStopTheOthers() throws Exception {
+    write("a.kml", kml(placemark("A", "1,1 2,2")));
+    write("a.md", "# A\n\n" + comment("A"));
+    write("b.kml", kml(placemark("Unknown", "1,1 2,2")));
+    write("manifest.json", "["
+        + "{\"kml\": \"b.kml\", \"markdown\": \"a.md\", \"output\": \"b.json\"},"
+        + "{\"kml\": \"a.kml\", \"markdown\": \"a.md\", \"output\": \"a.json\"}"
+        + "]");
+    try {
+      BatchExtractorMain.main(new String[] {"-manifest", _dir.resolve("manifest.json").toString()});
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("1 of 2 maps failed", expected.getMessage());
+    }
+    assertTrue(Files.exists(_dir.resolve("a.json")));
+    assertFalse(Files.exists(_dir.resolve("b.json")));
+  }
+
+  private void write(String name, String content) throws IOException {
+    Path path = _dir.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String read(String name) throws IOException {
+    return new String(Files.readAllBytes(_dir.resolve(name)), StandardCharsets.UTF_8);
+  }
+
+  private static String kml(String placemarks) {
+    return "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>" + placemarks
+        + "</Document></kml>";
+  }
+
+  private static String placemark(String name, String coordinates) {
+    return "<Placemark><name>" + name + "</name><LineString><coordinates>" + coordinates
+        + "</coordinates></LineString></Placemark>";
+  }
+
+  private static String comment(String id) {
+    return "<!-- id: " + id + ", status: planned -->\n";
+  }
+
+  private static List<String> ids(MapData data) {
+    List<String> ids = new ArrayList<>();
+    for (MapFeature feature : data.features) {
+      ids.add(feature.id);
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class IntSpatialGridTest extends TestCase {
+
+  public void testSegmentIsReturnedOnceInInsertionOrder() {
+    IntSpatialGrid grid = new IntSpatialGrid(10.0);
+    grid.insert(5, 5, 7);
+    grid.insert(0, 0, 95, 3, 2);
+    grid.insert(45, 5, 9);
+    assertEquals(Arrays.asList(7, 2, 9), query(grid, 0, 0, 100, 0, 5.0));
+    assertEquals(Arrays.asList(2, 9), query(grid, 45, 5, 45, 5, 1.0));
+  }
+
+  public void testReinsertedItemMovesToEnd() {
+    IntSpatialGrid grid = new IntSpatialGrid(10.0);
+    grid.insert(5, 5, 1);
+    grid.insert(15, 5, 2);
+    grid.remove(5, 5, 5, 5, 1);
+    grid.insert(5, 5, 1);
+    assertEquals(Arrays.asList(2, 1), query(grid, 10, 5, 10, 5, 10.0));
+  }
+
+  public void testMatchesSpatialGrid() {
+    Random random = new Random(3);
+    IntSpatialGrid grid = new IntSpatialGrid(15.0);
+    SpatialGrid<Integer> expected = new SpatialGrid<>(15.0);
+    List<Coordinate[]> segments = new ArrayList<>();
+    for (int i = 0; i < 2000; ++i) {
+      if (!segments.isEmpty() && random.nextInt(4) == 0) {
+        // Remove an item, as splitting an edge does, then put it back.
+        int item = random.nextInt(segments.size());
+        Coordinate[] s = segments.get(item);
+        grid.remove(s[0].x, s[0].y, s[1].x, s[1].y, item);
+        expected.remove(s[0], s[1], item);
+        grid.insert(s[0].x, s[0].y, s[1].x, s[1].y, item);
+        expected.insert(s[0], s[1], item);
+        continue;
+      }
+      Coordinate a = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      Coordinate b = random.nextBoolean() ? a : new Coordinate(
+          a.x + random.nextGaussian() * 100, a.y + random.nextGaussian() * 100);
+      grid.insert(a.x, a.y, b.x, b.y, segments.size());
+      expected.insert(a, b, segments.size());
+      segments.add(new Coordinate[] {a, b});
+    }
+    for (int i = 0; i < 500; ++i) {
+      Coordinate a = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      Coordinate b = new Coordinate(a.x + random.nextGaussian() * 50,
+          a.y + random.nextGaussian() * 50);
+      assertEquals(new ArrayList<>(expected.query(a, b, 15.0)),
+          query(grid, a.x, a.y, b.x, b.y, 15.0));
+    }
+  }
+
+  private static List<Integer> query(IntSpatialGrid grid, double ax, double ay, double bx,
+      double by, double radius) {
+    List<Integer> results = new ArrayList<>();
+    for (int i = 0, count = grid.query(ax, ay, bx, by, radius); i < count; ++i) {
+      results.add(grid.result(i));
+    }
+    return results;
+  }
+}
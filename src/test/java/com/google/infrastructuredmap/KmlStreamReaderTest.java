@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.KmlStreamReader.GeometryType;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.CoordinatesConverter;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class KmlStreamReaderTest extends TestCase {
+
+  public void testReadsCoordinatesAsJakDoes() throws Exception {
+    String[] inputs = {
+        "1,2",
+        " 1,2 3,4 ",
+        "1,2,5 3,4,6",
+        "1, 2 3,\t4",
+        "-122.3,47.6,0\n-122.4,47.7,0\n",
+        "1.5e1,-2E-3",
+    };
+    for (String input : inputs) {
+      List<Double> expected = new ArrayList<>();
+      for (Coordinate c : new CoordinatesConverter().unmarshal(input)) {
+        expected.add(c.getLongitude());
+        expected.add(c.getLatitude());
+      }
+      assertEquals(input, expected, readLineString(input));
+    }
+  }
+
+  public void testReadsWhitespaceBeforeComma() throws Exception {
+    assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0), readLineString("1 ,2 3 , 4"));
+  }
+
+  public void testReadsTrailingCommaAsEndOfTuple() throws Exception {
+    assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0), readLineString("1,2,\n3,4,\n"));
+    assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0, 5.0, 6.0),
+        readLineString("1,2,\n3,4,7 5,6"));
+  }
+
+  public void testReadsAltitudeAfterWhitespace() throws Exception {
+    assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0), readLineString("1,2, 5 3,4"));
+    assertEquals(Arrays.asList(1.0, 2.0), readLineString("1,2, 5"));
+  }
+
+  public void testSkipsPlacemarkWithMalformedCoordinatesAndReadsTheRest() throws Exception {
+    String kml = "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>"
+        + placemark("a", "1,2 3,4")
+        + placemark("b", "1 2")
+        + placemark("c", ",2")
+        + placemark("d", "1,x")
+        + placemark("e", "1,2 <b>3,4</b> 5,6")
+        + placemark("f", "5,6 7,8")
+        + "</Document></kml>";
+    final List<String> names = new ArrayList<>();
+    read(kml, new KmlStreamReader.Handler() {
+      @Override
+      public void placemark(String name, GeometryType type, double[] lngLats, int count) {
+        names.add(name);
+      }
+    });
+    assertEquals(Arrays.asList("a", "f"), names);
+  }
+
+  public void testParseDoubleMatchesJava() {
+    String[] values = {"0", "-0.0", "47.6062095", "-122.3320708", "1e-7", "123456789012345678",
+        "0.1234567890123456789", "+3.", ".5", "1E22", "1e23"};
+    for (String value : values) {
+      assertEquals(value, Double.parseDouble(value),
+          KmlStreamReader.parseDouble(value.toCharArray(), value.length()));
+    }
+  }
+
+  private static String placemark(String name, String coordinates) {
+    return "<Placemark><name>" + name + "</name><LineString><coordinates>" + coordinates
+        + "</coordinates></LineString></Placemark>";
+  }
+
+  private static List<Double> readLineString(String coordinates) throws Exception {
+    final List<Double> lngLats = new ArrayList<>();
+    read("<kml xmlns=\"http://www.opengis.net/kml/2.2\">" + placemark("p", coordinates) + "</kml>",
+        new KmlStreamReader.Handler() {
+          @Override
+          public void placemark(String name, GeometryType type, double[] values, int count) {
+            for (int i = 0; i < 2 * count; ++i) {
+              lngLats.add(values[i]);
+            }
+          }
+        });
+    return lngLats;
+  }
+
+  private static void read(String kml, KmlStreamReader.Handler handler) throws Exception {
+    new KmlStreamReader(handler).read(
+        new ByteArrayInputStream(kml.getBytes(StandardCharsets.UTF_8)));
+  }
+}
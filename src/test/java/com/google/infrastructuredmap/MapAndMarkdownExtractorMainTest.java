@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapFeature;
+import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.Watchable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import junit.framework.TestCase;
+
+public class MapAndMarkdownExtractorMainTest extends TestCase {
+
+  private static final Path DIR = Paths.get("/maps").toAbsolutePath();
+  private static final Path KML = DIR.resolve("map.kml");
+  private static final Path PLAN = DIR.resolve("plan.md");
+  private static final Path NOTES = DIR.resolve("notes.md");
+
+  private FakeStages _stages;
+  private MapAndMarkdownExtractorMain.WatchState _state;
+
+  @Override
+  protected void setUp() {
+    _stages = new FakeStages();
+    _stages.markdownFiles = Arrays.asList(PLAN);
+    _state = new MapAndMarkdownExtractorMain.WatchState(_stages, KML, Arrays.asList(PLAN),
+        _stages.newMapData(), _stages.newReferences());
+  }
+
+  public void testMarkdownChangeReusesMapData() throws Exception {
+    assertTrue(_state.update(changed(PLAN)));
+    assertEquals(0, _stages.kmlRuns);
+    assertEquals(1, _stages.markdownRuns);
+    assertEquals(1, _stages.writes);
+  }
+
+  public void testKmlChangeReusesReferences() throws Exception {
+    assertTrue(_state.update(changed(KML)));
+    assertEquals(1, _stages.kmlRuns);
+    assertEquals(0, _stages.markdownRuns);
+    assertEquals(1, _stages.writes);
+  }
+
+  public void testUnrelatedChangeRunsNothing() throws Exception {
+    assertFalse(_state.update(changed(DIR.resolve("map.kml.swp"))));
+    assertEquals(0, _stages.kmlRuns);
+    assertEquals(0, _stages.markdownRuns);
+    assertEquals(0, _stages.writes);
+  }
+
+  public void testLostEventsRerunEverythingInTheDirectory() throws Exception {
+    assertTrue(_state.update(changed(DIR)));
+    assertEquals(1, _stages.kmlRuns);
+    assertEquals(1, _stages.markdownRuns);
+    assertEquals(1, _stages.writes);
+  }
+
+  public void testNewMarkdownFileRerunsReferences() throws Exception {
+    _stages.markdownFiles = Arrays.asList(NOTES, PLAN);
+    assertTrue(_state.update(changed(DIR.resolve("other.txt"))));
+    assertEquals(Arrays.asList(NOTES, PLAN), _stages.lastMarkdownFiles);
+    assertEquals(Arrays.asList(NOTES, PLAN), _state.getMarkdownFiles());
+    assertEquals(0, _stages.kmlRuns);
+  }
+
+  public void testFailedStageKeepsOutputAndIsRetried() throws Exception {
+    _stages.kmlFails = true;
+    try {
+      _state.update(changed(KML));
+      fail();
+    } catch (XMLStreamException expected) {
+    }
+    assertEquals(0, _stages.writes);
+
+    // The next change, even to the other input, retries the failed stage.
+    _stages.kmlFails = false;
+    assertTrue(_state.update(changed(PLAN)));
+    assertEquals(2, _stages.kmlRuns);
+    assertEquals(1, _stages.markdownRuns);
+    assertEquals(1, _stages.writes);
+
+    assertFalse(_state.update(Collections.<Path>emptySet()));
+    assertEquals(1, _stages.writes);
+  }
+
+  public void testUnknownReferenceKeepsOutput() throws Exception {
+    _stages.missingReference = true;
+    try {
+      _state.update(changed(PLAN));
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(0, _stages.writes);
+
+    _stages.missingReference = false;
+    assertTrue(_state.update(changed(PLAN)));
+    assertEquals(1, _stages.writes);
+  }
+
+  public void testBurstOfEventsIsOneChange() throws Exception {
+    FakeWatchService watcher = new FakeWatchService();
+    watcher.keys.add(new FakeKey(DIR, "map.kml", "map.kml"));
+    watcher.keys.add(new FakeKey(DIR, "plan.md"));
+    watcher.keys.add(new FakeKey(DIR, "map.kml"));
+    assertEquals(new HashSet<>(Arrays.asList(KML, PLAN)),
+        MapAndMarkdownExtractorMain.awaitChanges(watcher, 300));
+    // The first key is taken, and then the service is polled until it has
+    // been quiet for the debounce interval.
+    assertEquals(Arrays.asList(300L, 300L, 300L), watcher.polls);
+
+    watcher.polls.clear();
+    watcher.keys.add(new FakeKey(DIR, "notes.md"));
+    assertEquals(Collections.singleton(NOTES),
+        MapAndMarkdownExtractorMain.awaitChanges(watcher, 300));
+    assertEquals(Arrays.asList(300L), watcher.polls);
+  }
+
+  private static Set<Path> changed(Path... paths) {
+    return new HashSet<>(Arrays.asList(paths));
+  }
+
+  /**
+   * Stages that count their runs, and fail when told to.
+   */
+  private static class FakeStages implements MapAndMarkdownExtractorMain.Stages {
+    List<Path> markdownFiles;
+    List<Path> lastMarkdownFiles;
+    boolean kmlFails;
+    boolean missingReference;
+    int kmlRuns;
+    int markdownRuns;
+    int writes;
+
+    @Override
+    public MapData extractMapData() throws XMLStreamException {
+      kmlRuns++;
+      if (kmlFails) {
+        throw new XMLStreamException("Malformed KML");
+      }
+      return newMapData();
+    }
+
+    @Override
+    public List<Path> findMarkdownFiles() {
+      return markdownFiles;
+    }
+
+    @Override
+    public Map<String, List<ProjectReference>> extractReferences(List<Path> files) {
+      markdownRuns++;
+      lastMarkdownFiles = files;
+      return missingReference ? new HashMap<String, List<ProjectReference>>() : newReferences();
+    }
+
+    @Override
+    public void writeOutput(MapData data) throws IOException {
+      writes++;
+    }
+
+    MapData newMapData() {
+      MapData data = new MapData();
+      MapFeature feature = new MapFeature();
+      feature.id = "Line";
+      data.features.add(feature);
+      return data;
+    }
+
+    Map<String, List<ProjectReference>> newReferences() {
+      Map<String, List<ProjectReference>> references = new HashMap<>();
+      references.put("Line", Collections.singletonList(new ProjectReference()));
+      return references;
+    }
+  }
+
+  /**
+   * A watch service with queued keys, which are all ready at once.
+   */
+  private static class FakeWatchService implements WatchService {
+    final Deque<WatchKey> keys = new ArrayDeque<>();
+    final List<Long> polls = new ArrayList<>();
+
+    @Override
+    public WatchKey take() {
+      assertFalse(keys.isEmpty());
+      return keys.remove();
+    }
+
+    @Override
+    public WatchKey poll() {
+      return keys.poll();
+    }
+
+    @Override
+    public WatchKey poll(long timeout, TimeUnit unit) {
+      polls.add(unit.toMillis(timeout));
+      return keys.poll();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class FakeKey implements WatchKey {
+    private final Path _dir;
+    private final List<WatchEvent<?>> _events = new ArrayList<>();
+
+    FakeKey(Path dir, String... names) {
+      _dir = dir;
+      for (final String name : names) {
+        _events.add(new WatchEvent<Path>() {
+          @Override
+          public Kind<Path> kind() {
+            return StandardWatchEventKinds.ENTRY_MODIFY;
+          }
+
+          @Override
+          public int count() {
+            return 1;
+          }
+
+          @Override
+          public Path context() {
+            return Paths.get(name);
+          }
+        });
+      }
+    }
+
+    @Override
+    public boolean isValid() {
+      return true;
+    }
+
+    @Override
+    public List<WatchEvent<?>> pollEvents() {
+      return _events;
+    }
+
+    @Override
+    public boolean reset() {
+      return true;
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+    @Override
+    public Watchable watchable() {
+      return _dir;
+    }
+  }
+}
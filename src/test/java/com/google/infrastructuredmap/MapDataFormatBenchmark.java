@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapFeature;
+import com.google.infrastructuredmap.model.MapPlacemark;
+import com.google.infrastructuredmap.model.MapSegment;
+import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the same synthetic map data as JSON and in the binary format, and
+ * prints the size of each, plain and gzipped.  Run with:
+ *
+ * <pre>
+ * MapDataFormatBenchmark directory [features]
+ * </pre>
+ *
+ * The data has four segments and one placemark per feature, scattered over a
+ * city-sized area, and each feature has one to three projects.  The files are
+ * left in the directory as map-data.json and map-data.bin for
+ * src/test/js/decode-benchmark.js, which times decoding them.
+ */
+public class MapDataFormatBenchmark {
+
+  private static final String[] MODES = {"Transit", "Pedestrian / Bike", "Freight", "Other"};
+  private static final String[] STATUSES = {"planned", "completed", "eval"};
+  private static final String[] TIMELINES = {"now", "soon", "someday", null};
+
+  public static void main(String[] args) throws IOException {
+    Path dir = Paths.get(args[0]);
+    int features = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    MapData data = generate(3, features);
+    Files.createDirectories(dir);
+    Path json = dir.resolve("map-data.json");
+    Path binary = dir.resolve("map-data.bin");
+    MapDataWriter.writeJson(data, json, null, false);
+    MapDataWriter.writeBinary(data, binary);
+    report(json);
+    report(binary);
+  }
+
+  private static void report(Path path) throws IOException {
+    byte[] content = Files.readAllBytes(path);
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(content);
+    }
+    System.out.printf("%s: %.2f MB, %.2f MB gzipped%n", path.getFileName(),
+        content.length / 1e6, gzipped.size() / 1e6);
+  }
+
+  private static MapData generate(long seed, int count) {
+    Random random = new Random(seed);
+    MapData data = new MapData();
+    for (int i = 0; i < count; ++i) {
+      MapFeature feature = new MapFeature();
+      feature.id = "Project-" + i;
+      feature.projects = new ArrayList<>();
+      for (int j = random.nextInt(3); j >= 0; --j) {
+        int project = random.nextInt(count);
+        ProjectReference reference = new ProjectReference();
+        reference.title = Arrays.asList(MODES[random.nextInt(MODES.length)],
+            "Corridor improvement " + project);
+        reference.headingId = "corridor-improvement-" + project;
+        reference.status = STATUSES[random.nextInt(STATUSES.length)];
+        reference.timeline = TIMELINES[random.nextInt(TIMELINES.length)];
+        feature.projects.add(reference);
+      }
+      data.features.add(feature);
+    }
+    for (int i = 0; i < count * 4; ++i) {
+      double[] latLngs = new double[2 * (2 + random.nextInt(30))];
+      double lat = 47.5 + random.nextDouble() * 0.3;
+      double lng = -122.4 + random.nextDouble() * 0.3;
+      for (int j = 0; j < latLngs.length; j += 2) {
+        lat += (random.nextDouble() - 0.5) * 0.002;
+        lng += (random.nextDouble() - 0.5) * 0.002;
+        latLngs[j] = lat;
+        latLngs[j + 1] = lng;
+      }
+      MapSegment segment = new MapSegment();
+      segment.line = PolylineEncoder.encode(latLngs);
+      segment.ids = new ArrayList<>();
+      for (int j = random.nextInt(3); j >= 0; --j) {
+        segment.ids.add("Project-" + random.nextInt(count));
+      }
+      data.segments.add(segment);
+    }
+    for (int i = 0; i < count; ++i) {
+      MapPlacemark placemark = new MapPlacemark();
+      placemark.lat = 47.5 + random.nextDouble() * 0.3;
+      placemark.lng = -122.4 + random.nextDouble() * 0.3;
+      placemark.ids = Arrays.asList("Project-" + random.nextInt(count));
+      data.placemarks.add(placemark);
+    }
+    return data;
+  }
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.gson.Gson;
+import com.google.infrastructuredmap.model.InternedMapData;
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapFeature;
+import com.google.infrastructuredmap.model.MapPlacemark;
+import com.google.infrastructuredmap.model.MapSegment;
+import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import junit.framework.TestCase;
+
+public class MapDataWriterTest extends TestCase {
+
+  private Path _dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    _dir = Files.createTempDirectory("writer");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(_dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(_dir);
+  }
+
+  public void testBinaryVersion1RoundTrip() throws IOException {
+    MapData data = createData(false, false);
+    assertBinaryRoundTrip(data, 1);
+  }
+
+  public void testBinaryVersion2RoundTripWithLevels() throws IOException {
+    MapData data = createData(true, false);
+    assertBinaryRoundTrip(data, 2);
+  }
+
+  public void testBinaryVersion3RoundTripWithChannelClasses() throws IOException {
+    assertBinaryRoundTrip(createData(false, true), 3);
+    assertBinaryRoundTrip(createData(true, true), 3);
+  }
+
+  public void testInternedJsonExpandsToPlainJson() throws IOException {
+    for (boolean extras : new boolean[] {false, true}) {
+      MapData data = createData(extras, extras);
+      Path path = _dir.resolve("interned.json");
+      MapDataWriter.writeJson(data, path, null, true);
+      InternedMapData interned;
+      try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        interned = new Gson().fromJson(in, InternedMapData.class);
+      }
+      assertEquals(toJson(data), toJson(expand(interned)));
+    }
+  }
+
+  private void assertBinaryRoundTrip(MapData data, int version) throws IOException {
+    Path path = _dir.resolve("map.bin");
+    MapDataWriter.writeBinary(data, path);
+    BinaryReader reader = new BinaryReader(Files.readAllBytes(path));
+    assertEquals(toJson(data), toJson(reader.read()));
+    assertEquals(version, reader.version);
+  }
+
+  /**
+   * Returns a map with null strings, titles whose UTF-16 and UTF-8 lengths
+   * differ, and placemarks on both sides of the equator and the prime
+   * meridian.
+   */
+  private static MapData createData(boolean levels, boolean channelClasses) {
+    MapData data = new MapData();
+    data.features.add(feature("Line1",
+        project("planned", null, "#ff0000", "Transit", "Línea 1 — São Paulo"),
+        project("completed", "completed", null, "Transit", "東京 🚇 Ginza")));
+    data.features.add(feature("Bridge", project("eval", "someday", null, "Roads")));
+
+    data.placemarks.add(placemark(-33.86882, 151.209296, "Line1"));
+    data.placemarks.add(placemark(51.507351, -0.127758, "Line1", "Bridge"));
+    data.placemarks.add(placemark(-22.906847, -43.172896, "Bridge"));
+
+    data.segments.add(segment("_p~iF~ps|U_ulLnnqC_mqNvxq`@", "Line1"));
+    data.segments.add(segment("}~kvHmzrr@", "Bridge", "Line1"));
+
+    if (levels) {
+      data.levelZooms = Arrays.asList(8, 12);
+      data.segments.get(0).levels = Arrays.asList("_p~iF~ps|U", "_p~iF~ps|U_mqNvxq`@");
+      data.segments.get(1).levels = Arrays.asList("", "}~kvHmzrr@");
+    }
+    if (channelClasses) {
+      data.channelClasses = new ArrayList<>();
+      data.channelClasses.add(Arrays.asList("Line1"));
+      data.channelClasses.add(Arrays.asList("Line1", "Bridge"));
+      data.channelClasses.add(Arrays.asList("Bridge"));
+      data.channelClasses.add(Arrays.asList("Bridge", "Line1"));
+      data.placemarks.get(0).channelClass = 0;
+      data.placemarks.get(1).channelClass = 1;
+      data.placemarks.get(2).channelClass = 2;
+      data.segments.get(0).channelClass = 0;
+      data.segments.get(1).channelClass = 3;
+    }
+    return data;
+  }
+
+  private static MapFeature feature(String id, ProjectReference... projects) {
+    MapFeature feature = new MapFeature();
+    feature.id = id;
+    feature.projects = Arrays.asList(projects);
+    return feature;
+  }
+
+  private static ProjectReference project(String status, @Nullable String timeline,
+      @Nullable String color, String... title) {
+    ProjectReference project = new ProjectReference();
+    project.title = Arrays.asList(title);
+    project.headingId = title[title.length - 1].toLowerCase().replace(' ', '-');
+    project.status = status;
+    project.timeline = timeline;
+    project.color = color;
+    return project;
+  }
+
+  private static MapPlacemark placemark(double lat, double lng, String... ids) {
+    MapPlacemark placemark = new MapPlacemark();
+    placemark.lat = lat;
+    placemark.lng = lng;
+    placemark.ids = Arrays.asList(ids);
+    return placemark;
+  }
+
+  private static MapSegment segment(String line, String... ids) {
+    MapSegment segment = new MapSegment();
+    segment.line = line;
+    segment.ids = Arrays.asList(ids);
+    return segment;
+  }
+
+  /**
+   * Returns the plain map data that interned data refers to.
+   */
+  private static MapData expand(InternedMapData interned) {
+    MapData data = new MapData();
+    for (InternedMapData.Feature f : interned.features) {
+      MapFeature feature = new MapFeature();
+      feature.id = interned.strings.get(f.id);
+      if (f.projects != null) {
+        feature.projects = new ArrayList<>();
+        for (int index : f.projects) {
+          InternedMapData.Project p = interned.projects.get(index);
+          ProjectReference project = new ProjectReference();
+          if (p.title != null) {
+            project.title = new ArrayList<>();
+            for (Integer line : p.title) {
+              project.title.add(string(interned, line));
+            }
+          }
+          project.headingId = string(interned, p.headingId);
+          project.timeline = string(interned, p.timeline);
+          project.status = string(interned, p.status);
+          project.color = string(interned, p.color);
+          feature.projects.add(project);
+        }
+      }
+      data.features.add(feature);
+    }
+    for (InternedMapData.Placemark p : interned.placemarks) {
+      MapPlacemark placemark = new MapPlacemark();
+      placemark.lat = p.lat;
+      placemark.lng = p.lng;
+      placemark.ids = ids(interned, p.features);
+      placemark.channelClass = p.channelClass;
+      data.placemarks.add(placemark);
+    }
+    for (InternedMapData.Segment s : interned.segments) {
+      MapSegment segment = new MapSegment();
+      segment.line = s.line;
+      segment.ids = ids(interned, s.features);
+      segment.channelClass = s.channelClass;
+      segment.levels = s.levels;
+      data.segments.add(segment);
+    }
+    data.levelZooms = interned.levelZooms;
+    if (interned.channelClasses != null) {
+      data.channelClasses = new ArrayList<>();
+      for (List<Integer> features : interned.channelClasses) {
+        data.channelClasses.add(ids(interned, features));
+      }
+    }
+    return data;
+  }
+
+  @Nullable
+  private static String string(InternedMapData interned, @Nullable Integer index) {
+    return index == null ? null : interned.strings.get(index);
+  }
+
+  private static List<String> ids(InternedMapData interned, List<Integer> features) {
+    List<String> ids = new ArrayList<>();
+    for (int feature : features) {
+      ids.add(interned.strings.get(interned.features.get(feature).id));
+    }
+    return ids;
+  }
+
+  private static String toJson(MapData data) {
+    return new Gson().toJson(data);
+  }
+
+  /**
+   * Decodes the binary encoding documented on
+   * {@link MapDataWriter#writeBinary}, as the JavaScript client does.
+   */
+  private static class BinaryReader {
+    private final byte[] _bytes;
+    private int _offset;
+    private final List<String> _strings = new ArrayList<>();
+    int version;
+
+    BinaryReader(byte[] bytes) {
+      _bytes = bytes;
+    }
+
+    MapData read() {
+      assertEquals("ISMB", new String(_bytes, 0, 4, StandardCharsets.US_ASCII));
+      _offset = 4;
+      version = (int) readVarint();
+      int flags = version == 3 ? (int) readVarint() : version == 2 ? 1 : 0;
+
+      // The lengths are in UTF-16 units, so the strings can only be split
+      // after decoding the UTF-8 block as a whole.
+      int[] lengths = new int[(int) readVarint()];
+      for (int i = 0; i < lengths.length; ++i) {
+        lengths[i] = (int) readVarint();
+      }
+      String all = readBlock(StandardCharsets.UTF_8);
+      int start = 0;
+      for (int length : lengths) {
+        _strings.add(all.substring(start, start + length));
+        start += length;
+      }
+      assertEquals(all.length(), start);
+
+      MapData data = new MapData();
+      for (long i = readVarint(); i > 0; --i) {
+        MapFeature feature = new MapFeature();
+        feature.id = readString();
+        feature.projects = new ArrayList<>();
+        for (long j = readVarint(); j > 0; --j) {
+          ProjectReference project = new ProjectReference();
+          project.title = readStrings();
+          project.headingId = readString();
+          project.timeline = readString();
+          project.status = readString();
+          project.color = readString();
+          feature.projects.add(project);
+        }
+        data.features.add(feature);
+      }
+
+      long lat = 0;
+      long lng = 0;
+      for (long i = readVarint(); i > 0; --i) {
+        MapPlacemark placemark = new MapPlacemark();
+        lat += readSignedVarint();
+        lng += readSignedVarint();
+        placemark.lat = lat / 1e6;
+        placemark.lng = lng / 1e6;
+        placemark.ids = readStrings();
+        data.placemarks.add(placemark);
+      }
+
+      List<Integer> lineLengths = new ArrayList<>();
+      for (long i = readVarint(); i > 0; --i) {
+        MapSegment segment = new MapSegment();
+        lineLengths.add((int) readVarint());
+        segment.ids = readStrings();
+        data.segments.add(segment);
+      }
+      String lines = readBlock(StandardCharsets.US_ASCII);
+      start = 0;
+      for (int i = 0; i < data.segments.size(); ++i) {
+        data.segments.get(i).line = lines.substring(start, start + lineLengths.get(i));
+        start += lineLengths.get(i);
+      }
+
+      if ((flags & 1) != 0) {
+        data.levelZooms = new ArrayList<>();
+        for (long i = readVarint(); i > 0; --i) {
+          data.levelZooms.add((int) readVarint());
+        }
+        List<Integer> levelLengths = new ArrayList<>();
+        for (int i = 0; i < data.segments.size() * data.levelZooms.size(); ++i) {
+          levelLengths.add((int) readVarint());
+        }
+        String levels = readBlock(StandardCharsets.US_ASCII);
+        start = 0;
+        int level = 0;
+        for (MapSegment segment : data.segments) {
+          segment.levels = new ArrayList<>();
+          for (int i = 0; i < data.levelZooms.size(); ++i) {
+            int length = levelLengths.get(level++);
+            segment.levels.add(levels.substring(start, start + length));
+            start += length;
+          }
+        }
+      }
+      if ((flags & 2) != 0) {
+        data.channelClasses = new ArrayList<>();
+        for (long i = readVarint(); i > 0; --i) {
+          data.channelClasses.add(readStrings());
+        }
+      }
+      if ((flags & 4) != 0) {
+        for (MapPlacemark placemark : data.placemarks) {
+          placemark.channelClass = (int) readVarint();
+        }
+        for (MapSegment segment : data.segments) {
+          segment.channelClass = (int) readVarint();
+        }
+      }
+      assertEquals(_bytes.length, _offset);
+      return data;
+    }
+
+    @Nullable
+    private String readString() {
+      int index = (int) readVarint();
+      return index == 0 ? null : _strings.get(index - 1);
+    }
+
+    private List<String> readStrings() {
+      List<String> strings = new ArrayList<>();
+      for (long i = readVarint(); i > 0; --i) {
+        strings.add(readString());
+      }
+      return strings;
+    }
+
+    private String readBlock(Charset charset) {
+      int length = (int) readVarint();
+      String block = new String(_bytes, _offset, length, charset);
+      _offset += length;
+      return block;
+    }
+
+    private long readSignedVarint() {
+      long value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = _bytes[_offset++] & 0xFF;
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.gson.Gson;
+import com.google.infrastructuredmap.model.MapData;
+import com.google.infrastructuredmap.model.MapFeature;
+import com.google.infrastructuredmap.model.MapPlacemark;
+import com.google.infrastructuredmap.model.MapSegment;
+import com.google.infrastructuredmap.model.MapTile;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.TestCase;
+
+public class MapTilerTest extends TestCase {
+
+  private Path _dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    _dir = Files.createTempDirectory("tiles");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.walkFileTree(_dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  public void testSmallMapIsOneTile() {
+    MapData data = createData(new Random(1), 100, MapTiler.MAX_TILE_ITEMS - 100);
+    List<MapTiler.Tile> tiles = MapTiler.partition(data);
+    assertEquals(1, tiles.size());
+    assertEquals("", tiles.get(0).key);
+    assertEquals(data.placemarks, tiles.get(0).data.placemarks);
+    assertEquals(data.segments, tiles.get(0).data.segments);
+  }
+
+  public void testSplitsIntoQuadrants() {
+    // A cluster of placemarks in each quadrant of the map.
+    MapData data = new MapData();
+    Random random = new Random(2);
+    double[][] centers = {{-10, -10}, {-10, 10}, {10, -10}, {10, 10}};
+    for (double[] center : centers) {
+      for (int i = 0; i < 200; ++i) {
+        data.placemarks.add(placemark(center[0] + random.nextDouble(),
+            center[1] + random.nextDouble()));
+      }
+    }
+    List<MapTiler.Tile> tiles = MapTiler.partition(data);
+    List<String> keys = new ArrayList<>();
+    for (MapTiler.Tile tile : tiles) {
+      keys.add(tile.key);
+      assertEquals(200, tile.data.placemarks.size());
+    }
+    // South-west, south-east, north-west and north-east.
+    assertEquals(Arrays.asList("0", "1", "2", "3"), keys);
+    assertEquals(data.placemarks.subList(0, 200), tiles.get(0).data.placemarks);
+    assertEquals(data.placemarks.subList(200, 400), tiles.get(1).data.placemarks);
+    assertEquals(data.placemarks.subList(400, 600), tiles.get(2).data.placemarks);
+    assertEquals(data.placemarks.subList(600, 800), tiles.get(3).data.placemarks);
+  }
+
+  public void testTileBoundsContainTheirItems() {
+    MapData data = createData(new Random(3), 3000, 3000);
+    List<MapTiler.Tile> tiles = MapTiler.partition(data);
+    assertTrue(tiles.size() > 4);
+
+    // Every item is in exactly one tile, in its original relative order.
+    Map<Object, Integer> positions = new IdentityHashMap<>();
+    for (int i = 0; i < data.segments.size(); ++i) {
+      positions.put(data.segments.get(i), i);
+    }
+    for (int i = 0; i < data.placemarks.size(); ++i) {
+      positions.put(data.placemarks.get(i), i);
+    }
+    int items = 0;
+    for (MapTiler.Tile tile : tiles) {
+      assertTrue(tile.data.segments.size() + tile.data.placemarks.size()
+          <= MapTiler.MAX_TILE_ITEMS);
+      int previous = -1;
+      for (MapSegment segment : tile.data.segments) {
+        int position = positions.remove(segment);
+        assertTrue(position > previous);
+        previous = position;
+        double[] latLngs = PolylineEncoder.decode(segment.line);
+        for (int i = 0; i < latLngs.length; i += 2) {
+          assertContains(tile, latLngs[i], latLngs[i + 1]);
+        }
+        items++;
+      }
+      previous = -1;
+      for (MapPlacemark placemark : tile.data.placemarks) {
+        int position = positions.remove(placemark);
+        assertTrue(position > previous);
+        previous = position;
+        assertContains(tile, placemark.lat, placemark.lng);
+        items++;
+      }
+    }
+    assertEquals(data.segments.size() + data.placemarks.size(), items);
+    assertTrue(positions.isEmpty());
+  }
+
+  public void testDepthIsCappedWhenItemsShareACenter() {
+    MapData data = new MapData();
+    for (int i = 0; i < MapTiler.MAX_TILE_ITEMS * 2; ++i) {
+      data.placemarks.add(placemark(47.6, -122.3));
+    }
+    data.placemarks.add(placemark(48, -122));
+    List<MapTiler.Tile> tiles = MapTiler.partition(data);
+    assertEquals(2, tiles.size());
+    assertEquals(16, tiles.get(0).key.length());
+    assertEquals(MapTiler.MAX_TILE_ITEMS * 2, tiles.get(0).data.placemarks.size());
+    assertEquals("3", tiles.get(1).key);
+  }
+
+  public void testTilesAreNamedByContentHash() throws IOException {
+    MapData data = createData(new Random(4), 1000, 1000);
+    MapDataWriter.writeTiles(data, _dir, false, false);
+    MapData index = readIndex();
+    assertEquals(MapTiler.partition(data).size(), index.tiles.size());
+    for (MapTile tile : index.tiles) {
+      assertTrue(tile.path, tile.path.matches("tile[0-3]*-[0-9a-f]{16}\\.json"));
+      String hash = SourceCache.hash(Files.readAllBytes(_dir.resolve(tile.path)));
+      assertTrue(tile.path, tile.path.endsWith("-" + hash.substring(0, 16) + ".json"));
+    }
+
+    // The same data gets the same names.
+    List<String> paths = paths(index);
+    MapDataWriter.writeTiles(createData(new Random(4), 1000, 1000), _dir, false, false);
+    assertEquals(paths, paths(readIndex()));
+  }
+
+  public void testRewriteRemovesStaleTilesAfterTheIndex() throws IOException {
+    MapDataWriter.writeTiles(createData(new Random(5), 1000, 1000), _dir, false, false);
+    byte[] firstIndex = Files.readAllBytes(_dir.resolve(MapDataWriter.TILE_INDEX));
+    List<String> firstPaths = paths(readIndex());
+    assertTrue(firstPaths.size() > 1);
+
+    // Find the names of the tiles of a smaller map, and block the first one
+    // from being written.
+    MapData smaller = createData(new Random(6), 100, 100);
+    Path scratch = Files.createDirectory(_dir.resolve("scratch"));
+    MapDataWriter.writeTiles(smaller, scratch, false, false);
+    List<String> secondPaths = paths(readIndex(scratch));
+    assertEquals(1, secondPaths.size());
+    Path blocker = Files.createDirectory(_dir.resolve(secondPaths.get(0) + ".tmp"));
+    try {
+      MapDataWriter.writeTiles(smaller, _dir, false, false);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    // A failed tile leaves the previous index, and all of its tiles, in place.
+    assertTrue(Arrays.equals(firstIndex,
+        Files.readAllBytes(_dir.resolve(MapDataWriter.TILE_INDEX))));
+    for (String path : firstPaths) {
+      assertTrue(path, Files.exists(_dir.resolve(path)));
+    }
+
+    Files.deleteIfExists(blocker);
+    MapDataWriter.writeTiles(smaller, _dir, false, false);
+    assertEquals(secondPaths, paths(readIndex()));
+    Set<String> expected = new HashSet<>(secondPaths);
+    expected.add(MapDataWriter.TILE_INDEX);
+    expected.add("scratch");
+    assertEquals(expected, list(_dir));
+  }
+
+  /**
+   * Returns a map of random segments and placemarks spread over a region the
+   * size of a state.
+   */
+  private static MapData createData(Random random, int segments, int placemarks) {
+    MapData data = new MapData();
+    MapFeature feature = new MapFeature();
+    feature.id = "Line";
+    data.features.add(feature);
+    for (int i = 0; i < segments; ++i) {
+      double[] latLngs = new double[2 * (2 + random.nextInt(5))];
+      double lat = 45 + random.nextDouble() * 4;
+      double lng = -124 + random.nextDouble() * 7;
+      for (int j = 0; j < latLngs.length; j += 2) {
+        latLngs[j] = lat;
+        latLngs[j + 1] = lng;
+        lat += random.nextGaussian() * 0.05;
+        lng += random.nextGaussian() * 0.05;
+      }
+      MapSegment segment = new MapSegment();
+      segment.line = PolylineEncoder.encode(latLngs);
+      segment.ids = Collections.singletonList(feature.id);
+      data.segments.add(segment);
+    }
+    for (int i = 0; i < placemarks; ++i) {
+      data.placemarks.add(placemark(45 + random.nextDouble() * 4,
+          -124 + random.nextDouble() * 7));
+    }
+    return data;
+  }
+
+  private static MapPlacemark placemark(double lat, double lng) {
+    MapPlacemark placemark = new MapPlacemark();
+    placemark.lat = lat;
+    placemark.lng = lng;
+    placemark.ids = Collections.singletonList("Line");
+    return placemark;
+  }
+
+  private static void assertContains(MapTiler.Tile tile, double lat, double lng) {
+    assertTrue(lat >= tile.south && lat <= tile.north);
+    assertTrue(lng >= tile.west && lng <= tile.east);
+  }
+
+  private MapData readIndex() throws IOException {
+    return readIndex(_dir);
+  }
+
+  private static MapData readIndex(Path dir) throws IOException {
+    byte[] json = Files.readAllBytes(dir.resolve(MapDataWriter.TILE_INDEX));
+    return new Gson().fromJson(new String(json, StandardCharsets.UTF_8), MapData.class);
+  }
+
+  private static List<String> paths(MapData index) {
+    List<String> paths = new ArrayList<>();
+    for (MapTile tile : index.tiles) {
+      paths.add(tile.path);
+    }
+    return paths;
+  }
+
+  private static Set<String> list(Path dir) throws IOException {
+    Set<String> names = new HashSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        names.add(file.getFileName().toString());
+      }
+    }
+    return names;
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.gson.Gson;
+import com.google.infrastructuredmap.model.ProjectReference;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+
+public class MarkdownReferenceExtractorTest extends TestCase {
+
+  private Path _dir;
+
+  @Override
+  protected void tearDown() throws IOException {
+    if (_dir != null) {
+      Files.walkFileTree(_dir, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+          Files.delete(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+  }
+
+  public void testScannerMatchesPegdown() throws Exception {
+    Path path = Paths.get(getClass().getResource("references.md").toURI());
+    Map<String, List<ProjectReference>> references =
+        MarkdownReferenceExtractor.extractReferences(path);
+    assertEquals(toJson(references), toJson(MarkdownReferenceExtractor.extractReferences(path,
+        MarkdownReferenceExtractor.Parser.SCANNER)));
+
+    assertEquals(Arrays.asList("AfterFence", "AfterUnclosedFence", "ClosingHashes",
+        "IndentedUnderline", "Inline", "Languages", "Last", "LazyContinuation",
+        "ListContinuation", "MultiLine", "NestedContinuation", "NestedItem", "Overview", "Quoted",
+        "QuotedInline", "SetextSection", "ShortUnderline", "TildeFence"),
+        new ArrayList<>(new TreeMap<>(references).keySet()));
+    assertEquals(Arrays.asList("Plan", "ATX Section",
+        "Emphasized, code, linked and strong text", "First"),
+        references.get("Inline").get(0).title);
+    assertEquals(Arrays.asList("Plan", "Setext Section"),
+        references.get("ShortUnderline").get(0).title);
+  }
+
+  public void testHtmlOtherThanCommentsIsAnError() throws Exception {
+    _dir = Files.createTempDirectory("markdown");
+    write("html.md", "# A\n\n<div>\n" + comment("a1") + "</div>\n");
+    try {
+      MarkdownReferenceExtractor.extractReferences(_dir.resolve("html.md"));
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    // The scanner only looks at the comment.
+    assertEquals(Arrays.asList("a1"), labels(MarkdownReferenceExtractor.extractReferences(
+        _dir.resolve("html.md"), MarkdownReferenceExtractor.Parser.SCANNER)));
+  }
+
+  public void testMergesDirectoryInFileAndPositionOrder() throws Exception {
+    _dir = Files.createTempDirectory("markdown");
+    // The first file is the largest, so that it finishes last when the files
+    // are parsed in parallel.
+    StringBuilder large = new StringBuilder("# A\n\n");
+    for (int i = 0; i < 20000; ++i) {
+      large.append("<!-- id: Other, status: planned -->\n");
+    }
+    large.append(comment("a1")).append(comment("a2"));
+    write("a.md", large.toString());
+    write("b.md", "# B\n\n" + comment("b1") + "\n## B2\n\n" + comment("b2"));
+    write("sub/c.md", "# C\n\n" + comment("c1"));
+    write("notes.txt", "# D\n\n" + comment("d1"));
+
+    List<String> expected = Arrays.asList("a1", "a2", "b1", "b2", "c1");
+    assertEquals(expected, labels(MapAndMarkdownExtractorMain.extractReferences(
+        _dir.toString(), MarkdownReferenceExtractor.Parser.PEGDOWN, null)));
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      assertEquals(expected, labels(MapAndMarkdownExtractorMain.extractReferences(
+          _dir.toString(), MarkdownReferenceExtractor.Parser.PEGDOWN, executor)));
+      assertEquals(expected, labels(MapAndMarkdownExtractorMain.extractReferences(
+          _dir.toString(), MarkdownReferenceExtractor.Parser.SCANNER, executor)));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void write(String name, String content) throws IOException {
+    Path path = _dir.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String comment(String label) {
+    return "<!-- id: Shared, status: planned, label: " + label + " -->\n";
+  }
+
+  private static List<String> labels(Map<String, List<ProjectReference>> references) {
+    List<String> labels = new ArrayList<>();
+    for (ProjectReference reference : references.get("Shared")) {
+      labels.add(reference.title.get(reference.title.size() - 1));
+    }
+    return labels;
+  }
+
+  private static String toJson(Map<String, List<ProjectReference>> references) {
+    return new Gson().toJson(new TreeMap<>(references));
+  }
+}
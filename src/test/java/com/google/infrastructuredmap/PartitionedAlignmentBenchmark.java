@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares aligning a connected network in a single graph with
+ * {@link PartitionedPolylineAlignment} and an {@link AlignmentSnapshot}: on a
+ * first run with an empty snapshot, again with nothing changed, and after one
+ * route has moved.  Run with:
+ *
+ * <pre>
+ * PartitionedAlignmentBenchmark [routes [backend]]
+ * </pre>
+ *
+ * The network is a 12 by 12 lattice of hubs 12 km apart, like the towns of a
+ * region, with each route running along a few corridors between neighbouring
+ * hubs.  Routes that share a corridor align with each other and the lattice
+ * is connected, so the tiles all end up in one group, as they would for a
+ * statewide transit network.
+ */
+public class PartitionedAlignmentBenchmark {
+
+  private static final int HUBS = 12;
+
+  private static final double HUB_METERS = 12000;
+
+  private static final int RUNS = 3;
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    AlignmentGraph.Backend backend = args.length > 1
+        ? AlignmentGraph.Backend.valueOf(args[1]) : AlignmentGraph.Backend.HASHED;
+    List<List<Coordinate>> lines = generate(11, count);
+    List<Placemark> placemarks = new ArrayList<>();
+    for (int i = 0; i < lines.size(); ++i) {
+      Placemark placemark = new Placemark();
+      placemark.setName("p" + i);
+      placemarks.add(placemark);
+    }
+    List<List<Coordinate>> moved = new ArrayList<>(lines);
+    List<Coordinate> route = new ArrayList<>(moved.get(0));
+    route.set(0, new Coordinate(route.get(0).x + 50, route.get(0).y));
+    moved.set(0, route);
+
+    System.out.printf("%d routes, %s backend%n", lines.size(), backend);
+    // The best of a few runs, once the JIT has warmed up.
+    long single = Long.MAX_VALUE;
+    long cold = Long.MAX_VALUE;
+    long unchanged = Long.MAX_VALUE;
+    long changed = Long.MAX_VALUE;
+    int polylines = 0;
+    for (int run = 0; run < RUNS; ++run) {
+      long start = System.nanoTime();
+      AlignmentGraph graph = backend.create();
+      for (int i = 0; i < lines.size(); ++i) {
+        graph.addPolyline(lines.get(i), placemarks.get(i));
+      }
+      polylines = graph.go().size();
+      single = Math.min(single, System.nanoTime() - start);
+
+      AlignmentSnapshot snapshot = new AlignmentSnapshot();
+      cold = Math.min(cold, partition(backend, lines, placemarks, snapshot));
+      unchanged = Math.min(unchanged, partition(backend, lines, placemarks, snapshot));
+      changed = Math.min(changed, partition(backend, moved, placemarks, snapshot));
+    }
+    System.out.printf("single graph: %d ms, %d polylines out%n", single / 1000000, polylines);
+    System.out.printf("partitioned, empty snapshot: %d ms%n", cold / 1000000);
+    System.out.printf("partitioned, unchanged: %d ms%n", unchanged / 1000000);
+    System.out.printf("partitioned, one route moved: %d ms%n", changed / 1000000);
+  }
+
+  /**
+   * Returns the nanoseconds taken to align the lines with a
+   * {@link PartitionedPolylineAlignment} and the snapshot.
+   */
+  private static long partition(AlignmentGraph.Backend backend, List<List<Coordinate>> lines,
+      List<Placemark> placemarks, AlignmentSnapshot snapshot) {
+    long start = System.nanoTime();
+    PartitionedPolylineAlignment alignment = new PartitionedPolylineAlignment(backend);
+    for (int i = 0; i < lines.size(); ++i) {
+      alignment.addPolyline(lines.get(i), placemarks.get(i));
+    }
+    alignment.go(snapshot);
+    if (alignment.getFailure() != null) {
+      throw alignment.getFailure();
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Generates routes that each start at a random hub and follow a few
+   * corridors to neighbouring hubs without turning back, with a vertex every
+   * 400 m and a few meters of jitter.
+   */
+  private static List<List<Coordinate>> generate(long seed, int count) {
+    Random random = new Random(seed);
+    Coordinate[][] hubs = new Coordinate[HUBS][HUBS];
+    for (int i = 0; i < HUBS; ++i) {
+      for (int j = 0; j < HUBS; ++j) {
+        hubs[i][j] = new Coordinate(i * HUB_METERS + random.nextGaussian() * 1000,
+            j * HUB_METERS + random.nextGaussian() * 1000);
+      }
+    }
+    int[][] steps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    List<List<Coordinate>> lines = new ArrayList<>();
+    for (int n = 0; n < count; ++n) {
+      int i = random.nextInt(HUBS);
+      int j = random.nextInt(HUBS);
+      int previous = -1;
+      List<Coordinate> line = new ArrayList<>();
+      line.add(jitter(hubs[i][j], random));
+      for (int hops = 1 + random.nextInt(4); hops > 0; --hops) {
+        int step = random.nextInt(steps.length);
+        int ni = i + steps[step][0];
+        int nj = j + steps[step][1];
+        if (ni < 0 || nj < 0 || ni >= HUBS || nj >= HUBS || (step ^ 1) == previous) {
+          continue;
+        }
+        Coordinate from = hubs[i][j];
+        Coordinate to = hubs[ni][nj];
+        int vertices = (int) (from.distance(to) / 400);
+        for (int k = 1; k <= vertices; ++k) {
+          double t = (double) k / vertices;
+          line.add(jitter(new Coordinate(from.x + (to.x - from.x) * t,
+              from.y + (to.y - from.y) * t), random));
+        }
+        i = ni;
+        j = nj;
+        previous = step;
+      }
+      if (line.size() > 1) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  private static Coordinate jitter(Coordinate c, Random random) {
+    return new Coordinate(c.x + random.nextGaussian() * 3, c.y + random.nextGaussian() * 3);
+  }
+}
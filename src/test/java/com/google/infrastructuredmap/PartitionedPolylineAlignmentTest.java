@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.infrastructuredmap.AlignmentGraph.Polyline;
+import com.vividsolutions.jts.geom.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class PartitionedPolylineAlignmentTest extends TestCase {
+
+  public void testMatchesSequentialAlignment() {
+    for (long seed = 0; seed < 8; ++seed) {
+      // A second copy far away keeps the tiles from all starting out in one
+      // group, so that they're merged as they conflict.
+      Network network = new Network(seed, 60).withCopyAt(100000);
+      for (AlignmentGraph.Backend backend : AlignmentGraph.Backend.values()) {
+        List<Polyline> expected = network.alignSequentially(backend);
+        assertSamePolylines(expected, network.align(backend, 500));
+        assertSamePolylines(expected, network.align(backend, 2000));
+      }
+    }
+  }
+
+  public void testMatchesSequentialAlignmentWithOneTile() {
+    Network network = new Network(42, 60);
+    List<Polyline> expected = network.alignSequentially(AlignmentGraph.Backend.HASHED);
+    assertSamePolylines(expected, network.align(AlignmentGraph.Backend.HASHED, 1e9));
+  }
+
+  public void testSeparateTilesAreNotMerged() {
+    // Two identical networks far apart, which only align within themselves.
+    Network network = new Network(7, 30).withCopyAt(100000);
+    List<Polyline> expected = network.alignSequentially(AlignmentGraph.Backend.HASHED);
+    AlignmentSnapshot snapshot = new AlignmentSnapshot();
+    List<Polyline> actual = network.partition(AlignmentGraph.Backend.HASHED, 50000)
+        .go(snapshot);
+    assertSamePolylines(expected, actual);
+    assertEquals(2, snapshot.getAlignedPartitionCount());
+  }
+
+  public void testConnectedNetworkIsAlignedAsOneGroup() {
+    // Corridors that all cross, directly or through each other.
+    Network network = new Network(3, 60);
+    for (AlignmentGraph.Backend backend : AlignmentGraph.Backend.values()) {
+      AlignmentSnapshot snapshot = new AlignmentSnapshot();
+      List<Polyline> polylines = network.partition(backend, 500).go(snapshot);
+      assertEquals(1, snapshot.getAlignedPartitionCount());
+      assertSamePolylines(network.alignSequentially(backend), polylines);
+    }
+  }
+
+  public void testStopsAtTheSamePolylineAsSequentialAlignment() {
+    Network network = new Network(3, 60);
+    int failing = 37;
+    // Repeating a point away from everything else gives an edge from a node
+    // to itself, which the graph rejects.
+    List<Coordinate> line = network.lines.get(failing);
+    line.clear();
+    line.add(new Coordinate(-5000, -5000));
+    line.add(new Coordinate(-5000, -5000));
+    for (AlignmentGraph.Backend backend : AlignmentGraph.Backend.values()) {
+      AlignmentGraph graph = backend.create();
+      for (int i = 0; i < failing; ++i) {
+        graph.addPolyline(network.lines.get(i), network.placemarks.get(i));
+      }
+      try {
+        graph.addPolyline(line, network.placemarks.get(failing));
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+      List<Polyline> expected = graph.go();
+
+      PartitionedPolylineAlignment alignment = network.partition(backend, 500);
+      assertSamePolylines(expected, alignment.go(null));
+      assertNotNull(alignment.getFailure());
+      assertEquals(failing, alignment.getFailedPolyline());
+    }
+  }
+
+  public void testReusesMergedPartitionsFromSnapshot() throws IOException {
+    Path path = Files.createTempFile("snapshot", ".bin");
+    try {
+      for (AlignmentGraph.Backend backend : AlignmentGraph.Backend.values()) {
+        Network network = new Network(5, 60).withCopyAt(100000);
+        AlignmentSnapshot snapshot = new AlignmentSnapshot();
+        network.partition(backend, 500).go(snapshot);
+        assertTrue(snapshot.getAlignedPartitionCount() > 0);
+        snapshot.write(path);
+
+        snapshot = AlignmentSnapshot.read(path);
+        List<Polyline> polylines = network.partition(backend, 500).go(snapshot);
+        assertEquals(0, snapshot.getAlignedPartitionCount());
+        assertTrue(snapshot.getReusedPartitionCount() > 0);
+        assertSamePolylines(network.align(backend, 500), polylines);
+
+        // Moving one line realigns its partition, and still matches.
+        List<Coordinate> line = network.lines.get(20);
+        line.set(0, new Coordinate(line.get(0).x + 30, line.get(0).y));
+        polylines = network.partition(backend, 500).go(snapshot);
+        assertTrue(snapshot.getAlignedPartitionCount() > 0);
+        assertSamePolylines(network.alignSequentially(backend), polylines);
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static void assertSamePolylines(List<Polyline> expected, List<Polyline> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals("polyline " + i, expected.get(i).line, actual.get(i).line);
+      Iterator<Placemark> it = actual.get(i).placemarks.iterator();
+      for (Placemark placemark : expected.get(i).placemarks) {
+        assertSame("polyline " + i, placemark, it.next());
+      }
+      assertFalse(it.hasNext());
+    }
+  }
+
+  /**
+   * Random lines along a few shared corridors, like transit routes that run
+   * together for a while, with some lines crossing others.
+   */
+  private static class Network {
+    final List<List<Coordinate>> lines = new ArrayList<>();
+    final List<Placemark> placemarks = new ArrayList<>();
+
+    Network(long seed, int count) {
+      Random random = new Random(seed);
+      List<Coordinate[]> corridors = new ArrayList<>();
+      for (int i = 0; i < 6; ++i) {
+        corridors.add(new Coordinate[] {
+            new Coordinate(random.nextInt(4000), random.nextInt(4000)),
+            new Coordinate(random.nextInt(4000), random.nextInt(4000))});
+      }
+      for (int i = 0; i < count; ++i) {
+        Coordinate[] corridor = corridors.get(random.nextInt(corridors.size()));
+        double start = random.nextDouble() * 0.5;
+        double end = start + 0.2 + random.nextDouble() * 0.3;
+        int vertices = 2 + random.nextInt(6);
+        List<Coordinate> line = new ArrayList<>();
+        for (int j = 0; j < vertices; ++j) {
+          double t = start + (end - start) * j / (vertices - 1);
+          line.add(new Coordinate(
+              corridor[0].x + (corridor[1].x - corridor[0].x) * t + random.nextDouble() * 8,
+              corridor[0].y + (corridor[1].y - corridor[0].y) * t + random.nextDouble() * 8));
+        }
+        add(line);
+      }
+    }
+
+    /**
+     * Adds a copy of each line, shifted east by {@code dx}.
+     */
+    Network withCopyAt(double dx) {
+      int count = lines.size();
+      for (int i = 0; i < count; ++i) {
+        List<Coordinate> moved = new ArrayList<>();
+        for (Coordinate c : lines.get(i)) {
+          moved.add(new Coordinate(c.x + dx, c.y));
+        }
+        add(moved);
+      }
+      return this;
+    }
+
+    void add(List<Coordinate> line) {
+      lines.add(line);
+      placemarks.add(new Placemark().withName("line" + placemarks.size()));
+    }
+
+    List<Polyline> alignSequentially(AlignmentGraph.Backend backend) {
+      AlignmentGraph graph = backend.create();
+      for (int i = 0; i < lines.size(); ++i) {
+        graph.addPolyline(lines.get(i), placemarks.get(i));
+      }
+      return graph.go();
+    }
+
+    PartitionedPolylineAlignment partition(AlignmentGraph.Backend backend, double tileMeters) {
+      PartitionedPolylineAlignment alignment = new PartitionedPolylineAlignment(backend, tileMeters);
+      for (int i = 0; i < lines.size(); ++i) {
+        alignment.addPolyline(lines.get(i), placemarks.get(i));
+      }
+      return alignment;
+    }
+
+    List<Polyline> align(AlignmentGraph.Backend backend, double tileMeters) {
+      PartitionedPolylineAlignment alignment = partition(backend, tileMeters);
+      List<Polyline> polylines = alignment.go(null);
+      assertNull(alignment.getFailure());
+      return polylines;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the time to cluster uniformly scattered points with a linear scan
+ * of the existing clusters, as {@link PlacemarkAlignment} used to, with its
+ * grid index, and with its nearest-cluster mode.  Run with:
+ *
+ * <pre>
+ * PlacemarkAlignmentBenchmark [points...]
+ * </pre>
+ *
+ * The points are spread over a square that holds about one per 60 by 60
+ * meters, so that a fair share of them fall within the snap threshold of
+ * another.  The benchmark also checks that the grid makes the same clusters
+ * as the scan.
+ */
+public class PlacemarkAlignmentBenchmark {
+
+  private static final double SNAP_THRESHOLD_METERS = 20.0;
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      args = new String[] {"10000", "50000"};
+    }
+    for (String arg : args) {
+      int count = Integer.parseInt(arg);
+      List<Coordinate> points = generate(3, count);
+
+      long start = System.nanoTime();
+      Map<Coordinate, List<String>> scanned = scan(points);
+      long scanTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      PlacemarkAlignment grid = cluster(points, false);
+      long gridTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      PlacemarkAlignment nearest = cluster(points, true);
+      long nearestTime = System.nanoTime() - start;
+
+      Map<Coordinate, List<String>> gridded = new LinkedHashMap<>();
+      for (Map.Entry<Coordinate, List<String>> entry : grid.getEntries()) {
+        gridded.put(entry.getKey(), entry.getValue());
+      }
+      System.out.printf("%d points: scan %d ms, grid %d ms, nearest %d ms; "
+          + "%d clusters, same as scan: %b%n", count, scanTime / 1000000, gridTime / 1000000,
+          nearestTime / 1000000, scanned.size(), scanned.equals(gridded));
+    }
+  }
+
+  private static List<Coordinate> generate(long seed, int count) {
+    Random random = new Random(seed);
+    double size = Math.sqrt(count) * 60;
+    List<Coordinate> points = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      points.add(new Coordinate(random.nextDouble() * size, random.nextDouble() * size));
+    }
+    return points;
+  }
+
+  private static PlacemarkAlignment cluster(List<Coordinate> points, boolean snapToNearest) {
+    PlacemarkAlignment alignment = new PlacemarkAlignment(snapToNearest);
+    for (int i = 0; i < points.size(); ++i) {
+      alignment.addPlacemark(points.get(i), "p" + i);
+    }
+    return alignment;
+  }
+
+  /**
+   * Joins each point to the first cluster created within the snap threshold,
+   * checking every cluster in turn.
+   */
+  private static Map<Coordinate, List<String>> scan(List<Coordinate> points) {
+    Map<Coordinate, List<String>> clusters = new LinkedHashMap<>();
+    for (int i = 0; i < points.size(); ++i) {
+      Coordinate location = points.get(i);
+      List<String> match = null;
+      for (Map.Entry<Coordinate, List<String>> entry : clusters.entrySet()) {
+        if (entry.getKey().distance(location) < SNAP_THRESHOLD_METERS) {
+          match = entry.getValue();
+          break;
+        }
+      }
+      if (match == null) {
+        match = new ArrayList<>();
+        clusters.put(location, match);
+      }
+      match.add("p" + i);
+    }
+    return clusters;
+  }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineSegment;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.TestCase;
+
+public class PolylineAlignmentGraphTest extends TestCase {
+
+  public void testPointBetweenNodesSnapsToFirstAddedNode() {
+    PolylineAlignmentGraph graph = new PolylineAlignmentGraph();
+    graph.snapToGraph(new Coordinate(0, 0), null);
+    graph.snapToGraph(new Coordinate(20, 0), null);
+    assertEquals(new Coordinate(0, 0), graph.snapToGraph(new Coordinate(10, 0), null));
+
+    graph = new PolylineAlignmentGraph();
+    graph.snapToGraph(new Coordinate(20, 0), null);
+    graph.snapToGraph(new Coordinate(0, 0), null);
+    assertEquals(new Coordinate(20, 0), graph.snapToGraph(new Coordinate(10, 0), null));
+  }
+
+  public void testPointBetweenEdgesSnapsToFirstAddedEdge() {
+    assertSnapsBetweenEdgesTo(0, 20);
+    assertSnapsBetweenEdgesTo(20, 0);
+  }
+
+  /**
+   * Adds horizontal edges at {@code first} and then {@code second}, 20m apart,
+   * and checks that a point midway between them splits the first.
+   */
+  private static void assertSnapsBetweenEdgesTo(double first, double second) {
+    PolylineAlignmentGraph graph = new PolylineAlignmentGraph();
+    for (double y : new double[] {first, second}) {
+      graph.addPolyline(Arrays.asList(new Coordinate(0, y), new Coordinate(100, y)),
+          new Placemark());
+    }
+    assertEquals(new Coordinate(50, first), graph.snapToGraph(new Coordinate(50, 10), null));
+    Set<LineSegment> edges = graph.dump();
+    assertTrue(edges.contains(new LineSegment(new Coordinate(0, first), new Coordinate(50, first))));
+    assertTrue(edges.contains(new LineSegment(new Coordinate(0, second), new Coordinate(100, second))));
+  }
+
+  public void testRemovingLastPlacemarkMatchesGraphWithoutIt() {
+    int checked = 0;
+    int changed = 0;
+    for (int seed = 0; seed < 300; ++seed) {
+      List<List<Coordinate>> lines = generate(seed);
+      List<Placemark> placemarks = placemarks(lines.size());
+      PolylineAlignmentGraph graph = build(new PolylineAlignmentGraph(true), lines, placemarks);
+      PolylineAlignmentGraph expected = build(new PolylineAlignmentGraph(),
+          lines.subList(0, lines.size() - 1), placemarks);
+      if (graph == null || expected == null) {
+        continue;
+      }
+      checked++;
+      if (!graph.dumpPlacemarks().equals(expected.dumpPlacemarks())) {
+        changed++;
+      }
+      assertTrue(graph.removePlacemark(placemarks.get(lines.size() - 1)));
+      assertEquals("seed " + seed, expected.dumpPlacemarks(), graph.dumpPlacemarks());
+    }
+    assertTrue(checked > 200);
+    assertEquals(checked, changed);
+  }
+
+  public void testRemovingEveryPlacemarkLeavesEmptyGraph() {
+    for (int seed = 0; seed < 100; ++seed) {
+      List<List<Coordinate>> lines = generate(seed);
+      List<Placemark> placemarks = placemarks(lines.size());
+      PolylineAlignmentGraph graph = build(new PolylineAlignmentGraph(true), lines, placemarks);
+      if (graph == null) {
+        continue;
+      }
+      List<Placemark> order = new ArrayList<>(placemarks);
+      Collections.shuffle(order, new Random(seed));
+      for (Placemark placemark : order) {
+        assertTrue(graph.removePlacemark(placemark));
+      }
+      assertTrue(graph.dump().isEmpty());
+      assertTrue(graph.go().isEmpty());
+      assertFalse(graph.removePlacemark(placemarks.get(0)));
+    }
+  }
+
+  public void testRemovalMustBeEnabled() {
+    PolylineAlignmentGraph graph = new PolylineAlignmentGraph();
+    Placemark placemark = new Placemark();
+    graph.addPolyline(Arrays.asList(new Coordinate(0, 0), new Coordinate(100, 0)), placemark);
+    try {
+      graph.removePlacemark(placemark);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testBackendsProduceIdenticalEncodedOutput() {
+    int checked = 0;
+    for (int seed = 0; seed < 300; ++seed) {
+      List<List<Coordinate>> lines = geographic(generate(seed));
+      List<Placemark> placemarks = placemarks(lines.size());
+      AlignmentGraph hashed = build(AlignmentGraph.Backend.HASHED.create(), lines, placemarks);
+      AlignmentGraph compact = build(AlignmentGraph.Backend.COMPACT.create(), lines, placemarks);
+      if (hashed == null || compact == null) {
+        continue;
+      }
+      checked++;
+      assertEquals("seed " + seed, encode(hashed.go()), encode(compact.go()));
+    }
+    assertTrue(checked > 200);
+  }
+
+  /**
+   * Returns the graph of the polylines, or null if the random polylines fold
+   * back onto themselves or split each other's edges without end.
+   */
+  private static <T extends AlignmentGraph> T build(T graph,
+      List<List<Coordinate>> lines, List<Placemark> placemarks) {
+    try {
+      for (int i = 0; i < lines.size(); ++i) {
+        graph.addPolyline(lines.get(i), placemarks.get(i));
+      }
+    } catch (IllegalStateException | StackOverflowError ex) {
+      return null;
+    }
+    return graph;
+  }
+
+  private static List<Placemark> placemarks(int count) {
+    List<Placemark> placemarks = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      placemarks.add(new Placemark().withName("p" + i));
+    }
+    return placemarks;
+  }
+
+  /**
+   * Gives each vertex a WGS84 location offset by half an encoding step from
+   * the stand-in projection in {@link #encode}, so that output which loses
+   * the source location encodes differently.
+   */
+  private static List<List<Coordinate>> geographic(List<List<Coordinate>> lines) {
+    List<List<Coordinate>> result = new ArrayList<>();
+    for (List<Coordinate> line : lines) {
+      List<Coordinate> geographic = new ArrayList<>();
+      for (Coordinate c : line) {
+        geographic.add(new GeographicCoordinate(c.x, c.y, c.y * 1e-5 + 0.5e-5,
+            c.x * 1e-5 + 0.5e-5));
+      }
+      result.add(geographic);
+    }
+    return result;
+  }
+
+  /**
+   * Encodes each polyline with its placemark names, using the source WGS84
+   * location of a vertex if it has one, and otherwise a stand-in for the
+   * inverse projection.
+   */
+  private static List<String> encode(List<AlignmentGraph.Polyline> polylines) {
+    List<String> encoded = new ArrayList<>();
+    for (AlignmentGraph.Polyline polyline : polylines) {
+      double[] latLngs = new double[polyline.line.size() * 2];
+      for (int i = 0; i < polyline.line.size(); ++i) {
+        Coordinate c = polyline.line.get(i);
+        if (c instanceof GeographicCoordinate) {
+          latLngs[2 * i] = ((GeographicCoordinate) c).latitude;
+          latLngs[2 * i + 1] = ((GeographicCoordinate) c).longitude;
+        } else {
+          latLngs[2 * i] = c.y * 1e-5;
+          latLngs[2 * i + 1] = c.x * 1e-5;
+        }
+      }
+      List<String> names = new ArrayList<>();
+      for (Placemark placemark : polyline.placemarks) {
+        names.add(placemark.getName());
+      }
+      encoded.add(PolylineEncoder.encode(latLngs) + " " + names);
+    }
+    return encoded;
+  }
+
+  /**
+   * Generates a few polylines in a small area, each but the first following
+   * part of an earlier one with some jitter before wandering off, so that
+   * they share, cross and split each other's edges.
+   */
+  private static List<List<Coordinate>> generate(long seed) {
+    Random random = new Random(seed);
+    List<List<Coordinate>> lines = new ArrayList<>();
+    int count = 3 + random.nextInt(6);
+    for (int i = 0; i < count; ++i) {
+      List<Coordinate> line = new ArrayList<>();
+      if (!lines.isEmpty()) {
+        List<Coordinate> base = lines.get(random.nextInt(lines.size()));
+        int start = random.nextInt(base.size() - 1);
+        int end = Math.min(base.size(), start + 2 + random.nextInt(4));
+        for (int j = start; j < end; ++j) {
+          line.add(new Coordinate(base.get(j).x + random.nextGaussian() * 4,
+              base.get(j).y + random.nextGaussian() * 4));
+        }
+      } else {
+        line.add(new Coordinate(random.nextDouble() * 200, random.nextDouble() * 200));
+      }
+      for (int j = random.nextInt(4) + (line.size() < 2 ? 1 : 0); j > 0; --j) {
+        Coordinate last = line.get(line.size() - 1);
+        line.add(new Coordinate(last.x + random.nextGaussian() * 80,
+            last.y + random.nextGaussian() * 80));
+      }
+      lines.add(line);
+    }
+    return lines;
+  }
+}
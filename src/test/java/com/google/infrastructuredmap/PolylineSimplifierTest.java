@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.google.maps.model.EncodedPolyline;
+import com.google.maps.model.LatLng;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.LineString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class PolylineSimplifierTest extends TestCase {
+
+  private static final GeometryFactory GEOMETRY = new GeometryFactory();
+
+  public void testShortLinesAreKept() {
+    List<List<Coordinate>> lines = new ArrayList<>();
+    lines.add(Collections.<Coordinate>emptyList());
+    lines.add(Arrays.asList(new Coordinate(0, 0)));
+    lines.add(Arrays.asList(new Coordinate(0, 0), new Coordinate(100, 0)));
+    int[][] kept = new PolylineSimplifier(lines).simplify(1000);
+    assertEquals(0, kept[0].length);
+    assertTrue(Arrays.equals(new int[] {0}, kept[1]));
+    assertTrue(Arrays.equals(new int[] {0, 1}, kept[2]));
+  }
+
+  public void testShortcutThatWouldCrossAnotherLineIsRejected() {
+    // The shortcut from (0, 0) to (10, 0) would cross the second line, which
+    // the original dip passes below.
+    List<List<Coordinate>> lines = new ArrayList<>();
+    lines.add(Arrays.asList(new Coordinate(0, 0), new Coordinate(5, -1), new Coordinate(10, 0)));
+    lines.add(Arrays.asList(new Coordinate(5, -0.5), new Coordinate(5, 0.5)));
+    int[][] kept = new PolylineSimplifier(lines).simplify(2);
+    assertTrue(Arrays.equals(new int[] {0, 1, 2}, kept[0]));
+
+    // Without the second line, the dip is within tolerance.
+    kept = new PolylineSimplifier(lines.subList(0, 1)).simplify(2);
+    assertTrue(Arrays.equals(new int[] {0, 2}, kept[0]));
+  }
+
+  public void testParallelCloseCorridorsDontCross() {
+    // Pairs of winding lines a meter apart, like two tracks along a valley.
+    // Shortcuts across a bend of one line would cut through the other.
+    Random random = new Random(7);
+    List<List<Coordinate>> lines = new ArrayList<>();
+    for (int pair = 0; pair < 10; ++pair) {
+      for (int side = 0; side < 2; ++side) {
+        List<Coordinate> line = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+          double x = i * 2 + random.nextDouble();
+          double y = pair * 50 + side + 5 * Math.sin(x / (10 + pair)) + random.nextDouble() * 0.2;
+          line.add(new Coordinate(x, y));
+        }
+        lines.add(line);
+      }
+    }
+    assertNoCrossings(lines, allVertices(lines));
+
+    for (double tolerance : new double[] {0.3, 1, 5, 50}) {
+      int[][] kept = new PolylineSimplifier(lines).simplify(tolerance);
+      assertNoCrossings(lines, kept);
+      assertWithinTolerance(lines, kept, tolerance);
+    }
+  }
+
+  public void testSharedJunctionIsKept() {
+    // Three lines that meet at a junction, with bends that simplify away.
+    Coordinate junction = new Coordinate(0, 0);
+    List<List<Coordinate>> lines = new ArrayList<>();
+    lines.add(Arrays.asList(new Coordinate(-100, 1), new Coordinate(-50, -1), junction));
+    lines.add(Arrays.asList(junction, new Coordinate(50, 1), new Coordinate(100, 0)));
+    lines.add(Arrays.asList(junction, new Coordinate(1, 50), new Coordinate(0, 100)));
+    int[][] kept = new PolylineSimplifier(lines).simplify(5);
+    for (int i = 0; i < lines.size(); ++i) {
+      assertEquals(2, kept[i].length);
+      assertEquals(0, kept[i][0]);
+      assertEquals(lines.get(i).size() - 1, kept[i][1]);
+    }
+
+    // Encoded with the kept indices, the lines still meet at the same point.
+    double[] first = PolylineEncoder.decode(PolylineEncoder.encode(toLatLngs(lines.get(0)),
+        kept[0]));
+    double[] second = PolylineEncoder.decode(PolylineEncoder.encode(toLatLngs(lines.get(1)),
+        kept[1]));
+    assertEquals(first[first.length - 2], second[0]);
+    assertEquals(first[first.length - 1], second[1]);
+  }
+
+  public void testEncoderRoundTrip() {
+    Random random = new Random(5);
+    double[] latLngs = new double[200];
+    List<LatLng> points = new ArrayList<>();
+    for (int i = 0; i < latLngs.length; i += 2) {
+      // Whole numbers of 1e-5 degrees, the precision of the format, on both
+      // sides of the equator and the prime meridian.
+      latLngs[i] = (random.nextInt(18000000) - 9000000) / 1e5;
+      latLngs[i + 1] = (random.nextInt(36000000) - 18000000) / 1e5;
+      points.add(new LatLng(latLngs[i], latLngs[i + 1]));
+    }
+    String encoded = PolylineEncoder.encode(latLngs);
+    assertEquals(new EncodedPolyline(points).getEncodedPath(), encoded);
+    assertTrue(Arrays.equals(latLngs, PolylineEncoder.decode(encoded)));
+    assertEquals(encoded, PolylineEncoder.encode(PolylineEncoder.decode(encoded)));
+
+    int[] indices = {0, 3, 4, 99};
+    double[] subset = PolylineEncoder.decode(PolylineEncoder.encode(latLngs, indices));
+    assertEquals(2 * indices.length, subset.length);
+    for (int i = 0; i < indices.length; ++i) {
+      assertEquals(latLngs[2 * indices[i]], subset[2 * i]);
+      assertEquals(latLngs[2 * indices[i] + 1], subset[2 * i + 1]);
+    }
+    assertEquals(0, PolylineEncoder.decode("").length);
+  }
+
+  /**
+   * Asserts that the simplified lines only meet where the original lines do,
+   * which for these lines is nowhere.
+   */
+  private static void assertNoCrossings(List<List<Coordinate>> lines, int[][] kept) {
+    List<LineString> simplified = new ArrayList<>();
+    for (int i = 0; i < lines.size(); ++i) {
+      Coordinate[] coordinates = new Coordinate[kept[i].length];
+      for (int j = 0; j < kept[i].length; ++j) {
+        coordinates[j] = lines.get(i).get(kept[i][j]);
+      }
+      LineString line = GEOMETRY.createLineString(coordinates);
+      assertTrue("line " + i + " crosses itself", line.isSimple());
+      simplified.add(line);
+    }
+    for (int i = 0; i < simplified.size(); ++i) {
+      for (int j = i + 1; j < simplified.size(); ++j) {
+        assertFalse("lines " + i + " and " + j + " cross",
+            simplified.get(i).intersects(simplified.get(j)));
+      }
+    }
+  }
+
+  /**
+   * Asserts that every removed vertex is within {@code tolerance} of the
+   * shortcut that replaced it.
+   */
+  private static void assertWithinTolerance(List<List<Coordinate>> lines, int[][] kept,
+      double tolerance) {
+    for (int i = 0; i < lines.size(); ++i) {
+      List<Coordinate> line = lines.get(i);
+      for (int k = 0; k + 1 < kept[i].length; ++k) {
+        LineSegment shortcut = new LineSegment(line.get(kept[i][k]), line.get(kept[i][k + 1]));
+        for (int j = kept[i][k] + 1; j < kept[i][k + 1]; ++j) {
+          assertTrue(shortcut.distance(line.get(j)) <= tolerance);
+        }
+      }
+    }
+  }
+
+  private static int[][] allVertices(List<List<Coordinate>> lines) {
+    int[][] all = new int[lines.size()][];
+    for (int i = 0; i < lines.size(); ++i) {
+      all[i] = new int[lines.get(i).size()];
+      for (int j = 0; j < all[i].length; ++j) {
+        all[i][j] = j;
+      }
+    }
+    return all;
+  }
+
+  private static double[] toLatLngs(List<Coordinate> line) {
+    double[] latLngs = new double[line.size() * 2];
+    for (int i = 0; i < line.size(); ++i) {
+      // Treat the projected meters as thousandths of a degree.
+      latLngs[2 * i] = line.get(i).y / 1000;
+      latLngs[2 * i + 1] = line.get(i).x / 1000;
+    }
+    return latLngs;
+  }
+}
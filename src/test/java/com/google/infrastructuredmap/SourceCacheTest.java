@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import javax.annotation.Nullable;
+import junit.framework.TestCase;
+
+public class SourceCacheTest extends TestCase {
+
+  private static final String URL = "http://example.com/map.kml";
+
+  private Path _dir;
+  private FakeFetcher _fetcher;
+  private SourceCache _cache;
+
+  @Override
+  protected void setUp() throws IOException {
+    _dir = Files.createTempDirectory("cache");
+    _fetcher = new FakeFetcher();
+    _cache = new SourceCache(_dir, _fetcher);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(_dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(_dir);
+  }
+
+  public void testNotModifiedReusesCachedCopy() throws IOException {
+    _fetcher.respond("first", "\"v1\"", "Mon, 01 Jan 2016 00:00:00 GMT");
+    SourceCache.Document first = _cache.fetch(URL);
+    _fetcher.respondNotModified();
+    SourceCache.Document second = _cache.fetch(URL);
+
+    assertEquals("first", read(second.path));
+    assertEquals(first.hash, second.hash);
+    assertEquals(SourceCache.hash(bytes("first")), second.hash);
+    assertEquals("\"v1\"", _fetcher.etags.get(1));
+    assertEquals("Mon, 01 Jan 2016 00:00:00 GMT", _fetcher.lastModifieds.get(1));
+  }
+
+  public void testModifiedReplacesBodyAndValidators() throws IOException {
+    _fetcher.respond("first", "\"v1\"", "Mon, 01 Jan 2016 00:00:00 GMT");
+    _cache.fetch(URL);
+    _fetcher.respond("second", "\"v2\"", null);
+    SourceCache.Document second = _cache.fetch(URL);
+    _fetcher.respondNotModified();
+    SourceCache.Document third = _cache.fetch(URL);
+
+    assertEquals("second", read(second.path));
+    assertEquals(SourceCache.hash(bytes("second")), second.hash);
+    assertEquals("second", read(third.path));
+    assertEquals(second.hash, third.hash);
+    assertEquals("\"v2\"", _fetcher.etags.get(2));
+    assertNull(_fetcher.lastModifieds.get(2));
+  }
+
+  public void testFetchErrorFallsBackToCachedCopy() throws IOException {
+    _fetcher.respond("first", "\"v1\"", null);
+    SourceCache.Document first = _cache.fetch(URL);
+    _fetcher.fail();
+    SourceCache.Document second = _cache.fetch(URL);
+
+    assertEquals("first", read(second.path));
+    assertEquals(first.hash, second.hash);
+  }
+
+  public void testFetchErrorWithoutCachedCopyIsThrown() {
+    _fetcher.fail();
+    try {
+      _cache.fetch(URL);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testFirstFetchIsUnconditional() throws IOException {
+    _fetcher.respond("first", "\"v1\"", null);
+    _cache.fetch(URL);
+    assertNull(_fetcher.etags.get(0));
+    assertNull(_fetcher.lastModifieds.get(0));
+  }
+
+  public void testUpToDate() throws IOException {
+    Path output = _dir.resolve("output.json");
+    assertFalse(_cache.isUpToDate(output, "a"));
+    _cache.setUpToDate(output, "a");
+    assertFalse("output doesn't exist", _cache.isUpToDate(output, "a"));
+
+    Files.write(output, bytes("{}"));
+    assertTrue(_cache.isUpToDate(output, "a"));
+    assertFalse(_cache.isUpToDate(output, "b"));
+    _cache.setUpToDate(output, "b");
+    assertTrue(_cache.isUpToDate(output, "b"));
+    assertFalse(_cache.isUpToDate(output, "a"));
+
+    _cache.clearUpToDate(output);
+    assertFalse(_cache.isUpToDate(output, "b"));
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Answers each fetch with the next queued response, and records the
+   * validators it was called with.
+   */
+  private static class FakeFetcher implements SourceCache.Fetcher {
+    final List<String> etags = new ArrayList<>();
+    final List<String> lastModifieds = new ArrayList<>();
+    // Each entry is {body, etag, lastModified}, with a null body for a 304.
+    private final Deque<String[]> _responses = new ArrayDeque<>();
+    private boolean _fail;
+
+    void respond(String body, @Nullable String etag, @Nullable String lastModified) {
+      _responses.add(new String[] {body, etag, lastModified});
+    }
+
+    void respondNotModified() {
+      _responses.add(new String[] {null, null, null});
+    }
+
+    void fail() {
+      _fail = true;
+    }
+
+    @Override
+    public SourceCache.Response fetch(URL url, @Nullable String etag,
+        @Nullable String lastModified) throws IOException {
+      etags.add(etag);
+      lastModifieds.add(lastModified);
+      if (_fail) {
+        throw new IOException("Connection refused");
+      }
+      String[] response = _responses.remove();
+      if (response[0] == null) {
+        return null;
+      }
+      return new SourceCache.Response(new ByteArrayInputStream(bytes(response[0])),
+          response[1], response[2]);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.infrastructuredmap;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class SpatialGridTest extends TestCase {
+
+  public void testQueryReturnsItemsInInsertionOrder() {
+    SpatialGrid<String> grid = new SpatialGrid<>(10.0);
+    grid.insert(new Coordinate(15, 5), "b");
+    grid.insert(new Coordinate(5, 5), "a");
+    grid.insert(new Coordinate(5, 15), "c");
+    grid.insert(new Coordinate(6, 6), "d");
+    assertEquals(Arrays.asList("b", "a", "c", "d"), query(grid, new Coordinate(10, 10), 10.0));
+  }
+
+  public void testReinsertedItemMovesToEnd() {
+    SpatialGrid<String> grid = new SpatialGrid<>(10.0);
+    grid.insert(new Coordinate(5, 5), "a");
+    grid.insert(new Coordinate(15, 5), "b");
+    grid.remove(new Coordinate(5, 5), "a");
+    grid.insert(new Coordinate(5, 5), "a");
+    assertEquals(Arrays.asList("b", "a"), query(grid, new Coordinate(10, 5), 10.0));
+  }
+
+  public void testSegmentIsReturnedOnce() {
+    SpatialGrid<String> grid = new SpatialGrid<>(10.0);
+    grid.insert(new Coordinate(5, 5), "a");
+    grid.insert(new Coordinate(0, 0), new Coordinate(95, 3), "long");
+    grid.insert(new Coordinate(45, 5), "b");
+    assertEquals(Arrays.asList("a", "long", "b"),
+        query(grid, new Coordinate(0, 0), new Coordinate(100, 0), 5.0));
+    assertEquals(Arrays.asList("long", "b"), query(grid, new Coordinate(45, 5), 1.0));
+  }
+
+  public void testRemovedItemIsNotReturned() {
+    SpatialGrid<String> grid = new SpatialGrid<>(10.0);
+    grid.insert(new Coordinate(0, 0), new Coordinate(30, 0), "a");
+    grid.insert(new Coordinate(25, 0), "b");
+    grid.remove(new Coordinate(0, 0), new Coordinate(30, 0), "a");
+    assertEquals(Arrays.asList("b"), query(grid, new Coordinate(15, 0), 15.0));
+  }
+
+  public void testCellsNeverReturnEmptyKey() {
+    // A cell at x = Integer.MIN_VALUE and y = 0 would have the key that marks
+    // unused slots.
+    Coordinate far = new Coordinate(-1e300, 5);
+    for (long key : SpatialGrid.cells(10.0, far, far, 0.0)) {
+      assertTrue(key != Long.MIN_VALUE);
+    }
+    SpatialGrid<String> grid = new SpatialGrid<>(10.0);
+    grid.insert(far, "a");
+    assertEquals(Arrays.asList("a"), query(grid, far, 1.0));
+  }
+
+  private static List<String> query(SpatialGrid<String> grid, Coordinate point, double radius) {
+    return new ArrayList<>(grid.query(point, radius));
+  }
+
+  private static List<String> query(SpatialGrid<String> grid, Coordinate a, Coordinate b,
+      double radius) {
+    return new ArrayList<>(grid.query(a, b, radius));
+  }
+}
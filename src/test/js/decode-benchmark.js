@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Times JSON.parse of map-data.json against InfraStructuredMap.decodeMapData
+ * of map-data.bin, as written by MapDataFormatBenchmark, in Node:
+ *
+ *   node --expose-gc src/test/js/decode-benchmark.js directory [runs]
+ *
+ * With --expose-gc, each run starts with a collection, so that neither side
+ * pays for the garbage the other left.  It also checks that both decode to the same data, with placemark
+ * coordinates rounded to the binary format's millionths of a degree.
+ */
+const fs = require('fs');
+const path = require('path');
+const vm = require('vm');
+
+const context = {TextDecoder: TextDecoder, Map: Map};
+vm.createContext(context);
+vm.runInContext(fs.readFileSync(
+  path.join(__dirname, '../../main/js/infra-structured-map.js'), 'utf8'),
+  context);
+const InfraStructuredMap = context.InfraStructuredMap;
+
+const dir = process.argv[2];
+const runs = Number(process.argv[3] || 60);
+const json = fs.readFileSync(path.join(dir, 'map-data.json'), 'utf8');
+const bytes = fs.readFileSync(path.join(dir, 'map-data.bin'));
+const buffer = bytes.buffer.slice(
+  bytes.byteOffset, bytes.byteOffset + bytes.length);
+
+const normalize = function(data) {
+  return JSON.stringify(data, function(key, value) {
+    return key === 'lat' || key === 'lng' ? Math.round(value * 1e6) : value;
+  });
+};
+console.log('same data:', normalize(JSON.parse(json)) ===
+  normalize(InfraStructuredMap.decodeMapData(buffer)));
+
+const time = function(decode) {
+  const times = [];
+  for (let i = 0; i < runs; ++i) {
+    if (global.gc) {
+      global.gc();
+    }
+    const start = process.hrtime.bigint();
+    decode();
+    times.push(Number(process.hrtime.bigint() - start) / 1e6);
+  }
+  times.sort(function(a, b) {
+    return a - b;
+  });
+  return times[times.length >> 1].toFixed(1);
+};
+console.log('median JSON.parse ms:', time(function() {
+  JSON.parse(json);
+}));
+console.log('median decodeMapData ms:', time(function() {
+  InfraStructuredMap.decodeMapData(buffer);
+}));